@@ -0,0 +1,112 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openplacereviews.opendb.ObjectGeneratorTest;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockchainRules;
+import org.openplacereviews.opendb.ops.OpIndexColumn;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.de.ColumnDef;
+import org.openplacereviews.opendb.ops.de.ColumnDef.IndexType;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.util.*;
+
+import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
+import static org.openplacereviews.opendb.VariableHelperTest.serverName;
+
+/**
+ * Synthetic chains for benchmarks: bootstrap operations of tests (they register osm.place type)
+ * followed by superblocks with generated osm.place objects.
+ */
+public class BenchmarkData {
+
+	public static final String PLACE_TYPE = "osm.place";
+	public static final String PLACE_ID_PREFIX = "bench";
+
+	private final JsonFormatter formatter = new JsonFormatter();
+	private final OpBlockchainRules rules = new OpBlockchainRules(formatter, null);
+	private final Random random = new Random(17);
+	private int placeId;
+
+	public JsonFormatter getFormatter() {
+		return formatter;
+	}
+
+	public OpBlockchainRules getRules() {
+		return rules;
+	}
+
+	public OpBlockChain createBootstrapChain() throws FailedVerificationException {
+		OpBlockChain blc = new OpBlockChain(OpBlockChain.NULL, rules);
+		ObjectGeneratorTest.generateOperations(formatter, blc);
+		blc.createBlock(serverName, serverKeyPair);
+		return blc;
+	}
+
+	/**
+	 * Creates chain of depth + 1 superblocks (bootstrap superblock and depth superblocks with 1 block each)
+	 */
+	public OpBlockChain createChain(int depth, int opsPerBlock) throws FailedVerificationException {
+		OpBlockChain blc = createBootstrapChain();
+		for (int i = 0; i < depth; i++) {
+			blc = new OpBlockChain(blc, rules);
+			for (OpOperation o : generatePlaceOperations(opsPerBlock)) {
+				blc.addOperation(o);
+			}
+			blc.createBlock(serverName, serverKeyPair);
+		}
+		return blc;
+	}
+
+	// osm.place has arity 0, so operation creates 1 object
+	public List<OpOperation> generatePlaceOperations(int ops) throws FailedVerificationException {
+		List<OpOperation> res = new ArrayList<>();
+		for (int i = 0; i < ops; i++) {
+			OpOperation op = new OpOperation();
+			op.setType(PLACE_TYPE);
+			op.addCreated(generatePlace(placeId++));
+			op.setSignedBy(serverName);
+			rules.generateHashAndSign(op, serverKeyPair);
+			op.makeImmutable();
+			res.add(op);
+		}
+		return res;
+	}
+
+	public OpObject generatePlace(int id) {
+		OpObject obj = new OpObject();
+		obj.setId(PLACE_ID_PREFIX + id);
+		obj.putObjectValue("osmId", (long) id);
+		obj.putObjectValue("lat", 50 + random.nextInt(1000000) / 1e6);
+		obj.putObjectValue("lon", 30 + random.nextInt(1000000) / 1e6);
+		Map<String, Object> tags = new TreeMap<>();
+		tags.put("amenity", "cafe");
+		tags.put("name", "Place " + id);
+		obj.putObjectValue("tags", tags);
+		return obj;
+	}
+
+	public int getGeneratedPlaces() {
+		return placeId;
+	}
+
+	public String randomPlaceId() {
+		return PLACE_ID_PREFIX + random.nextInt(placeId);
+	}
+
+	public static OpIndexColumn createOsmIdIndex() {
+		OpIndexColumn ind = new OpIndexColumn(PLACE_TYPE, "osmid",
+				-1, new ColumnDef("obj_osm", "osmid", "bigint", IndexType.INDEXED));
+		ind.setFieldsExpression(Collections.singletonList("osmId"));
+		return ind;
+	}
+
+	/**
+	 * Copies operation, so cached values calculated during validation are not reused
+	 */
+	public static OpOperation copy(OpOperation o) {
+		return new OpOperation(o, false).makeImmutable();
+	}
+}
@@ -0,0 +1,97 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openplacereviews.opendb.ops.OpBinaryFormat;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonFormatterBenchmark {
+
+	@Param({"256"})
+	public int opsPerBlock;
+
+	private JsonFormatter formatter;
+	private OpBinaryFormat binaryFormat;
+	private OpBlock block;
+	private OpOperation operation;
+	private OpObject object;
+	private String blockJson;
+	private String operationJson;
+	private String objectJson;
+	private byte[] blockBytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws FailedVerificationException {
+		BenchmarkData data = new BenchmarkData();
+		formatter = data.getFormatter();
+		binaryFormat = new OpBinaryFormat(formatter);
+		OpBlockChain blc = data.createChain(1, opsPerBlock);
+		block = blc.getFullBlockByRawHash(blc.getLastBlockRawHash());
+		operation = block.getOperations().get(0);
+		object = operation.getCreated().get(0);
+		blockJson = formatter.fullObjectToJson(block);
+		operationJson = formatter.opToJson(operation);
+		objectJson = formatter.objToJson(object);
+		blockBytes = binaryFormat.blockToBytes(block);
+	}
+
+	@Benchmark
+	public String blockToJson() {
+		return formatter.fullObjectToJson(block);
+	}
+
+	@Benchmark
+	public OpBlock parseBlock() {
+		return formatter.parseBlock(blockJson);
+	}
+
+	@Benchmark
+	public byte[] blockToBinary() {
+		return binaryFormat.blockToBytes(block);
+	}
+
+	@Benchmark
+	public OpBlock parseBinaryBlock() throws IOException {
+		return binaryFormat.readBlock(new ByteArrayInputStream(blockBytes));
+	}
+
+	@Benchmark
+	public String operationToJson() {
+		return formatter.opToJson(operation);
+	}
+
+	@Benchmark
+	public String operationToJsonNoHash() {
+		return formatter.opToJsonNoHash(operation);
+	}
+
+	@Benchmark
+	public OpOperation parseOperation() {
+		return formatter.parseOperation(operationJson);
+	}
+
+	@Benchmark
+	public String objectToJson() {
+		return formatter.objToJson(object);
+	}
+
+	@Benchmark
+	public OpObject parseObject() {
+		return formatter.parseObject(objectJson);
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
+import org.openplacereviews.opendb.ops.OpIndexColumn;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
+import static org.openplacereviews.opendb.VariableHelperTest.serverName;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpBlockChainBenchmark {
+
+	// amount of superblocks on top of bootstrap superblock
+	@Param({"1", "8", "32"})
+	public int depth;
+
+	@Param({"256"})
+	public int opsPerBlock;
+
+	private BenchmarkData data;
+	private OpBlockChain blc;
+	private OpIndexColumn osmIdIndex;
+	private List<OpOperation> operations;
+
+	@State(Scope.Thread)
+	public static class RuntimeChain {
+		OpBlockChain chain;
+		List<OpOperation> operations;
+
+		// operations are copied, so cached hashes calculated during validation are not reused
+		@Setup(Level.Invocation)
+		public void setup(OpBlockChainBenchmark b) {
+			chain = new OpBlockChain(b.blc, b.blc.getRules());
+			operations = new ArrayList<>(b.operations.size());
+			for (OpOperation o : b.operations) {
+				operations.add(BenchmarkData.copy(o));
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setupChain() throws FailedVerificationException {
+		data = new BenchmarkData();
+		blc = data.createChain(depth, opsPerBlock);
+		osmIdIndex = BenchmarkData.createOsmIdIndex();
+		operations = data.generatePlaceOperations(opsPerBlock);
+	}
+
+	@Benchmark
+	public OpBlockChain addOperation(RuntimeChain r) {
+		for (OpOperation o : r.operations) {
+			r.chain.addOperation(o);
+		}
+		return r.chain;
+	}
+
+	@Benchmark
+	public OpBlock createBlock(RuntimeChain r) throws FailedVerificationException {
+		for (OpOperation o : r.operations) {
+			r.chain.addOperation(o);
+		}
+		return r.chain.createBlock(serverName, serverKeyPair);
+	}
+
+	@Benchmark
+	public void getObjectByName(Blackhole bh) {
+		bh.consume(blc.getObjectByName(BenchmarkData.PLACE_TYPE, data.randomPlaceId()));
+	}
+
+	@Benchmark
+	public void getObjectByNameMissing(Blackhole bh) {
+		bh.consume(blc.getObjectByName(BenchmarkData.PLACE_TYPE, "missing"));
+	}
+
+	@Benchmark
+	public ObjectsSearchRequest fetchObjectsByIndex() {
+		ObjectsSearchRequest r = new ObjectsSearchRequest();
+		blc.fetchObjectsByIndex(BenchmarkData.PLACE_TYPE, osmIdIndex, r, (long) (data.getGeneratedPlaces() / 2));
+		return r;
+	}
+
+	@Benchmark
+	public ObjectsSearchRequest fetchAllObjects() {
+		return blc.fetchAllObjects(BenchmarkData.PLACE_TYPE, new ObjectsSearchRequest());
+	}
+
+	@Benchmark
+	public OpBlockChain compact() {
+		// merge of 2 top superblocks as it is done by compaction of runtime superblocks
+		return new OpBlockChain(blc, blc.getParent(), blc.getRules());
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.openplacereviews.opendb.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpBlockchainRules;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.util.OpExprEvaluator;
+import org.openplacereviews.opendb.util.OpExprEvaluator.EvaluationContext;
+import org.openplacereviews.opendb.util.exception.FailedVerificationException;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpExprEvaluatorBenchmark {
+
+	// expressions of std-validations
+	@Param({
+		"std:eq(.ref.op.id.0,.type)",
+		"std:leq(std:size(.new),1)",
+		"std:eq(.new.id,.old.id)",
+		"set:in(.type, set:all('sys.operation','sys.validate','sys.role','sys.grant'))",
+		"auth:has_sig_roles(this, 'owner')"
+	})
+	public String expression;
+
+	private BenchmarkData data;
+	private OpBlockChain blc;
+	private OpOperation operation;
+	private Map<String, OpObject> refs;
+	private OpExprEvaluator evaluator;
+
+	@Setup(Level.Trial)
+	public void setup() throws FailedVerificationException {
+		data = new BenchmarkData();
+		blc = data.createChain(1, 16);
+		operation = data.generatePlaceOperations(1).get(0);
+		refs = new TreeMap<>();
+		refs.put("op", blc.getObjectByName(OpBlockchainRules.OP_OPERATION, BenchmarkData.PLACE_TYPE));
+		evaluator = OpExprEvaluator.parseExpression(expression);
+	}
+
+	@Benchmark
+	public void evaluate(Blackhole bh) {
+		EvaluationContext ctx = new EvaluationContext(blc, data.getFormatter(), operation,
+				operation.getCreated(), Collections.<OpObject>emptyList(), refs);
+		bh.consume(evaluator.evaluateObject(ctx));
+	}
+
+	@Benchmark
+	public void parseAndEvaluate(Blackhole bh) {
+		EvaluationContext ctx = new EvaluationContext(blc, data.getFormatter(), operation,
+				operation.getCreated(), Collections.<OpObject>emptyList(), refs);
+		bh.consume(OpExprEvaluator.parseExpression(expression).evaluateObject(ctx));
+	}
+
+}
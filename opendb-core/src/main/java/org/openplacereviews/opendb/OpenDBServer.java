@@ -45,6 +45,8 @@ public class OpenDBServer {
 	@Autowired
 	PublicDataManager publicDataManager;
 	@Autowired
+	HistoryManager historyManager;
+	@Autowired
 	private JdbcTemplate jdbcTemplate;
 	@Autowired
 	SettingsManager settingsManager;
@@ -90,6 +92,7 @@ public class OpenDBServer {
 				MetadataDb metadataDB = loadMetadata(jdbcTemplate);
 				OpBlockChain blockchain = dbDataManager.init(metadataDB);
 				blocksManager.init(metadataDB, blockchain);
+				historyManager.init(blockchain);
 				externalResourcesService.init();
 				publicDataManager.updateEndpoints();
 				LOGGER.info("Application has started");
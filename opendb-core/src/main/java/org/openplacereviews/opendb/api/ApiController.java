@@ -1,14 +1,18 @@
 package org.openplacereviews.opendb.api;
 
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonWriter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.*;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.scheduled.OpenDBScheduledServices;
 import org.openplacereviews.opendb.service.BlocksManager;
 import org.openplacereviews.opendb.service.BlocksManager.BlocksListResult;
 import org.openplacereviews.opendb.service.HistoryManager;
+import org.openplacereviews.opendb.service.HistoryManager.HistoryEdit;
 import org.openplacereviews.opendb.service.HistoryManager.HistoryObjectRequest;
 import org.openplacereviews.opendb.service.LogOperationService;
 import org.openplacereviews.opendb.service.LogOperationService.LogEntry;
@@ -21,8 +25,14 @@ import org.springframework.core.io.InputStreamResource;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
 
 @Controller
 @RequestMapping("/api")
@@ -31,6 +41,9 @@ public class ApiController {
 	protected static final Log LOGGER = LogFactory.getLog(ApiController.class);
 
 	public static final int LIMIT_RESULTS = 10000;
+	public static final int MAX_BLOCKS_RANGE = 10000;
+	public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson;charset=UTF-8";
+	public static final String JSON_CONTENT_TYPE = "text/json;charset=UTF-8";
 
 	@Autowired
 	private BlocksManager manager;
@@ -170,11 +183,42 @@ public class ApiController {
 		public List<MetricResult> metrics = new ArrayList<>();
 	}
 
-	@GetMapping(path = "/blocks", produces = "text/json;charset=UTF-8")
+	/**
+	 * format - 'binary' to get blocks in OpBinaryFormat (json is returned by default)
+	 */
+	@GetMapping(path = "/blocks")
 	@ResponseBody
-	public String blocksList(@RequestParam(required = false, defaultValue = "100") int depth,
-			@RequestParam(required = false) String from, @RequestParam(required = false) String to)
-			throws FailedVerificationException {
+	public void blocksList(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false, defaultValue = "100") int depth,
+			@RequestParam(required = false) String from, @RequestParam(required = false) String to,
+			@RequestParam(required = false) String format)
+			throws FailedVerificationException, IOException {
+		BlocksListResult br = getBlocksList(depth, from, to);
+		if (OpBinaryFormat.FORMAT_NAME.equals(format)) {
+			writeBinary(response, new OpBinaryFormat(formatter).blocksToBytes(br.blocks, br.blockDepth));
+			return;
+		}
+		try (JsonWriter w = openJsonResponse(request, response)) {
+			w.beginObject();
+			w.name("blocks").beginArray();
+			for (OpBlock b : br.blocks) {
+				formatter.fullObjectToJson(b, w);
+			}
+			w.endArray();
+			w.name("blockDepth").value(br.blockDepth);
+			w.endObject();
+		}
+	}
+
+	private void writeBinary(HttpServletResponse response, byte[] bytes) throws IOException {
+		response.setContentType(OpBinaryFormat.CONTENT_TYPE);
+		response.setContentLength(bytes.length);
+		OutputStream os = response.getOutputStream();
+		os.write(bytes);
+		os.flush();
+	}
+
+	private BlocksListResult getBlocksList(int depth, String from, String to) {
 		BlocksListResult br = new BlocksListResult();
 		OpBlockChain blc = manager.getBlockchain();
 		br.blockDepth = blc.getDepth();
@@ -212,18 +256,77 @@ public class ApiController {
 				br.blocks.removeLast();
 			}
 		}
+		return br;
+	}
 
-		return formatter.fullObjectToJson(br);
+	/**
+	 * format - 'binary' to get block in OpBinaryFormat (json is returned by default)
+	 */
+	@GetMapping(path = "/block-by-hash")
+	@ResponseBody
+	public void getBlockByHash(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = true) String hash, @RequestParam(required = false) String format)
+			throws IOException {
+		OpBlock block = manager.getBlockchain().getFullBlockByRawHash(OpBlockchainRules.getRawHash(hash));
+		if (OpBinaryFormat.FORMAT_NAME.equals(format)) {
+			writeBinary(response, new OpBinaryFormat(formatter).blockToBytes(block == null ? new OpBlock() : block));
+			return;
+		}
+		try (JsonWriter w = openJsonResponse(request, response)) {
+			if (block == null) {
+				w.beginObject().endObject();
+			} else {
+				formatter.fullObjectToJson(block, w);
+			}
+		}
 	}
 
-	@GetMapping(path = "/block-by-hash", produces = "text/json;charset=UTF-8")
+	@GetMapping(path = "/blocks-range")
 	@ResponseBody
-	public String getBlockByHash(@RequestParam(required = true) String hash) {
-		OpBlock blockHeader = manager.getBlockchain().getFullBlockByRawHash(OpBlockchainRules.getRawHash(hash));
-		if (blockHeader == null) {
-			return "{}";
+	public void blocksRange(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = false) String from,
+			@RequestParam(required = false, defaultValue = "-1") int fromId,
+			@RequestParam(required = false, defaultValue = "1000") int limit) throws IOException {
+		OpBlockChain blc = manager.getBlockchain();
+		int startId = fromId;
+		if (from != null) {
+			// blocks after specified block, used by replication
+			OpBlock found = OUtils.isEmpty(from) ? null : blc.getBlockHeaderByRawHash(from);
+			if (found == null && !OUtils.isEmpty(from)) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "Block is not found: " + from);
+				return;
+			}
+			startId = found == null ? 0 : found.getBlockId() + 1;
+		}
+		startId = Math.max(startId, 0);
+		int endId = Math.min(blc.getLastBlockId(), startId + Math.min(limit, MAX_BLOCKS_RANGE) - 1);
+		try (Writer w = openResponseWriter(request, response, NDJSON_CONTENT_TYPE)) {
+			for (int id = startId; id <= endId; id++) {
+				OpBlock block = blc.getFullBlockByBlockId(id);
+				if (block == null) {
+					break;
+				}
+				w.write(formatter.fullObjectToJson(block));
+				w.write('\n');
+			}
 		}
-		return formatter.fullObjectToJson(blockHeader);
+	}
+
+	// response is gzipped if client accepts it
+	private Writer openResponseWriter(HttpServletRequest request, HttpServletResponse response, String contentType)
+			throws IOException {
+		response.setContentType(contentType);
+		OutputStream os = response.getOutputStream();
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			response.setHeader("Content-Encoding", "gzip");
+			os = new GZIPOutputStream(os, 1 << 16);
+		}
+		return new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	private JsonWriter openJsonResponse(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		return formatter.newFullOutputWriter(openResponseWriter(request, response, JSON_CONTENT_TYPE));
 	}
 
 	@GetMapping(path = "/block-header-by-id", produces = "text/json;charset=UTF-8")
@@ -259,32 +362,32 @@ public class ApiController {
 
 	@GetMapping(path = "/ops-by-block-id", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String getOperationsByBlockId(@RequestParam(required = true) int blockId) {
-		OpBlock opBlock = manager.getBlockchain().getFullBlockByBlockId(blockId);
-		if (opBlock != null) {
-			OpBlock bl = new OpBlock();
-			for (OpOperation ob : opBlock.getOperations()) {
-				bl.addOperation(ob);
-			}
-			return formatter.fullObjectToJson(bl);
-		} else {
-			return "{}";
-		}
+	public void getOperationsByBlockId(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = true) int blockId) throws IOException {
+		writeBlockOperations(request, response, manager.getBlockchain().getFullBlockByBlockId(blockId));
 	}
 
 	@GetMapping(path = "/ops-by-block-hash", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String getOperationsByBlockHash(@RequestParam(required = true) String hash) {
-		OpBlock opBlock = manager.getBlockchain().getFullBlockByRawHash(hash);
-		if (opBlock != null) {
-			OpBlock bl = new OpBlock();
-			for (OpOperation ob : opBlock.getOperations()) {
-				bl.addOperation(ob);
+	public void getOperationsByBlockHash(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = true) String hash) throws IOException {
+		writeBlockOperations(request, response, manager.getBlockchain().getFullBlockByRawHash(hash));
+	}
+
+	// same output as block without header fields
+	private void writeBlockOperations(HttpServletRequest request, HttpServletResponse response, OpBlock opBlock)
+			throws IOException {
+		try (JsonWriter w = openJsonResponse(request, response)) {
+			w.beginObject();
+			if (opBlock != null) {
+				w.name(OpBlock.F_OPERATIONS).beginArray();
+				for (OpOperation ob : opBlock.getOperations()) {
+					formatter.fullObjectToJson(ob, w);
+				}
+				w.endArray();
 			}
-			return formatter.fullObjectToJson(bl);
+			w.endObject();
 		}
-
-		return "{}";
 	}
 
 	@PostMapping(path = "/metrics-reset", produces = "text/json;charset=UTF-8")
@@ -319,20 +422,66 @@ public class ApiController {
 		return formatter.fullObjectToJson(ms);
 	}
 
+	/**
+	 * cursor - json array with key parts of the last object of the previous page (returned with page if there could be more objects)
+	 */
 	@GetMapping(path = "/objects", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String objects(@RequestParam(required = true) String type,
-			@RequestParam(required = false, defaultValue = "100") int limit) throws FailedVerificationException {
+	public void objects(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = true) String type,
+			@RequestParam(required = false, defaultValue = "100") int limit,
+			@RequestParam(required = false) String cursor) throws FailedVerificationException, IOException {
 		OpBlockChain blc = manager.getBlockchain();
-		ObjectsResult res = new ObjectsResult();
+		ObjectsSearchRequest r = createPageRequest(limit, cursor);
+		writeObjectsPage(request, response, r, new ObjectsPageFetcher() {
+
+			@Override
+			public void fetch(Consumer<OpObject> consumer) {
+				blc.fetchAllObjects(type, r, consumer);
+			}
+		});
+	}
+
+	private interface ObjectsPageFetcher {
+		void fetch(Consumer<OpObject> consumer);
+	}
+
+	private ObjectsSearchRequest createPageRequest(int limit, String cursor) {
 		ObjectsSearchRequest r = new ObjectsSearchRequest();
 		if (limit < 0 || limit > LIMIT_RESULTS) {
 			limit = LIMIT_RESULTS;
 		}
 		r.limit = limit;
-		blc.fetchAllObjects(type, r);
-		res.objects = r.result;
-		return formatter.fullObjectToJson(res);
+		if (!OUtils.isEmpty(cursor)) {
+			r.afterKey = parseCursor(cursor);
+		}
+		return r;
+	}
+
+	// page is fetched before response is written, so db cursors are not kept open while client reads the response
+	// and failed fetch doesn't produce truncated response
+	private void writeObjectsPage(HttpServletRequest request, HttpServletResponse response, ObjectsSearchRequest r,
+			ObjectsPageFetcher fetcher) throws IOException {
+		List<OpObject> page = new ArrayList<OpObject>();
+		fetcher.fetch(new Consumer<OpObject>() {
+
+			@Override
+			public void accept(OpObject o) {
+				page.add(o);
+			}
+		});
+		try (JsonWriter w = openJsonResponse(request, response)) {
+			w.beginObject();
+			w.name("objects").beginArray();
+			for (OpObject o : page) {
+				formatter.fullObjectToJson(o, w);
+			}
+			w.endArray();
+			if (r.isLimitReached() && r.lastKey != null) {
+				w.name("cursor").value(formatCursor(r.lastKey));
+			}
+			w.endObject();
+		}
 	}
 
 	@GetMapping(path = "/objects-count", produces = "text/json;charset=UTF-8")
@@ -344,23 +493,81 @@ public class ApiController {
 		return formatter.fullObjectToJson(o);
 	}
 
+	/**
+	 * key - single key with comma separated parts (i.e. 'id1,id2'), 
+	 * keys - many keys separated by ';' (i.e. 'id1,id2;id3,id4') which are loaded in 1 request
+	 */
 	@GetMapping(path = "/objects-by-id", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String objects(@RequestParam(required = true) String type, @RequestParam(required = true) String key)
+	public String objects(@RequestParam(required = true) String type, @RequestParam(required = false) String key,
+			@RequestParam(required = false) String keys)
 			throws FailedVerificationException {
 		OpBlockChain blc = manager.getBlockchain();
-		OpObject obj;
-		if (!key.contains(",")) {
-			obj = blc.getObjectByName(type, key);
+		ObjectsResult res = new ObjectsResult();
+		if (!OUtils.isEmpty(keys)) {
+			List<CompoundKey> lst = new ArrayList<CompoundKey>();
+			for (String k : keys.split(";")) {
+				if (!OUtils.isEmpty(k)) {
+					lst.add(parseObjectKey(k));
+				}
+			}
+			if (lst.size() > LIMIT_RESULTS) {
+				throw new IllegalArgumentException("Too many keys requested: " + lst.size());
+			}
+			Map<CompoundKey, OpObject> objs = blc.getObjectsByNames(type, lst);
+			List<OpObject> ordered = new ArrayList<OpObject>();
+			for (CompoundKey k : lst) {
+				OpObject obj = objs.get(k);
+				if (obj != null) {
+					ordered.add(obj);
+				}
+			}
+			res.objects = ordered;
+		} else if (!OUtils.isEmpty(key)) {
+			OpObject obj;
+			if (!key.contains(",")) {
+				obj = blc.getObjectByName(type, key);
+			} else {
+				String[] ks = key.split(",");
+				obj = blc.getObjectByName(type, ks[0].trim(), ks[1].trim());
+			}
+			res.objects = obj == null ? Collections.emptyList() : Collections.singletonList(obj);
 		} else {
-			String[] keys = key.split(",");
-			obj = blc.getObjectByName(type, keys[0].trim(), keys[1].trim());
+			throw new IllegalArgumentException("Parameter 'key' or 'keys' should be specified");
 		}
-		ObjectsResult res = new ObjectsResult();
-		res.objects = obj == null ? Collections.emptyList() : Collections.singletonList(obj);
 		return formatter.fullObjectToJson(res);
 	}
 
+	private CompoundKey parseObjectKey(String key) {
+		List<String> parts = new ArrayList<String>();
+		for (String p : key.split(",")) {
+			parts.add(p.trim());
+		}
+		return new CompoundKey(0, parts);
+	}
+
+	// cursor is json array of key parts, so parts could contain any characters
+	private String formatCursor(CompoundKey key) {
+		List<String> parts = new ArrayList<String>();
+		for (int i = 0; i < key.size(); i++) {
+			parts.add(key.get(i));
+		}
+		return formatter.fullObjectToJson(parts);
+	}
+
+	private CompoundKey parseCursor(String cursor) {
+		String[] parts;
+		try {
+			parts = formatter.fromJson(new StringReader(cursor), String[].class);
+		} catch (JsonSyntaxException e) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+		}
+		if (parts == null || parts.length == 0) {
+			throw new IllegalArgumentException("Invalid cursor: " + cursor);
+		}
+		return new CompoundKey(0, Arrays.asList(parts));
+	}
+
 	@GetMapping(path = "/indices-by-type", produces = "text/json;charset=UTF-8")
 	@ResponseBody
 	public String getIndices(@RequestParam(required = false) String type) {
@@ -370,40 +577,53 @@ public class ApiController {
 
 	@GetMapping(path = "/objects-by-index", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String objectsByIndex(@RequestParam(required = true) String type,
+	public void objectsByIndex(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = true) String type,
 			@RequestParam(required = true) String index, @RequestParam(required = true) String key,
-			@RequestParam(required = false, defaultValue = "100") int limit) {
-		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
-		if (limit < 0 || limit > LIMIT_RESULTS) {
-			limit = LIMIT_RESULTS;
-		}
-		req.limit = limit;
-		ObjectsResult r = new ObjectsResult();
+			@RequestParam(required = false, defaultValue = "100") int limit,
+			@RequestParam(required = false) String cursor) throws IOException {
 		OpIndexColumn indexCol = manager.getIndex(type, index);
-		if (indexCol != null) {
-			manager.getBlockchain().fetchObjectsByIndex(type, indexCol, req, key);
-			r.objects = req.result;
-		} else {
+		if (indexCol == null) {
 			throw new UnsupportedOperationException();
 		}
-		return formatter.fullObjectToJson(r);
+		OpBlockChain blc = manager.getBlockchain();
+		ObjectsSearchRequest req = createPageRequest(limit, cursor);
+		writeObjectsPage(request, response, req, new ObjectsPageFetcher() {
+
+			@Override
+			public void fetch(Consumer<OpObject> consumer) {
+				blc.fetchObjectsByIndex(type, indexCol, req, consumer, key);
+			}
+		});
 	}
 
 	@GetMapping(path = "/history", produces = "text/json;charset=UTF-8")
 	@ResponseBody
-	public String history(@RequestParam(required = true) String type, @RequestParam(required = false) List<String> key,
+	public void history(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam(required = true) String type, @RequestParam(required = false) List<String> key,
 			@RequestParam(required = false, defaultValue = "100") int limit,
-			@RequestParam(required = true) String sort) {
-		if (!historyManager.isRunning()) {
-			return "{}";
+			@RequestParam(required = true) String sort) throws IOException {
+		HistoryObjectRequest historyObjectRequest = null;
+		if (historyManager.isRunning()) {
+			if (limit < 0 || limit > LIMIT_RESULTS) {
+				limit = LIMIT_RESULTS;
+			}
+			historyObjectRequest = new HistoryObjectRequest(type, key, limit, sort);
+			historyManager.retrieveHistory(historyObjectRequest);
 		}
-		if (limit < 0 || limit > LIMIT_RESULTS) {
-			limit = LIMIT_RESULTS;
+		try (JsonWriter w = openJsonResponse(request, response)) {
+			if (historyObjectRequest == null) {
+				w.beginObject().endObject();
+			} else if (historyObjectRequest.historySearchResult == null) {
+				w.nullValue();
+			} else {
+				w.beginArray();
+				for (HistoryEdit e : historyObjectRequest.historySearchResult) {
+					formatter.fullObjectToJson(e, w);
+				}
+				w.endArray();
+			}
 		}
-		HistoryObjectRequest historyObjectRequest = new HistoryObjectRequest(type, key, limit, sort);
-		historyManager.retrieveHistory(historyObjectRequest);
-
-		return formatter.fullObjectToJson(historyObjectRequest.historySearchResult);
 	}
 
 	@GetMapping(path = "/index", produces = "text/json;charset=UTF-8")
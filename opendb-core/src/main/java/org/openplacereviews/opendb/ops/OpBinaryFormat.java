@@ -0,0 +1,361 @@
+package org.openplacereviews.opendb.ops;
+
+import com.google.gson.JsonPrimitive;
+import org.openplacereviews.opendb.util.JsonFormatter;
+import org.openplacereviews.opendb.util.JsonFormatter.MapDeserializerDoubleAsIntFix;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary encoding of blocks, operations and objects used for replication.
+ * Format is a tagged stream of values with varint lengths, field names and short strings are written once per
+ * stream and referenced by index afterwards.
+ * Decoded values are normalized exactly as JSON parsing does (numbers to Long / Double, null map values are dropped),
+ * so decoded block is equal to the block parsed from json and has the same hashes.
+ */
+public class OpBinaryFormat {
+
+	public static final String CONTENT_TYPE = "application/x-opendb-binary";
+	// value of 'format' request parameter
+	public static final String FORMAT_NAME = "binary";
+
+	private static final int MAGIC = 0x4f444201; // 'ODB' + version 1
+	private static final byte KIND_BLOCK = 1;
+	private static final byte KIND_BLOCK_LIST = 2;
+
+	private static final byte TAG_NULL = 0;
+	private static final byte TAG_TRUE = 1;
+	private static final byte TAG_FALSE = 2;
+	private static final byte TAG_LONG = 3;
+	private static final byte TAG_DOUBLE = 4;
+	private static final byte TAG_STRING = 5;
+	private static final byte TAG_STRING_DICT = 6;
+	private static final byte TAG_STRING_REF = 7;
+	private static final byte TAG_LIST = 8;
+	private static final byte TAG_MAP = 9;
+
+	private static final int MAX_INTERNED_STRING = 96;
+	// protects from allocation by malformed length
+	private static final int MAX_STRING_BYTES = 1 << 24;
+
+	private final JsonFormatter formatter;
+	private final MapDeserializerDoubleAsIntFix numberFix = new MapDeserializerDoubleAsIntFix();
+
+	public OpBinaryFormat(JsonFormatter formatter) {
+		this.formatter = formatter;
+	}
+
+	public byte[] blockToBytes(OpBlock block) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			writeBlock(block, out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	public byte[] blocksToBytes(Collection<OpBlock> blocks, int blockDepth) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			writeBlocks(blocks, blockDepth, out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	public void writeBlock(OpBlock block, OutputStream os) throws IOException {
+		Writer w = new Writer(os, KIND_BLOCK);
+		w.writeBlock(block);
+		w.out.flush();
+	}
+
+	public void writeBlocks(Collection<OpBlock> blocks, int blockDepth, OutputStream os) throws IOException {
+		Writer w = new Writer(os, KIND_BLOCK_LIST);
+		w.writeVarLong(blockDepth);
+		w.writeVarLong(blocks.size());
+		for (OpBlock b : blocks) {
+			w.writeBlock(b);
+		}
+		w.out.flush();
+	}
+
+	public OpBlock readBlock(InputStream is) throws IOException {
+		Reader r = new Reader(is, KIND_BLOCK);
+		return r.readBlock();
+	}
+
+	/**
+	 * @return block depth
+	 */
+	public int readBlocks(InputStream is, Collection<OpBlock> blocks) throws IOException {
+		Reader r = new Reader(is, KIND_BLOCK_LIST);
+		int blockDepth = (int) r.readVarLong();
+		int sz = r.readLength();
+		for (int i = 0; i < sz; i++) {
+			blocks.add(r.readBlock());
+		}
+		return blockDepth;
+	}
+
+	private class Writer {
+		private final DataOutputStream out;
+		private final Map<String, Integer> dictionary = new HashMap<>();
+
+		Writer(OutputStream os, byte kind) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(os));
+			out.writeInt(MAGIC);
+			out.writeByte(kind);
+		}
+
+		void writeBlock(OpBlock b) throws IOException {
+			writeFields(b.fields);
+			writeVarLong(b.operations.size());
+			for (OpOperation o : b.operations) {
+				writeOperation(o);
+			}
+		}
+
+		void writeOperation(OpOperation o) throws IOException {
+			writeString(o.type == null ? "" : o.type, true);
+			writeFields(o.fields);
+			writeObjects(o.getCreated());
+			writeObjects(o.getEdited());
+		}
+
+		void writeObjects(List<OpObject> objects) throws IOException {
+			writeVarLong(objects.size());
+			for (OpObject obj : objects) {
+				writeFields(obj.fields);
+			}
+		}
+
+		void writeFields(Map<String, Object> fields) throws IOException {
+			int sz = 0;
+			for (Map.Entry<String, Object> e : fields.entrySet()) {
+				if (e.getValue() != null && !OpObject.F_EVAL.equals(e.getKey())) {
+					sz++;
+				}
+			}
+			writeVarLong(sz);
+			for (Map.Entry<String, Object> e : fields.entrySet()) {
+				if (e.getValue() != null && !OpObject.F_EVAL.equals(e.getKey())) {
+					writeString(e.getKey(), true);
+					writeValue(e.getValue());
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		void writeValue(Object v) throws IOException {
+			if (v == null) {
+				out.writeByte(TAG_NULL);
+			} else if (v instanceof String) {
+				String s = (String) v;
+				writeString(s, s.length() <= MAX_INTERNED_STRING);
+			} else if (v instanceof Boolean) {
+				out.writeByte(((Boolean) v) ? TAG_TRUE : TAG_FALSE);
+			} else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+				out.writeByte(TAG_LONG);
+				writeVarLong(zigzag(((Number) v).longValue()));
+			} else if (v instanceof Number) {
+				// same conversion as json serialization + parsing does
+				Object n = numberFix.read(new JsonPrimitive((Number) v));
+				if (n instanceof Long) {
+					out.writeByte(TAG_LONG);
+					writeVarLong(zigzag((Long) n));
+				} else {
+					out.writeByte(TAG_DOUBLE);
+					out.writeDouble(((Number) n).doubleValue());
+				}
+			} else if (v instanceof Map) {
+				Map<Object, Object> m = (Map<Object, Object>) v;
+				TreeMap<String, Object> sorted = new TreeMap<>();
+				for (Map.Entry<Object, Object> e : m.entrySet()) {
+					if (e.getValue() != null) {
+						sorted.put(String.valueOf(e.getKey()), e.getValue());
+					}
+				}
+				out.writeByte(TAG_MAP);
+				writeVarLong(sorted.size());
+				for (Map.Entry<String, Object> e : sorted.entrySet()) {
+					writeString(e.getKey(), true);
+					writeValue(e.getValue());
+				}
+			} else if (v instanceof Collection) {
+				Collection<Object> c = (Collection<Object>) v;
+				out.writeByte(TAG_LIST);
+				writeVarLong(c.size());
+				for (Object o : c) {
+					writeValue(o);
+				}
+			} else {
+				writeValue(numberFix.read(formatter.toJsonElement(v)));
+			}
+		}
+
+		void writeString(String s, boolean intern) throws IOException {
+			if (intern) {
+				Integer ind = dictionary.get(s);
+				if (ind != null) {
+					out.writeByte(TAG_STRING_REF);
+					writeVarLong(ind);
+					return;
+				}
+				dictionary.put(s, dictionary.size());
+				out.writeByte(TAG_STRING_DICT);
+			} else {
+				out.writeByte(TAG_STRING);
+			}
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bytes.length);
+			out.write(bytes);
+		}
+
+		void writeVarLong(long v) throws IOException {
+			while ((v & ~0x7fL) != 0) {
+				out.writeByte((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			out.writeByte((int) v);
+		}
+	}
+
+	private static class Reader {
+		private final DataInputStream in;
+		private final List<String> dictionary = new ArrayList<>();
+
+		Reader(InputStream is, byte kind) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(is));
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Unsupported binary format");
+			}
+			byte k = in.readByte();
+			if (k != kind) {
+				throw new IOException("Unexpected content of binary stream: " + k);
+			}
+		}
+
+		OpBlock readBlock() throws IOException {
+			OpBlock b = new OpBlock();
+			b.fields = readFields();
+			int sz = readLength();
+			for (int i = 0; i < sz; i++) {
+				b.operations.add(readOperation());
+			}
+			return b;
+		}
+
+		OpOperation readOperation() throws IOException {
+			OpOperation o = new OpOperation();
+			o.type = (String) readValue();
+			TreeMap<String, Object> fields = readFields();
+			int sz = readLength();
+			for (int i = 0; i < sz; i++) {
+				o.addCreated(readObject());
+			}
+			sz = readLength();
+			for (int i = 0; i < sz; i++) {
+				o.addEdited(readObject());
+			}
+			o.fields = fields;
+			return o;
+		}
+
+		OpObject readObject() throws IOException {
+			OpObject obj = new OpObject();
+			obj.fields = readFields();
+			return obj;
+		}
+
+		TreeMap<String, Object> readFields() throws IOException {
+			TreeMap<String, Object> m = new TreeMap<>();
+			int sz = readLength();
+			for (int i = 0; i < sz; i++) {
+				String k = (String) readValue();
+				m.put(k, readValue());
+			}
+			return m;
+		}
+
+		Object readValue() throws IOException {
+			byte tag = in.readByte();
+			switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_LONG:
+				return unzigzag(readVarLong());
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_STRING:
+				return readUtf8();
+			case TAG_STRING_DICT:
+				String s = readUtf8();
+				dictionary.add(s);
+				return s;
+			case TAG_STRING_REF:
+				int ind = readLength();
+				if (ind >= dictionary.size()) {
+					throw new IOException("Illegal string reference: " + ind);
+				}
+				return dictionary.get(ind);
+			case TAG_LIST:
+				int lsz = readLength();
+				List<Object> l = new ArrayList<>();
+				for (int i = 0; i < lsz; i++) {
+					l.add(readValue());
+				}
+				return l;
+			case TAG_MAP:
+				return readFields();
+			default:
+				throw new IOException("Unknown tag: " + tag);
+			}
+		}
+
+		String readUtf8() throws IOException {
+			int len = readLength();
+			if (len > MAX_STRING_BYTES) {
+				throw new IOException("String is too long: " + len);
+			}
+			byte[] bytes = new byte[len];
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		int readLength() throws IOException {
+			long v = readVarLong();
+			if (v < 0 || v > Integer.MAX_VALUE) {
+				throw new IOException("Illegal length: " + v);
+			}
+			return (int) v;
+		}
+
+		long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = in.readUnsignedByte();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
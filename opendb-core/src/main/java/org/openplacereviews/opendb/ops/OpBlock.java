@@ -4,6 +4,7 @@ import com.google.gson.*;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.TreeMap;
@@ -38,6 +39,9 @@ public class OpBlock extends OpObject {
 	// cache for immutable
 	private int blockId = -1;
 	private String rawHash;
+	String merkleTreeHash;
+	String sigMerkleTreeHash;
+	int blockSize = -1;
 	
 	public OpBlock() {
 	}
@@ -51,6 +55,20 @@ public class OpBlock extends OpObject {
 		return new OpBlock(b, true, rules);
 	}
 	
+	// block with the same header and only operations of specified types (immutable operations are shared)
+	public static OpBlock filterOperations(OpBlock b, Collection<String> opTypes) {
+		return new OpBlock(b, opTypes).makeImmutable();
+	}
+	
+	private OpBlock(OpBlock cp, Collection<String> opTypes) {
+		super(cp, false);
+		for (OpOperation o : cp.operations) {
+			if (opTypes.contains(o.getType())) {
+				operations.add(o);
+			}
+		}
+	}
+	
 	private OpBlock(OpBlock cp, boolean copyCacheFields, OpBlockchainRules rules) {
 		super(cp, copyCacheFields);
 		if(cp.operations.size() > 0){
@@ -87,6 +105,16 @@ public class OpBlock extends OpObject {
 		return this;
 	}
 	
+	@Override
+	public long getEvalVersion() {
+		// versions only grow, so sum changes whenever eval fields of block or any operation change
+		long v = super.getEvalVersion();
+		for (OpOperation o : operations) {
+			v += o.getEvalVersion();
+		}
+		return v;
+	}
+
 	public List<OpOperation> getOperations() {
 		return operations;
 	}
@@ -12,8 +12,11 @@ import static org.openplacereviews.opendb.ops.OpObject.F_VOTE;
 import static org.openplacereviews.opendb.ops.OpOperation.F_REF;
 
 import java.security.KeyPair;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,9 +26,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 import org.openplacereviews.opendb.ops.OpBlockchainRules.ErrorType;
@@ -34,6 +40,7 @@ import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
 import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
+import org.openplacereviews.opendb.util.BloomFilter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 
@@ -73,6 +80,11 @@ public class OpBlockChain {
 	public static final int LOCKED_STATE = 2; // FINAL STATE. locked successfully and could be used as parent superblock
 	public static final int LOCKED_BY_USER = 4; // locked by user and it could be unlocked by user
 	public static final OpBlockChain NULL = new OpBlockChain(true);
+	// merged index of latest object versions is built for locked chains to avoid walking through all superblocks
+	public static boolean USE_LATEST_VERSION_INDEX = false;
+	public static boolean COMPACT_RUNTIME_OBJECTS = false;
+	public static boolean COMPRESS_RUNTIME_OBJECTS = false;
+	private static final int LIVE_OBJECTS_BATCH_SIZE = 1000;
 	
 	// 0-0 represents locked or unlocked state for blockchain
 	private volatile int locked = UNLOCKED;
@@ -97,6 +109,15 @@ public class OpBlockChain {
 	private final Deque<OpOperation> queueOperations = new ConcurrentLinkedDeque<OpOperation>();
 
 	private final Map<String, OpOperation> blockOperations = new ConcurrentHashMap<>();
+
+	// 5. merged index of latest object versions in this chain and all parents (only for locked chain)
+	private final Map<String, OpPrivateLatestVersionIndex> latestIndex = new ConcurrentHashMap<>();
+
+	// 6. change of live (not deleted) objects amount by type comparing to parent (for runtime chain)
+	private final Map<String, Integer> liveObjectsDelta = new ConcurrentHashMap<>();
+	// keys created with explicit id which weren't present in this chain before, they are counted in liveObjectsDelta
+	// as new objects and corrected lazily in a batch if they are present in parent (see checkCreatedKeys)
+	private final Map<String, Set<CompoundKey>> uncheckedCreatedKeys = new ConcurrentHashMap<>();
 	
 
 	private OpBlockChain(boolean nullParent) {
@@ -145,6 +166,7 @@ public class OpBlockChain {
 
 		atomicSetParent(parentToMerge.parent);
 		copyAndMergeWithParent(copy, parentToMerge);
+		copyLatestVersionIndex(copy);
 	}
 
 	public synchronized void validateLocked() {
@@ -232,6 +254,8 @@ public class OpBlockChain {
 		locked = LOCKED_OP_IN_PROGRESS;
 		try {
 			objByName.clear();
+			liveObjectsDelta.clear();
+			uncheckedCreatedKeys.clear();
 			queueOperations.clear();
 			locked = UNLOCKED;
 		} finally {
@@ -277,6 +301,56 @@ public class OpBlockChain {
 		return block;
 	}
 
+	/**
+	 * Restores state of empty runtime chain saved by snapshot without validation of blocks and operations.
+	 * @param fullBlocks blocks in order from the oldest to the newest connected to the parent chain
+	 * @param objects latest versions of objects of this chain only (deleted objects included)
+	 */
+	public synchronized void restoreSnapshotState(List<OpBlock> fullBlocks, List<OpOperation> queue,
+			Map<String, Map<CompoundKey, OpObject>> objects, Map<String, Integer> deltas) {
+		validateIsUnlocked();
+		if (dbAccess != null) {
+			throw new UnsupportedOperationException();
+		}
+		if (blocks.size() != 0 || !isQueueEmpty() || !objByName.isEmpty()) {
+			throw new IllegalStateException("Snapshot state could be restored only to an empty chain");
+		}
+		String lastBlockHash = getLastBlockRawHash();
+		for (OpBlock block : fullBlocks) {
+			block.checkImmutable();
+			if (!OUtils.equals(lastBlockHash, block.getPrevRawHash())) {
+				throw new IllegalArgumentException(String.format("Block '%s' is not connected to '%s'",
+						block.getRawHash(), lastBlockHash));
+			}
+			lastBlockHash = block.getRawHash();
+		}
+		locked = LOCKED_OP_IN_PROGRESS;
+		try {
+			for (OpBlock block : fullBlocks) {
+				queueOperations.addAll(block.getOperations());
+				atomicCreateBlockFromAllOps(block);
+			}
+			queueOperations.addAll(queue);
+			for (Entry<String, Map<CompoundKey, OpObject>> e : objects.entrySet()) {
+				OpPrivateObjectInstancesById oinf = getOrCreateObjectsByIdMap(e.getKey());
+				for (Entry<CompoundKey, OpObject> o : e.getValue().entrySet()) {
+					OpObject obj = o.getValue();
+					oinf.add(new ArrayList<>(o.getKey()), obj == OpObject.NULL ? null : obj);
+				}
+			}
+			for (Entry<String, Integer> e : deltas.entrySet()) {
+				if (e.getValue() != 0) {
+					liveObjectsDelta.put(e.getKey(), e.getValue());
+				}
+			}
+			locked = UNLOCKED;
+		} finally {
+			if (locked == LOCKED_OP_IN_PROGRESS) {
+				locked = LOCKED_ERROR;
+			}
+		}
+	}
+
 	public synchronized boolean rebaseOperations(OpBlockChain newParent) {
 		validateIsUnlocked();
 		newParent.validateLocked();
@@ -379,6 +453,13 @@ public class OpBlockChain {
 			oinf.add(deletedRef, dl);
 		}
 		queueOperations.add(u);
+		if (validationCtx.liveObjectsDelta != 0) {
+			liveObjectsDelta.merge(objType, validationCtx.liveObjectsDelta, Integer::sum);
+		}
+		if (!validationCtx.uncheckedCreatedKeys.isEmpty()) {
+			uncheckedCreatedKeys.computeIfAbsent(objType, t -> ConcurrentHashMap.newKeySet())
+					.addAll(validationCtx.uncheckedCreatedKeys);
+		}
 		for (OpObject editedOpOpbject : validationCtx.newObjsCache.keySet()) {
 			OpPrivateObjectInstancesById oinf = getOrCreateObjectsByIdMap(objType);
 			oinf.add(editedOpOpbject.getId(), editedOpOpbject);
@@ -425,6 +506,8 @@ public class OpBlockChain {
 		blockOperations.clear();
 		queueOperations.clear();
 		objByName.clear();
+		liveObjectsDelta.clear();
+		uncheckedCreatedKeys.clear();
 		Iterator<OpOperation> it = ops.iterator();
 		while(it.hasNext()) {
 			OpOperation o = it.next();
@@ -458,6 +541,14 @@ public class OpBlockChain {
 			nid.putObjects(pid, true);
 			nid.putObjects(cid, true);
 		}
+		// deltas are relative to the next parent, so merged delta is a sum
+		copy.checkCreatedKeys();
+		parent.checkCreatedKeys();
+		for (Map<String, Integer> d : Arrays.asList(parent.liveObjectsDelta, copy.liveObjectsDelta)) {
+			for (Entry<String, Integer> e : d.entrySet()) {
+				liveObjectsDelta.merge(e.getKey(), e.getValue(), Integer::sum);
+			}
+		}
 
 		// 3. add blockOperations and queueOperations
 		blockOperations.putAll(copy.blockOperations);
@@ -530,6 +621,21 @@ public class OpBlockChain {
 		return blocks.getAllBlocks();
 	}
 
+	/**
+	 * Passes blocks of superblock one by one from the first to the last block without loading all of them at once.
+	 */
+	public void fetchSuperblockFullBlocks(Consumer<OpBlock> consumer) {
+		fetchSuperblockFullBlocks(null, consumer);
+	}
+
+	/**
+	 * @param opTypes only operations of these types are kept in blocks (null - all operations),
+	 *  blocks with filtered operations couldn't be validated
+	 */
+	public void fetchSuperblockFullBlocks(Collection<String> opTypes, Consumer<OpBlock> consumer) {
+		blocks.fetchAllBlocks(opTypes, consumer);
+	}
+
 	public Collection<String> getRawSuperblockTypes() {
 		if (dbAccess != null) {
 			return dbAccess.getObjectTypes();
@@ -538,8 +644,26 @@ public class OpBlockChain {
 	}
 
 	public Stream<Entry<CompoundKey, OpObject>> getRawSuperblockObjects(String type) {
+		return getRawSuperblockObjects(type, false);
+	}
+
+	/**
+	 * @param onlyKeys objects without content could be returned (only deleted state is set)
+	 */
+	public Stream<Entry<CompoundKey, OpObject>> getRawSuperblockObjects(String type, boolean onlyKeys) {
 		OpPrivateObjectInstancesById bid = getOrCreateObjectsByIdMap(type);
-		return bid.getRawObjects();
+		return bid.getRawObjects(onlyKeys);
+	}
+
+	/**
+	 * Returns objects (including deleted) of this superblock only without content
+	 */
+	public Map<CompoundKey, OpObject> getRawSuperblockObjectsByKeys(String type, Collection<CompoundKey> keys) throws DBStaleException {
+		return getOrCreateObjectsByIdMap(type).getByKeys(keys, false);
+	}
+
+	public int countRawSuperblockObjects(String type) throws DBStaleException {
+		return getOrCreateObjectsByIdMap(type).countObjects();
 	}
 
 	public List<OpBlock> getBlockHeaders(int depth) {
@@ -648,6 +772,9 @@ public class OpBlockChain {
 		if (isNullBlock()) {
 			return null;
 		}
+		if (isLatestVersionIndexed()) {
+			return getObjectByLatestVersionIndex(type, new CompoundKey(key, secondary));
+		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
 			Metric m = mFetchById.start();
@@ -667,6 +794,9 @@ public class OpBlockChain {
 		if (isNullBlock()) {
 			return null;
 		}
+		if (isLatestVersionIndexed()) {
+			return getObjectByLatestVersionIndex(type, new CompoundKey(0, o));
+		}
 		OpPrivateObjectInstancesById ot = getOrCreateObjectsByIdMap(type);
 		if (ot != null) {
 			Metric m = mFetchById.start();
@@ -682,19 +812,276 @@ public class OpBlockChain {
 		return parent.getObjectByName(type, o);
 	}
 
+	/**
+	 * Batch version of getObjectByName, returns only found objects
+	 */
+	public Map<CompoundKey, OpObject> getObjectsByNames(String type, Collection<CompoundKey> keys) throws DBStaleException {
+		Map<CompoundKey, OpObject> res = new HashMap<>();
+		Set<CompoundKey> toFind = new HashSet<>(keys);
+		OpBlockChain blc = this;
+		while (!blc.isNullBlock() && !toFind.isEmpty()) {
+			if (blc.isLatestVersionIndexed()) {
+				blc.getObjectsByLatestVersionIndex(type, toFind, res);
+				break;
+			}
+			Metric m = mFetchByIds.start();
+			Map<CompoundKey, OpObject> found = blc.getOrCreateObjectsByIdMap(type).getByKeys(toFind, true);
+			m.capture();
+			for (Entry<CompoundKey, OpObject> e : found.entrySet()) {
+				toFind.remove(e.getKey());
+				if (!e.getValue().isDeleted()) {
+					res.put(e.getKey(), e.getValue());
+				}
+			}
+			blc = blc.parent;
+		}
+		return res;
+	}
+
+	private boolean isLatestVersionIndexed() {
+		// only locked chain can't change and could maintain merged index
+		return USE_LATEST_VERSION_INDEX && locked == LOCKED_STATE;
+	}
+
+	private OpObject getObjectByLatestVersionIndex(String type, CompoundKey k) throws DBStaleException {
+		OpBlockChain owner = getLatestVersionIndex(type).getOwner(k);
+		if (owner == null || owner == OpPrivateLatestVersionIndex.TOMBSTONE) {
+			return null;
+		}
+		Metric m = mFetchById.start();
+		OpObject obj = owner.getOrCreateObjectsByIdMap(type).getByKey(k, true);
+		m.capture();
+		if (obj == null || obj.isDeleted()) {
+			return null;
+		}
+		return obj;
+	}
+
+	private void getObjectsByLatestVersionIndex(String type, Collection<CompoundKey> keys, Map<CompoundKey, OpObject> res) throws DBStaleException {
+		OpPrivateLatestVersionIndex idx = getLatestVersionIndex(type);
+		Map<OpBlockChain, List<CompoundKey>> keysByOwner = new HashMap<>();
+		for (CompoundKey k : keys) {
+			OpBlockChain owner = idx.getOwner(k);
+			if (owner != null && owner != OpPrivateLatestVersionIndex.TOMBSTONE) {
+				keysByOwner.computeIfAbsent(owner, o -> new ArrayList<>()).add(k);
+			}
+		}
+		for (Entry<OpBlockChain, List<CompoundKey>> e : keysByOwner.entrySet()) {
+			Metric m = mFetchByIds.start();
+			Map<CompoundKey, OpObject> found = e.getKey().getOrCreateObjectsByIdMap(type).getByKeys(e.getValue(), true);
+			m.capture();
+			for (Entry<CompoundKey, OpObject> f : found.entrySet()) {
+				if (!f.getValue().isDeleted()) {
+					res.put(f.getKey(), f.getValue());
+				}
+			}
+		}
+	}
+
+	private OpPrivateLatestVersionIndex getLatestVersionIndex(String type) throws DBStaleException {
+		OpBlockChain p = parent;
+		OpPrivateLatestVersionIndex idx = latestIndex.get(type);
+		if (idx != null && idx.isValid(p)) {
+			return idx;
+		}
+		Metric m = mBuildLatestIndex.start();
+		OpPrivateLatestVersionIndex pidx = p.latestIndex.get(type);
+		if (pidx != null && pidx.isValid(p.parent)) {
+			// only objects of this chain are stored, others are looked up in the parent index
+			idx = new OpPrivateLatestVersionIndex(p, pidx);
+		} else {
+			idx = new OpPrivateLatestVersionIndex(p);
+			Deque<OpBlockChain> chains = new ArrayDeque<OpBlockChain>();
+			OpBlockChain c = p;
+			while (!c.isNullBlock()) {
+				chains.push(c);
+				c = c.parent;
+			}
+			// from bottom to top so newer versions override older
+			for (OpBlockChain ch : chains) {
+				ch.fillLatestVersionIndex(idx, type);
+			}
+		}
+		fillLatestVersionIndex(idx, type);
+		latestIndex.put(type, idx);
+		m.capture();
+		return idx;
+	}
+
+	private void fillLatestVersionIndex(OpPrivateLatestVersionIndex idx, String type) throws DBStaleException {
+		OpPrivateObjectInstancesById oi = dbAccess == null ? objByName.get(type) : getOrCreateObjectsByIdMap(type);
+		if (oi == null) {
+			return;
+		}
+		try (Stream<Entry<CompoundKey, OpObject>> stream = dbAccess == null ? oi.getRawObjects(false) :
+				dbAccess.streamObjects(type, -1, true, null)) {
+			Iterator<Entry<CompoundKey, OpObject>> it = stream.iterator();
+			while (it.hasNext()) {
+				Entry<CompoundKey, OpObject> e = it.next();
+				idx.put(e.getKey(), this, e.getValue().isDeleted());
+			}
+		}
+	}
+
+	private void copyLatestVersionIndex(OpBlockChain copy) {
+		// merged chain replaces copy and its parent, so objects owned by them are owned by this chain now
+		for (Entry<String, OpPrivateLatestVersionIndex> e : copy.latestIndex.entrySet()) {
+			if (e.getValue().isValid(copy.parent)) {
+				OpPrivateLatestVersionIndex idx = e.getValue().createMergedIndex(parent);
+				fillLatestVersionIndex(idx, e.getKey());
+				latestIndex.put(e.getKey(), idx);
+			}
+		}
+	}
+
+	/**
+	 * Returns state derived from all objects of the type (built by builder from fetched objects).
+	 * State is shared by all chains with the same rules and it is rebuilt only when objects of the type are changed.
+	 * @param extraVersion is compared with version of cached state as well (i.e. version of external data used by builder)
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getDerivedState(String type, String key, Object extraVersion, Function<List<OpObject>, T> builder) throws DBStaleException {
+		if (isNullBlock()) {
+			return builder.apply(new ArrayList<OpObject>());
+		}
+		List<Object> version = getObjectsVersion(type);
+		version.add(extraVersion);
+		OpPrivateDerivedStateCache cache = rules.getDerivedStateCache();
+		Object state = cache.get(key, version);
+		if (state == null) {
+			Metric m = mBuildDerivedState.start();
+			ObjectsSearchRequest req = new ObjectsSearchRequest();
+			fetchAllObjects(type, req);
+			state = builder.apply(req.result);
+			cache.put(key, version, state);
+			m.capture();
+		}
+		return (T) state;
+	}
+
+	// objects of the type are identified by object maps of superblocks which contain them and their edit versions
+	private List<Object> getObjectsVersion(String type) throws DBStaleException {
+		List<Object> version = new ArrayList<>();
+		OpBlockChain c = this;
+		while (!c.isNullBlock()) {
+			OpPrivateObjectInstancesById oi = c.dbAccess == null ? c.objByName.get(type) : c.getOrCreateObjectsByIdMap(type);
+			if (oi != null && (c.dbAccess != null || oi.countObjects() > 0)) {
+				version.add(new OpPrivateDerivedStateCache.WeakIdentityKey(oi));
+				version.add(oi.getEditVersion());
+			}
+			c = c.parent;
+		}
+		return version;
+	}
+
 	public void setCacheAfterSearch(ObjectsSearchRequest request, Object cacheObject) {
 		if(request.objToSetCache != null) {
 			request.objToSetCache.setCacheObject(cacheObject, request.editVersion);
 		}
 	}
 	
-	public int countAllObjects(String type) {
-		if(isNullBlock()) {
+	/**
+	 * Exact amount of live objects, it is calculated from stored deltas of superblocks without scanning objects
+	 */
+	public int countAllObjects(String type) throws DBStaleException {
+		int cnt = 0;
+		OpBlockChain c = this;
+		while (!c.isNullBlock()) {
+			cnt += c.getLiveObjectsDelta(type);
+			c = c.parent;
+		}
+		return cnt;
+	}
+
+	public int getLiveObjectsDelta(String type) throws DBStaleException {
+		if (isNullBlock()) {
 			return 0;
 		}
-		OpPrivateObjectInstancesById oi = getOrCreateObjectsByIdMap(type);
-		int sz = oi.countObjects();
-		return sz + parent.countAllObjects(type);
+		Integer d;
+		if (dbAccess == null) {
+			checkCreatedKeys();
+			d = liveObjectsDelta.get(type);
+		} else {
+			d = getLiveObjectsDeltas().get(type);
+		}
+		return d == null ? 0 : d;
+	}
+
+	/**
+	 * Change of live objects amount by type comparing to parent superblock (created minus deleted objects),
+	 * map contains all object types of superblock
+	 */
+	public Map<String, Integer> getLiveObjectsDeltas() throws DBStaleException {
+		Map<String, Integer> res = new TreeMap<>();
+		if (isNullBlock()) {
+			return res;
+		}
+		if (dbAccess == null) {
+			checkCreatedKeys();
+			for (Entry<String, OpPrivateObjectInstancesById> e : objByName.entrySet()) {
+				if (e.getValue().countObjects() > 0) {
+					res.put(e.getKey(), 0);
+				}
+			}
+			res.putAll(liveObjectsDelta);
+			return res;
+		}
+		Map<String, Integer> stored = dbAccess.getLiveObjectsDeltas();
+		if (stored != null) {
+			return stored;
+		}
+		synchronized (dbAccess) {
+			stored = dbAccess.getLiveObjectsDeltas();
+			if (stored != null) {
+				return stored;
+			}
+			// superblock was saved before deltas were stored, so it is calculated once
+			for (String type : dbAccess.getObjectTypes()) {
+				res.put(type, calculateLiveObjectsDelta(type));
+			}
+			dbAccess.saveLiveObjectsDeltas(res);
+		}
+		return res;
+	}
+
+	private void checkCreatedKeys() throws DBStaleException {
+		if (uncheckedCreatedKeys.isEmpty()) {
+			return;
+		}
+		synchronized (uncheckedCreatedKeys) {
+			for (Entry<String, Set<CompoundKey>> e : uncheckedCreatedKeys.entrySet()) {
+				List<CompoundKey> keys = new ArrayList<>(e.getValue());
+				if (keys.isEmpty()) {
+					continue;
+				}
+				// created object replaced existing object of parent
+				int existing = parent.getObjectsByNames(e.getKey(), keys).size();
+				if (existing != 0) {
+					liveObjectsDelta.merge(e.getKey(), -existing, Integer::sum);
+				}
+				e.getValue().removeAll(keys);
+			}
+		}
+	}
+
+	private int calculateLiveObjectsDelta(String type) throws DBStaleException {
+		int delta = 0;
+		List<CompoundKey> keys = new ArrayList<>();
+		try (Stream<Entry<CompoundKey, OpObject>> objects = getRawSuperblockObjects(type)) {
+			Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
+			while (it.hasNext()) {
+				Entry<CompoundKey, OpObject> e = it.next();
+				if (!e.getValue().isDeleted()) {
+					delta++;
+				}
+				keys.add(e.getKey());
+				if (keys.size() >= LIVE_OBJECTS_BATCH_SIZE || !it.hasNext()) {
+					delta -= parent.getObjectsByNames(type, keys).size();
+					keys.clear();
+				}
+			}
+		}
+		return delta;
 	}
 
 	public ObjectsSearchRequest fetchAllObjects(String type, ObjectsSearchRequest request) throws DBStaleException {
@@ -731,51 +1118,62 @@ public class OpBlockChain {
 		m.capture();
 	}
 	
+	/**
+	 * Passes live objects sorted by key to the consumer while they are read from superblocks
+	 * (request.result and request.keys are not filled), request.lastKey could be used as afterKey of the next page
+	 */
+	public void fetchAllObjects(String type, ObjectsSearchRequest request, Consumer<OpObject> consumer) throws DBStaleException {
+		mergeObjects(type, request, null, consumer);
+	}
+	
+	public void fetchObjectsByIndex(String type, OpIndexColumn index, ObjectsSearchRequest request,
+			Consumer<OpObject> consumer, Object... argsToSearch) throws DBStaleException {
+		mergeObjects(type, request, index, consumer, argsToSearch);
+	}
 
 	private Map<CompoundKey, OpObject> fetchObjectsInternal(String type, ObjectsSearchRequest request, OpIndexColumn col, Object... args) throws DBStaleException {
 		Map<CompoundKey, OpObject> res = new LinkedHashMap<>();
+		mergeObjects(type, request, col, new Consumer<OpObject>() {
+
+			@Override
+			public void accept(OpObject t) {
+				res.put(request.lastKey, t);
+			}
+		}, args);
+		return res;
+	}
+
+	private void mergeObjects(String type, ObjectsSearchRequest request, OpIndexColumn col, Consumer<OpObject> consumer, 
+			Object... args) throws DBStaleException {
 		if(isNullBlock()) {
-			return res;
+			return;
 		}
-		String mid = "blc.fetch." + (col == null ? "all" : col.getIndexId());
-		mid += isDbAccessed()?  ".db" : ".ram";
+		String mid = "blc.fetch." + (col == null ? "all" : col.getIndexId()) + ".merge";
 		Metric m = PerformanceMetrics.i().getMetric(mid).start();
-		OpPrivateObjectInstancesById o = getOrCreateObjectsByIdMap(type);
-		// don't check for all queries
-		if (o != null) {
-			Stream<Entry<CompoundKey, OpObject>> stream = o.fetchObjects(request, getSuperblockSize(), col, args);
-			Iterator<Entry<CompoundKey, OpObject>> it = stream.iterator();
+		// index streams are filtered, so objects overridden in upper superblocks need to be checked by key
+		try (OpPrivateObjectsMergeIterator it = new OpPrivateObjectsMergeIterator(col != null)) {
+			// streams are not limited (deleted and shadowed objects are skipped by merge),
+			// they are read lazily and closed as soon as the page is full
+			OpBlockChain c = this;
+			while (!c.isNullBlock()) {
+				OpPrivateObjectInstancesById o = c.getOrCreateObjectsByIdMap(type);
+				it.addLevel(o, o.fetchSortedObjects(request, c.getSuperblockSize(), col, args));
+				c = c.parent;
+			}
 			while (it.hasNext()) {
 				Entry<CompoundKey, OpObject> e = it.next();
-				res.put(e.getKey(), e.getValue());
+				if (e.getValue() == null || e.getValue().isDeleted()) {
+					continue;
+				}
+				request.lastKey = e.getKey();
+				consumer.accept(e.getValue());
 				request.internalProgress++;
 				if (request.limit >= 0 && request.internalProgress >= request.limit) {
-					m.capture();
-					return res;
+					break;
 				}
 			}
 		}
 		m.capture();
-		// capture parent results
-		Map<CompoundKey, OpObject> prres = parent.fetchObjectsInternal(type, request, col, args);
-		// HERE we need to check that newer version doesn't exist in current blockchain
-		prres.putAll(res);
-		if (col != null) {
-			Iterator<Entry<CompoundKey, OpObject>> it = prres.entrySet().iterator();
-			while(it.hasNext()) {
-				Entry<CompoundKey, OpObject> entry = it.next();
-				CompoundKey c = entry.getKey();
-				if(!res.containsKey(c)) {
-					OpObject i = o.getByKey(c, false);
-					if (i != null) {
-						// object was overridden
-						it.remove();
-					}
-				}
-			}
-		}
-		res = prres;
-		return res;
 	}
 
 	private OpPrivateObjectInstancesById getOrCreateObjectsByIdMap(String type) {
@@ -785,7 +1183,8 @@ public class OpBlockChain {
 		}
 		OpPrivateObjectInstancesById oi = objByName.get(type);
 		if(oi == null) {
-			oi = new OpPrivateObjectInstancesById(type, dbAccess);
+			oi = new OpPrivateObjectInstancesById(type, dbAccess,
+					COMPACT_RUNTIME_OBJECTS ? rules.getFormatter() : null, COMPRESS_RUNTIME_OBJECTS);
 			objByName.put(type, oi);
 		}
 		return oi;
@@ -876,6 +1275,18 @@ public class OpBlockChain {
 	private boolean prepareReferencedObjects(OpOperation u, LocalValidationCtx ctx) {
 		Map<String, List<String>> refs = u.getRef();
 		if (refs != null) {
+			// load referenced objects of the same type in 1 request
+			Map<String, List<CompoundKey>> refKeysByType = new HashMap<>();
+			for (List<String> refObjName : refs.values()) {
+				if (refObjName.size() > 1) {
+					refKeysByType.computeIfAbsent(refObjName.get(0), t -> new ArrayList<>())
+							.add(new CompoundKey(1, refObjName));
+				}
+			}
+			Map<String, Map<CompoundKey, OpObject>> refObjsByType = new HashMap<>();
+			for (Entry<String, List<CompoundKey>> e : refKeysByType.entrySet()) {
+				refObjsByType.put(e.getKey(), getObjectsByNames(e.getKey(), e.getValue()));
+			}
 			Iterator<Entry<String, List<String>>> it = refs.entrySet().iterator();
 			while (it.hasNext()) {
 				Entry<String, List<String>> e = it.next();
@@ -884,13 +1295,7 @@ public class OpBlockChain {
 				OpObject oi = null;
 				if (refObjName.size() > 1) {
 					// type is necessary
-					OpBlockChain blc = this;
-					String objType = refObjName.get(0);
-					List<String> refKey = refObjName.subList(1, refObjName.size());
-					while (blc != null && oi == null) {
-						oi = blc.getObjectByName(objType, refKey);
-						blc = blc.parent;
-					}
+					oi = refObjsByType.get(refObjName.get(0)).get(new CompoundKey(1, refObjName));
 				}
 				if (oi == null) {
 					return rules.error(u, ErrorType.REF_OBJ_NOT_FOUND, u.getHash(), refObjName);
@@ -942,12 +1347,21 @@ public class OpBlockChain {
 		return op;
 	}
 
+	private static List<CompoundKey> toCompoundKeys(List<List<String>> ids) {
+		List<CompoundKey> keys = new ArrayList<>(ids.size());
+		for (List<String> id : ids) {
+			keys.add(new CompoundKey(0, id));
+		}
+		return keys;
+	}
+
 	private boolean prepareDeletedObjects(OpOperation u, LocalValidationCtx ctx, DeletedObjectCtx hctx) {
 		List<List<String>> deletedRefs = u.getDeleted();
 		ctx.deletedObjsCache.clear();
-
+		ctx.liveObjectsDelta = -deletedRefs.size();
+		Map<CompoundKey, OpObject> objs = getObjectsByNames(u.getType(), toCompoundKeys(deletedRefs));
 		for(int i = 0; i < deletedRefs.size(); i++) {
-			OpObject opObject = getObjectByName(u.getType(), deletedRefs.get(i));
+			OpObject opObject = objs.get(new CompoundKey(0, deletedRefs.get(i)));
 			if(opObject == null) {
 				return rules.error(u, ErrorType.DEL_OBJ_NOT_FOUND, u.getHash(), deletedRefs.get(i));
 			}
@@ -968,9 +1382,11 @@ public class OpBlockChain {
 		if (list.size() > OpBlockchainRules.MAX_AMOUNT_CREATED_OBJ_FOR_OP) {
 			return rules.error(u, ErrorType.LIMIT_OF_CREATED_OBJ_FOR_OP_WAS_EXCEEDED, u.getHash());
 		}
+		List<CompoundKey> explicitKeys = new ArrayList<>();
 		for(int i = 0; i < list.size(); i++) {
 			OpObject newObject = list.get(i);
-			if (newObject.getId().isEmpty()) {
+			boolean generatedId = newObject.getId().isEmpty();
+			if (generatedId) {
 				newObject = new OpObject(newObject);
 				newObject.setId(u.getRawHash(), String.valueOf(i));
 				newObject.makeImmutable();
@@ -979,6 +1395,24 @@ public class OpBlockChain {
 				return rules.error(u, ErrorType.OBJ_MODIFIED_TWICE_IN_SAME_OPERATION, u.getHash(), newObject.getId());
 			}
 			ctx.newObjsCache.put(newObject, null);
+			ctx.liveObjectsDelta++;
+			// objects with generated ids couldn't exist before
+			if (!generatedId) {
+				explicitKeys.add(new CompoundKey(0, newObject.getId()));
+			}
+		}
+		if (!explicitKeys.isEmpty()) {
+			// created object replaces existing object, only this chain is checked here (parent is checked lazily)
+			OpPrivateObjectInstancesById oi = objByName.get(u.getType());
+			Map<CompoundKey, OpObject> existing = oi == null ? Collections.emptyMap() : oi.getByKeys(explicitKeys, false);
+			for (CompoundKey k : explicitKeys) {
+				OpObject o = existing.get(k);
+				if (o == null) {
+					ctx.uncheckedCreatedKeys.add(k);
+				} else if (!o.isDeleted()) {
+					ctx.liveObjectsDelta--;
+				}
+			}
 		}
 		return true;
 	}
@@ -986,13 +1420,18 @@ public class OpBlockChain {
 	@SuppressWarnings("unchecked")
 	private boolean prepareEditedObjects(OpOperation u, LocalValidationCtx ctx) {
 		List<OpObject> editedObjs = u.getEdited();
+		List<List<String>> editedIds = new ArrayList<>();
+		for (OpObject editObject : editedObjs) {
+			editedIds.add(editObject.getId());
+		}
+		Map<CompoundKey, OpObject> currentObjs = getObjectsByNames(u.getType(), toCompoundKeys(editedIds));
 		for (OpObject editObject : editedObjs) {
 			List<String> id = editObject.getId();
 			// check duplicates in same operation
 			if (!ctx.ids.add(id)) {
 				return rules.error(u, ErrorType.OBJ_MODIFIED_TWICE_IN_SAME_OPERATION, u.getHash(), id);
 			}
-			OpObject currentObject = getObjectByName(u.getType(), id);
+			OpObject currentObject = currentObjs.get(new CompoundKey(0, id));
 			if (currentObject == null) {
 				return rules.error(u, ErrorType.EDIT_OBJ_NOT_FOUND, u.getHash(), id);
 			}
@@ -1122,6 +1561,8 @@ public class OpBlockChain {
 		Map<String, OpObject> refObjsCache = new HashMap<String, OpObject>();
 		List<OpObject> deletedObjsCache = new ArrayList<OpObject>();
 		Map<OpObject, OpObject> newObjsCache = new HashMap<OpObject, OpObject>();
+		int liveObjectsDelta;
+		List<CompoundKey> uncheckedCreatedKeys = new ArrayList<CompoundKey>();
 
 		public LocalValidationCtx(String bhash, long blockDate) {
 			blockHash = bhash;
@@ -1134,19 +1575,35 @@ public class OpBlockChain {
 
 		OpObject getObjectById(String type, CompoundKey k, boolean queryContent) throws DBStaleException ;
 
+		// returns latest versions (including deleted) only for found keys
+		Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys, boolean queryContent) throws DBStaleException ;
+
 		/**
+		 * afterKey - only objects with keys after it are returned (could be null)
 		 * extraParamsWithCondition[0] - extra and "sql condition"
 		 * extraParamsWithCondition[1+...] - parameters to bind
 		 */
-		Stream<Map.Entry<CompoundKey, OpObject>> streamObjects(String type, int limit, boolean onlyKeys, Object... extraParamsWithCondition) throws DBStaleException;
+		Stream<Map.Entry<CompoundKey, OpObject>> streamObjects(String type, int limit, boolean onlyKeys, CompoundKey afterKey,
+				Object... extraParamsWithCondition) throws DBStaleException;
 		
 		int countObjects(String type, Object... extraParamsWithCondition) throws DBStaleException;
 
+		// change of live objects amount by type comparing to parent superblock (null if it wasn't stored)
+		Map<String, Integer> getLiveObjectsDeltas() throws DBStaleException;
+
+		void saveLiveObjectsDeltas(Map<String, Integer> deltas) throws DBStaleException;
+
+		// probabilistic filter of index keys (could be null if not supported)
+		BloomFilter getIndexKeysFilter(String type, OpIndexColumn column) throws DBStaleException;
+
 		OpOperation getOperation(String rawHash, boolean strict) throws DBStaleException ;
 
 		// Very memory consuming operation
 		Deque<OpBlock> getAllBlocks(Collection<OpBlock> blockHeaders) throws DBStaleException ;
 
+		// blocks are passed in blockid order, operations not of opTypes are skipped (null - all operations)
+		void fetchAllBlocks(Collection<OpBlock> blockHeaders, Collection<String> opTypes, Consumer<OpBlock> consumer) throws DBStaleException ;
+
 		OpBlock getBlockByHash(String rawHash) throws DBStaleException ;
 		
 		Collection<String> getObjectTypes();
@@ -1173,6 +1630,11 @@ public class OpBlockChain {
 		public SearchType searchType = SearchType.EQUALS;
 		public boolean requestOnlyKeys = false;
 
+		// only objects with keys after this key are fetched (page cursor)
+		public CompoundKey afterKey;
+		// key of the last fetched object
+		public CompoundKey lastKey;
+
 		public List<CompoundKey> keys = new ArrayList<CompoundKey>();
 		public List<OpObject> result = new ArrayList<OpObject>();
 		public int cacheVersion = -1;
@@ -1181,6 +1643,11 @@ public class OpBlockChain {
 		OpPrivateObjectInstancesById objToSetCache;
 		int internalProgress;
 		
+		// there could be more objects after lastKey
+		public boolean isLimitReached() {
+			return limit >= 0 && internalProgress >= limit;
+		}
+		
 		public void setResult(Map<CompoundKey, OpObject> res) {
 			Iterator<Entry<CompoundKey, OpObject>> it = res.entrySet().iterator();
 			while(it.hasNext()) {
@@ -1206,6 +1673,9 @@ public class OpBlockChain {
 	private static final PerformanceMetric mPrepareTotal = PerformanceMetrics.i().getMetric("blc.prepare.total");
 	
 	private static final PerformanceMetric mFetchById = PerformanceMetrics.i().getMetric("blc.fetch.byid");
+	private static final PerformanceMetric mFetchByIds = PerformanceMetrics.i().getMetric("blc.fetch.byids");
+	private static final PerformanceMetric mBuildLatestIndex = PerformanceMetrics.i().getMetric("blc.fetch.index.latest");
+	private static final PerformanceMetric mBuildDerivedState = PerformanceMetrics.i().getMetric("blc.derived.build");
 
 
 }
\ No newline at end of file
@@ -1,7 +1,5 @@
 package org.openplacereviews.opendb.ops;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.SecUtils;
@@ -19,6 +17,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * State less blockchain rules to validate roles and calculate hashes
@@ -93,10 +92,18 @@ public class OpBlockchainRules {
 	public static final char USER_LOGIN_CHAR = ':';
 
 	private static final String WILDCARD_RULE = "*";
+	private static final String DERIVED_ROLES = "roles";
+	private static final String DERIVED_VALIDATION_RULES = "validation_rules";
 	
 	private JsonFormatter formatter;
 	
+	// successfully verified signatures in advance: pubkey, hash, signature
+	private final Map<String, Boolean> preverifiedSignatures = new ConcurrentHashMap<>();
+	
 	private ValidationListener logValidation;
+
+	// roles and validation rules derived from sys.role and sys.validate objects
+	private final OpPrivateDerivedStateCache derivedStateCache = new OpPrivateDerivedStateCache();
 	
 	
 	public OpBlockchainRules(JsonFormatter formatter, ValidationListener logValidation) {
@@ -149,42 +156,52 @@ public class OpBlockchainRules {
 	}
 	
 
+	// merkle hashes are calculated once for immutable block (leaves are cached by operations)
 	public String calculateMerkleTreeHash(OpBlock op) {
-		List<byte[]> hashes = new ArrayList<byte[]>();
-		for (OpOperation o : op.getOperations()) {
-			byte[] hashBytes = SecUtils.getHashBytes(o.getHash());
-			hashes.add(hashBytes);
+		String h = op.isImmutable() ? op.merkleTreeHash : null;
+		if (h == null) {
+			List<OpOperation> ops = op.getOperations();
+			byte[][] hashes = new byte[ops.size()][];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = ops.get(i).getHashBytes();
+			}
+			h = calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
+			if (op.isImmutable()) {
+				op.merkleTreeHash = h;
+			}
 		}
-		return calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
+		return h;
 	}
 
 	public String calculateSigMerkleTreeHash(OpBlock op) {
-		List<byte[]> hashes = new ArrayList<byte[]>();
-		for (OpOperation o : op.getOperations()) {
-			List<String> sigs = o.getSignatureList();
-			byte[] bts = null;
-			for (String s : sigs) {
-				bts = SecUtils.mergeTwoArrays(bts, SecUtils.decodeSignature(s));
+		String h = op.isImmutable() ? op.sigMerkleTreeHash : null;
+		if (h == null) {
+			List<OpOperation> ops = op.getOperations();
+			byte[][] hashes = new byte[ops.size()][];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = ops.get(i).getSignatureBytes();
+			}
+			h = calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
+			if (op.isImmutable()) {
+				op.sigMerkleTreeHash = h;
 			}
-			hashes.add(bts);
 		}
-		return calculateMerkleTreeInPlaceHash(SecUtils.HASH_SHA256, hashes);
+		return h;
 	}
 
-	private String calculateMerkleTreeInPlaceHash(String algo, List<byte[]> hashes) {
-		if (hashes.size() == 0) {
+	private String calculateMerkleTreeInPlaceHash(String algo, byte[][] hashes) {
+		if (hashes.length == 0) {
 			return "";
 		}
-		if (hashes.size() <= 1) {
-			return SecUtils.formatHashWithAlgo(algo, hashes.get(0));
-		}
-		List<byte[]> nextLevel = new ArrayList<byte[]>();
-		for (int i = 0; i < hashes.size(); i += 2) {
-			byte[] hsh = SecUtils.calculateHash(algo, hashes.get(i),
-					i + 1 < hashes.size() ? hashes.get(i + 1) : hashes.get(i));
-			nextLevel.add(hsh);
+		int size = hashes.length;
+		while (size > 1) {
+			int next = 0;
+			for (int i = 0; i < size; i += 2) {
+				hashes[next++] = SecUtils.calculateHash(algo, hashes[i], i + 1 < size ? hashes[i + 1] : hashes[i]);
+			}
+			size = next;
 		}
-		return calculateMerkleTreeInPlaceHash(algo, nextLevel);
+		return SecUtils.formatHashWithAlgo(algo, hashes[0]);
 	}
 
 	// hash and signature operations
@@ -199,12 +216,38 @@ public class OpBlockchainRules {
 	}
 	
 	public int calculateBlockSize(OpBlock cp) {
-		String json = formatter.toJson(cp);
-		int l = json.length();
+		int l = cp.isImmutable() ? cp.blockSize : -1;
+		if (l < 0) {
+			// json of block is json of header with empty operations array and operations separated by comma
+			List<OpOperation> ops = cp.getOperations();
+			l = formatter.toJson(OpBlock.filterOperations(cp, Collections.<String>emptySet())).length();
+			for (OpOperation o : ops) {
+				l += getOperationSize(o);
+			}
+			l += Math.max(ops.size() - 1, 0);
+			if (cp.isImmutable()) {
+				cp.blockSize = l;
+			}
+		}
 		if(l > MAX_BLOCK_SIZE_MB) {
 			error(cp, ErrorType.BLOCK_SIZE_IS_EXCEEDED, cp.getRawHash(), l, MAX_BLOCK_SIZE_MB);
 		}
-		return json.length();
+		return l;
+	}
+
+	/**
+	 * @return size of operation json (calculated once for immutable operation)
+	 */
+	public int getOperationSize(OpOperation op) {
+		int calculatedSize = op.isImmutable() ? op.getCalculatedSize() : -1;
+		if (calculatedSize >= 0) {
+			return calculatedSize;
+		}
+		int sz = formatter.opToJson(op).length();
+		if (op.isImmutable()) {
+			op.setCalculatedSize(sz);
+		}
+		return sz;
 	}
 	
 
@@ -272,10 +315,12 @@ public class OpBlockchainRules {
 			}
 		}
 
+		// json representation of operation is shared by all rules and it is built only for accessed fields
+		EvaluationContext ectx = new EvaluationContext(blockchain, formatter, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache);
 		List<OpObject> toValidate = validationRules.get(o.getType());
 		if(toValidate != null) {
 			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache)) {
+				if(!validateRule(rule, o, ectx)) {
 					return false;
 				}
 			}
@@ -283,7 +328,7 @@ public class OpBlockchainRules {
 		toValidate = validationRules.get(WILDCARD_RULE);
 		if(toValidate != null) {
 			for(OpObject rule : toValidate) {
-				if(!validateRule(blockchain, rule, o, ctx.newObjsCache.keySet(), dls, ctx.refObjsCache)) {
+				if(!validateRule(rule, o, ectx)) {
 					return false;
 				}
 			}
@@ -291,21 +336,8 @@ public class OpBlockchainRules {
 		return true;
 	}
 
-	private boolean validateRule(OpBlockChain blockchain, OpObject rule, OpOperation o, Set<OpObject> newObjsArray, List<OpObject> deletedObjsCache,
-			Map<String, OpObject> refObjsCache) {
+	private boolean validateRule(OpObject rule, OpOperation o, EvaluationContext ctx) {
 		Metric m = PerformanceMetrics.i().getMetric("blc.validop", rule.getId().get(0)).start();
-		JsonArray deletedArray = (JsonArray) formatter.toJsonElement(deletedObjsCache);
-		for(int i = 0; i < deletedArray.size(); i++) {
-			((JsonObject)deletedArray.get(i)).addProperty(OpOperation.F_TYPE, deletedObjsCache.get(i).getParentType());
-		}
-		JsonObject refsMap = formatter.toJsonElement(refObjsCache).getAsJsonObject();
-		for(String key : refsMap.keySet()) {
-			((JsonObject)refsMap.get(key)).addProperty(OpOperation.F_TYPE, refObjsCache.get(key).getParentType());
-		}
-		
-		JsonArray newArray = (JsonArray) formatter.toJsonElement(newObjsArray);
-		JsonObject opJsonObj = formatter.toJsonElement(o).getAsJsonObject();
-		EvaluationContext ctx = new EvaluationContext(blockchain, opJsonObj, newArray, deletedArray, refsMap);
 		List<OpExprEvaluator> vld = getValidateExpresions(F_VALIDATE, rule);
 		List<OpExprEvaluator> ifs = getValidateExpresions(F_IF, rule);
 		for(OpExprEvaluator s : ifs) {
@@ -354,31 +386,34 @@ public class OpBlockchainRules {
 	}
 
 
-	@SuppressWarnings("unchecked")
+	OpPrivateDerivedStateCache getDerivedStateCache() {
+		return derivedStateCache;
+	}
+
+	/**
+	 * @return role to all its descendant roles (including role itself)
+	 */
 	public Map<String, Set<String>> getRoles(OpBlockChain blockchain) {
-		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
-		req.requestCache = true;
-		blockchain.fetchAllObjects(OP_ROLE, req);
-		Map<String, Set<String>> rolesMap = (Map<String,  Set<String>>) req.cacheObject;
-		if(rolesMap == null) {
-			rolesMap = new TreeMap<String, Set<String>>();
-			for(OpObject vld : req.result) {
-				String roleId = vld.getId().get(0);
-				rolesMap.put(roleId, new TreeSet<String>());
-			}
-			for(OpObject vld : req.result) {
-				String roleId = vld.getId().get(0);
-				rolesMap.get(roleId).add(roleId);
-				for(String superRole : vld.getStringList(F_SUPER_ROLES)) {
-					Set<String> sr = rolesMap.get(superRole);
-					if(sr != null) {
-						sr.add(roleId);
-					}
+		return blockchain.getDerivedState(OP_ROLE, DERIVED_ROLES, null, this::buildRolesMap);
+	}
+
+	private Map<String, Set<String>> buildRolesMap(List<OpObject> roles) {
+		Map<String, Set<String>> rolesMap = new TreeMap<String, Set<String>>();
+		for(OpObject vld : roles) {
+			String roleId = vld.getId().get(0);
+			rolesMap.put(roleId, new TreeSet<String>());
+		}
+		for(OpObject vld : roles) {
+			String roleId = vld.getId().get(0);
+			rolesMap.get(roleId).add(roleId);
+			for(String superRole : vld.getStringList(F_SUPER_ROLES)) {
+				Set<String> sr = rolesMap.get(superRole);
+				if(sr != null) {
+					sr.add(roleId);
 				}
 			}
-			recalculateFullRolesMap(rolesMap);
-			blockchain.setCacheAfterSearch(req, rolesMap);
 		}
+		recalculateFullRolesMap(rolesMap);
 		return rolesMap;
 	}
 
@@ -409,23 +444,19 @@ public class OpBlockchainRules {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	private Map<String, List<OpObject>> getValidationRules(OpBlockChain blockchain) {
-		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
-		req.requestCache = true;
-		blockchain.fetchAllObjects(OP_VALIDATE, req);
-		Map<String, List<OpObject>> validationRules = (Map<String,  List<OpObject>>) req.cacheObject;
-		if(validationRules == null) {
-			validationRules = new TreeMap<String, List<OpObject>>();
-			for(OpObject vld : req.result) {
-				for(String type : vld.getStringList(F_TYPE)) {
-					if(!validationRules.containsKey(type)) {
-						validationRules.put(type, new ArrayList<OpObject>());
-					}
-					validationRules.get(type).add(vld);
+		return blockchain.getDerivedState(OP_VALIDATE, DERIVED_VALIDATION_RULES, null, this::buildValidationRules);
+	}
+
+	private Map<String, List<OpObject>> buildValidationRules(List<OpObject> rules) {
+		Map<String, List<OpObject>> validationRules = new TreeMap<String, List<OpObject>>();
+		for(OpObject vld : rules) {
+			for(String type : vld.getStringList(F_TYPE)) {
+				if(!validationRules.containsKey(type)) {
+					validationRules.put(type, new ArrayList<OpObject>());
 				}
+				validationRules.get(type).add(vld);
 			}
-			blockchain.setCacheAfterSearch(req, validationRules);
 		}
 		return validationRules;
 	}
@@ -451,16 +482,19 @@ public class OpBlockchainRules {
 		if (block.getOperations().size() == 0) {
 			return error(block, ErrorType.BLOCK_EMPTY, blockHash);
 		}
-		if (!OUtils.equals(calculateMerkleTreeHash(block), block.getStringValue(OpBlock.F_MERKLE_TREE_HASH))) {
-			return error(block, ErrorType.BLOCK_MERKLE_TREE_FAILED, blockHash, calculateMerkleTreeHash(block),
+		String merkleHash = calculateMerkleTreeHash(block);
+		if (!OUtils.equals(merkleHash, block.getStringValue(OpBlock.F_MERKLE_TREE_HASH))) {
+			return error(block, ErrorType.BLOCK_MERKLE_TREE_FAILED, blockHash, merkleHash,
 					block.getStringValue(OpBlock.F_MERKLE_TREE_HASH));
 		}
-		if (!OUtils.equals(calculateSigMerkleTreeHash(block), block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH))) {
-			return error(block, ErrorType.BLOCK_SIG_MERKLE_TREE_FAILED, blockHash, calculateSigMerkleTreeHash(block),
+		String sigMerkleHash = calculateSigMerkleTreeHash(block);
+		if (!OUtils.equals(sigMerkleHash, block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH))) {
+			return error(block, ErrorType.BLOCK_SIG_MERKLE_TREE_FAILED, blockHash, sigMerkleHash,
 					block.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH));
 		}
-		if (!OUtils.equals(calculateHash(block), block.getFullHash())) {
-			return error(block, ErrorType.BLOCK_HASH_FAILED, block.getFullHash(), calculateHash(block));
+		String hash = calculateHash(block);
+		if (!OUtils.equals(hash, block.getFullHash())) {
+			return error(block, ErrorType.BLOCK_HASH_FAILED, block.getFullHash(), hash);
 		}
 		
 		if(!validateSignature) {
@@ -523,7 +557,8 @@ public class OpBlockchainRules {
 					keyObj = getLoginKeyObj(ctx, signedByName);
 				}
 				KeyPair kp = getKeyPairFromObj(keyObj, null);
-				validate = SecUtils.validateSignature(kp, txHash, sig);
+				validate = (kp != null && preverifiedSignatures.remove(getSignatureKey(kp, ob.getHash(), sig)) != null)
+						|| SecUtils.validateSignature(kp, txHash, sig);
 			} catch (Exception e) {
 				cause = e;
 			}
@@ -533,15 +568,74 @@ public class OpBlockchainRules {
 		}
 		return true;
 	}
+
+	/**
+	 * Calculates hash and verifies signatures of immutable operation in advance (could be called from any thread).
+	 * Signing keys are resolved speculatively from the current state of blockchain, so during validation
+	 * signature is accepted without verification only if it is signed by the same key.
+	 */
+	public void preverifyOperation(OpBlockChain ctx, OpOperation ob) {
+		if (!ob.isImmutable()) {
+			return;
+		}
+		ob.setCalculatedHash(calculateOperationHash(ob, false));
+		getOperationSize(ob);
+		List<String> sigs = ob.getSignatureList();
+		List<String> signedBy = ob.getSignedBy();
+		if (signedBy.size() != sigs.size() || ob.getHash() == null) {
+			return;
+		}
+		byte[] txHash = ob.getHashBytes();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < sigs.size(); i++) {
+			try {
+				OpObject keyObj = getLoginKeyObj(ctx, signedBy.get(i));
+				if (keyObj == null && OP_SIGNUP.equals(ob.getType()) && ob.getCreated().size() == 1) {
+					keyObj = ob.getCreated().get(0);
+				}
+				KeyPair kp = getKeyPairFromObj(keyObj, null);
+				if (kp != null && SecUtils.validateSignature(kp, txHash, sigs.get(i))) {
+					String key = getSignatureKey(kp, ob.getHash(), sigs.get(i));
+					preverifiedSignatures.put(key, Boolean.TRUE);
+					keys.add(key);
+				}
+			} catch (Exception e) {
+				// will be verified during validation
+			}
+		}
+		ob.setPreverifiedSignatures(keys);
+	}
+
+	/**
+	 * removes preverified signatures of operation which were not used by validation (i.e. operation was rejected)
+	 */
+	public void clearPreverifiedOperation(OpOperation ob) {
+		List<String> keys = ob.getPreverifiedSignatures();
+		if (keys != null) {
+			for (String key : keys) {
+				preverifiedSignatures.remove(key);
+			}
+		}
+	}
+
+	private static String getSignatureKey(KeyPair kp, String hash, String sig) {
+		return SecUtils.encodeBase64(kp.getPublic().getEncoded()) + " " + hash + " " + sig;
+	}
+
+	private String getCalculatedOperationHash(OpOperation u) {
+		String hash = u.isImmutable() ? u.getCalculatedHash() : null;
+		return hash != null ? hash : calculateOperationHash(u, false);
+	}
 	
 	
 	public boolean validateOp(OpBlockChain opBlockChain, OpOperation u, LocalValidationCtx ctx) {
 		Metric mt = mValidTotal.start();
-		if(!OUtils.equals(calculateOperationHash(u, false), u.getHash())) {
-			return error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, calculateOperationHash(u, false), u.getHash());
+		String calculatedHash = getCalculatedOperationHash(u);
+		if(!OUtils.equals(calculatedHash, u.getHash())) {
+			return error(u, ErrorType.OP_HASH_IS_NOT_CORRECT, calculatedHash, u.getHash());
 		}
 		
-		int sz = formatter.opToJson(u).length();
+		int sz = getOperationSize(u);
 		if (sz > OpBlockchainRules.MAX_OP_SIZE_MB) {
 			return error(u, ErrorType.OP_SIZE_IS_EXCEEDED, u.getHash(), sz, OpBlockchainRules.MAX_OP_SIZE_MB);
 		}
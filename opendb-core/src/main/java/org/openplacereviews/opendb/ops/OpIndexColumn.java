@@ -4,10 +4,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.OpBlockChain.SearchType;
-import org.openplacereviews.opendb.ops.OpPrivateObjectInstancesById.CacheObject;
 import org.openplacereviews.opendb.ops.de.ColumnDef;
 import org.openplacereviews.opendb.ops.de.ColumnDef.IndexType;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.util.BloomFilter;
 import org.openplacereviews.opendb.util.JsonObjectUtils;
 import org.openplacereviews.opendb.util.OUtils;
 
@@ -94,6 +94,10 @@ public class OpIndexColumn {
 		}
 		// here we can convert to native db type
 		if (columnDef.isArray()) {
+			if (conn == null) {
+				// plain array without connection (i.e. to be written by copy)
+				return array.toArray(new Object[array.size()]);
+			}
 			try {
 				Array ar = conn.createArrayOf(columnDef.getScalarType(), array.toArray(new Object[array.size()]));
 				return ar;
@@ -109,19 +113,13 @@ public class OpIndexColumn {
 
 	public Stream<Entry<CompoundKey, OpObject>> streamObjects(OpPrivateObjectInstancesById oi, 
 			int superBlockSize, String type, int limit, ObjectsSearchRequest request, Object[] args) {
-		Set<Object> keys = getKeysFromCache(oi);
-		if (keys == null) {
-			if((oi.getDbAccess() != null && cacheDBBlocks >= superBlockSize) || 
-					 (oi.getDbAccess() == null && cacheRuntimeBlocks >= superBlockSize)) {
-				keys = buildCacheKeys(oi, type);
-			}
-		}
-		if (keys != null && !keys.contains(toNativeType(args[0]))) {
+		if (!mightContainKey(oi, superBlockSize, type, args[0])) {
 			return Stream.empty();
 		}
 		Stream<Entry<CompoundKey, OpObject>> stream;
 		if(oi.getDbAccess() != null){
-			stream = oi.getDbAccess().streamObjects(type, limit, request.requestOnlyKeys, getDbCondition(request, args));
+			stream = oi.getDbAccess().streamObjects(type, limit, request.requestOnlyKeys, request.afterKey,
+					getDbCondition(request, args));
 			stream = stream.filter(new Predicate<Entry<CompoundKey, OpObject>>() {
 
 				@Override
@@ -134,7 +132,7 @@ public class OpIndexColumn {
 				}
 			});
 		} else {
-			stream = oi.getRawObjects();
+			stream = oi.getRawObjects(false);
 			stream = stream.filter(new Predicate<Entry<CompoundKey, OpObject>>() {
 				@Override
 				public boolean test(Entry<CompoundKey, OpObject> t) {
@@ -146,48 +144,53 @@ public class OpIndexColumn {
 		return stream;
 	}
 
-	@SuppressWarnings("unchecked")
-	private Set<Object> getKeysFromCache(OpPrivateObjectInstancesById oi) {
-		int ev = oi.getEditVersion();
-		CacheObject cacheObject = oi.getCacheObjectByKey(this);
-		Set<Object> keys = null;
-		if(cacheObject != null && cacheObject.cacheVersion == ev) {
-			keys = (Set<Object>) cacheObject.cacheObject;
+	private boolean mightContainKey(OpPrivateObjectInstancesById oi, int superBlockSize, String type, Object arg) {
+		String key = toKeyString(toNativeType(arg));
+		if (oi.getDbAccess() != null) {
+			if (cacheDBBlocks >= superBlockSize) {
+				BloomFilter filter = oi.getDbAccess().getIndexKeysFilter(type, this);
+				return filter == null || filter.mightContain(key);
+			}
+		} else if (cacheRuntimeBlocks >= superBlockSize) {
+			return oi.getIndexKeys(this).contains(key);
 		}
-		return keys;
+		return true;
 	}
 
-	private synchronized Set<Object> buildCacheKeys(OpPrivateObjectInstancesById oi, String type) {
-		Set<Object> keys = getKeysFromCache(oi);
-		if (keys != null) {
-			return keys;
-		}
-		int ev = oi.getEditVersion();
-		if (oi.getDbAccess() != null) {
-			Iterator<Entry<CompoundKey, OpObject>> it = oi.getDbAccess().streamObjects(type, -1, false).iterator();
-			keys = buildCacheKeys(it);
-			oi.setCacheObjectByKey(this, keys, ev);
-		} else if (oi.getDbAccess() == null) {
-			keys = buildCacheKeys(oi.getRawObjects().iterator());
-			oi.setCacheObjectByKey(this, keys, ev);
+	/**
+	 * Identifies how keys are evaluated, so persisted key filters built with different definition are not used
+	 */
+	public String getKeysSignature() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(idIndex).append(':').append(columnDef.isInteger());
+		for (IndexExpression ie : fieldsExpression) {
+			sb.append(':').append(String.join(".", ie.expression));
 		}
-		return keys;
+		return sb.toString();
 	}
 
-	private Set<Object> buildCacheKeys(Iterator<Entry<CompoundKey, OpObject>> it) {
-		Set<Object> keys;
-		List<Object> array = new ArrayList<Object>();
-		keys = new HashSet<Object>();
-		while (it.hasNext()) {
-			Entry<CompoundKey, OpObject> e = it.next();
-			OpObject o = e.getValue();
-			array.clear();
-			array = eval(o, array);
+	/**
+	 * adds string representation of index values of the object to the keys
+	 */
+	public void evalIndexKeys(OpObject o, Collection<String> keys) {
+		if (o == null || o.isDeleted()) {
+			return;
+		}
+		List<Object> array = eval(o, null);
+		if (array != null) {
 			for (Object k : array) {
-				keys.add(k);
+				if (k != null) {
+					keys.add(toKeyString(k));
+				}
 			}
 		}
-		return keys;
+	}
+
+	private String toKeyString(Object o) {
+		if (columnDef.isInteger() && o instanceof Number) {
+			return Long.toString(((Number) o).longValue());
+		}
+		return o.toString();
 	}
 	
 	private Object toNativeType(Object o) {
@@ -5,6 +5,7 @@ import org.openplacereviews.opendb.util.JsonObjectUtils;
 import org.openplacereviews.opendb.util.OUtils;
 import org.openplacereviews.opendb.util.OpExprEvaluator;
 
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Type;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -52,6 +53,11 @@ public class OpObject {
 	protected transient String parentType;
 	protected transient String parentHash;
 	protected transient boolean deleted;
+	// canonical json of immutable object, released under memory pressure
+	private transient SoftReference<String> canonicalJson;
+	// full output json of immutable object, valid while eval fields are not changed (see getEvalVersion)
+	private transient SoftReference<FullOutputJson> fullOutputJson;
+	private transient volatile int evalVersion;
 	
 	
 	public OpObject() {}
@@ -67,6 +73,26 @@ public class OpObject {
 	public OpObject(OpObject cp, boolean copyCacheFields) {
 		createOpObjectCopy(cp, copyCacheFields);
 	}
+	
+	/**
+	 * Object which fields are parsed from json on demand (json is expected to be an object serialized by formatter)
+	 */
+	public static OpObject createFromRawJson(String json) {
+		OpObject obj = new OpObject();
+		obj.fields = new OpObjectRawFields(json);
+		return obj;
+	}
+	
+	/**
+	 * @return json of fields if object is created from raw json and fields weren't parsed or could be modified,
+	 *  otherwise null
+	 */
+	public String getRawJson() {
+		if (fields instanceof OpObjectRawFields) {
+			return ((OpObjectRawFields) fields).getRawJson(isImmutable);
+		}
+		return null;
+	}
 
 	@SuppressWarnings("unchecked")
 	private OpObject createOpObjectCopy(OpObject opObject, boolean copyCacheFields) {
@@ -124,6 +150,7 @@ public class OpObject {
 	public void setParentOp(String parentType, String parentHash) {
 		this.parentType = parentType;
 		this.parentHash = parentHash;
+		evalVersion++;
 	}
 	
 	public String getParentHash() {
@@ -150,6 +177,53 @@ public class OpObject {
 		isImmutable = true;
 		return this;
 	}
+	
+	/**
+	 * @return memoized canonical json (without cache fields) or null if object is mutable or json wasn't memoized
+	 */
+	public String getCanonicalJson() {
+		SoftReference<String> ref = canonicalJson;
+		return isImmutable && ref != null ? ref.get() : null;
+	}
+	
+	public void setCanonicalJson(String json) {
+		if (isImmutable) {
+			canonicalJson = new SoftReference<>(json);
+		}
+	}
+	
+	/**
+	 * Incremented on every change of eval fields (cache fields and parent op), so it could be used to check that
+	 * full output is still valid. Block includes versions of its operations.
+	 */
+	public long getEvalVersion() {
+		return evalVersion;
+	}
+	
+	/**
+	 * @return memoized full output json or null if object is mutable, json wasn't memoized or eval fields changed
+	 */
+	public String getFullOutputJson() {
+		SoftReference<FullOutputJson> ref = fullOutputJson;
+		FullOutputJson j = isImmutable && ref != null ? ref.get() : null;
+		return j != null && j.evalVersion == getEvalVersion() ? j.json : null;
+	}
+	
+	public void setFullOutputJson(String json, long evalVersion) {
+		if (isImmutable) {
+			fullOutputJson = new SoftReference<>(new FullOutputJson(json, evalVersion));
+		}
+	}
+	
+	private static class FullOutputJson {
+		final String json;
+		final long evalVersion;
+		
+		FullOutputJson(String json, long evalVersion) {
+			this.json = json;
+			this.evalVersion = evalVersion;
+		}
+	}
 
 	public Object getFieldByExpr(String field) {
 		if (field.contains(".") || field.contains("[") || field.contains("]")) {
@@ -249,6 +323,7 @@ public class OpObject {
 			cacheFields = new ConcurrentHashMap<String, Object>();
 		}
 		cacheFields.put(f, o);
+		evalVersion++;
 	}
 	
 	public void setId(String id, String id2) {
@@ -443,6 +518,14 @@ public class OpObject {
 	
 	public Map<String, Object> getMixedFieldsAndCacheMap() {
 		TreeMap<String, Object> mp = new TreeMap<>(fields);
+		TreeMap<String, Object> eval = getEvalFields();
+		if (eval != null) {
+			mp.put(F_EVAL, eval);
+		}
+		return mp;
+	}
+	
+	public TreeMap<String, Object> getEvalFields() {
 		if(cacheFields != null || parentType != null || parentHash != null) {
 			TreeMap<String, Object> eval = new TreeMap<String, Object>();
 			
@@ -463,10 +546,10 @@ public class OpObject {
 				}
 			}
 			if(eval.size() > 0) {
-				mp.put(F_EVAL, eval);
+				return eval;
 			}
 		}
-		return mp;
+		return null;
 	}
 
 	@Override
@@ -520,6 +603,16 @@ public class OpObject {
 
 		@Override
 		public JsonElement serialize(OpObject src, Type typeOfSrc, JsonSerializationContext context) {
+			if (fullOutput && src.getRawJson() != null) {
+				// db json differs in key order, spacing and numbers, so it is normalized like parsed object
+				// (parsed map isn't kept by object, so it stays lazy)
+				TreeMap<String, Object> mp = ((OpObjectRawFields) src.fields).parseRawJson();
+				TreeMap<String, Object> eval = src.getEvalFields();
+				if (eval != null) {
+					mp.put(F_EVAL, eval);
+				}
+				return context.serialize(mp);
+			}
 			return context.serialize(fullOutput ? src.getMixedFieldsAndCacheMap() : src.fields);
 		}
 
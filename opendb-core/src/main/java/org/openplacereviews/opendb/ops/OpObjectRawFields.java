@@ -0,0 +1,199 @@
+package org.openplacereviews.opendb.ops;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import org.openplacereviews.opendb.util.JsonFormatter.MapDeserializerDoubleAsIntFix;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fields of object backed by raw json (i.e. content of db row).
+ * Single fields are parsed on demand with streaming parser, full map is parsed only when
+ * fields are iterated, modified or too many different fields were requested.
+ * Values are normalized exactly as json parsing of object does.
+ */
+class OpObjectRawFields implements Map<String, Object> {
+
+	private static final MapDeserializerDoubleAsIntFix NUMBER_FIX = new MapDeserializerDoubleAsIntFix();
+	// after that amount of different fields it is cheaper to parse full object once
+	private static final int MAX_LAZY_FIELDS = 4;
+	private static final Object MISSING = new Object();
+	private static final Object NULL_VALUE = new Object();
+
+	private final String rawJson;
+	private final Map<String, Object> parsedFields = new ConcurrentHashMap<>();
+	private volatile TreeMap<String, Object> fields;
+	// nested maps / lists are mutable and could be modified by caller without notice
+	private volatile boolean containersReturned;
+
+	OpObjectRawFields(String rawJson) {
+		this.rawJson = rawJson;
+	}
+
+	/**
+	 * Raw json is returned only while it represents fields: map wasn't parsed and, if object is mutable,
+	 * no nested map or list was returned (i.e. modified by OpObject.setFieldByExpr)
+	 */
+	String getRawJson(boolean immutable) {
+		return fields == null && (immutable || !containersReturned) ? rawJson : null;
+	}
+
+	/**
+	 * @return new map of all fields parsed from raw json (parsed map isn't kept)
+	 */
+	@SuppressWarnings("unchecked")
+	TreeMap<String, Object> parseRawJson() {
+		JsonElement el = new JsonParser().parse(rawJson);
+		TreeMap<String, Object> m = (TreeMap<String, Object>) NUMBER_FIX.read(el);
+		m.remove(OpObject.F_EVAL);
+		return m;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object v = getParsedField(key);
+		if (v == MISSING || v == NULL_VALUE) {
+			return null;
+		}
+		if (v instanceof Map || v instanceof List) {
+			containersReturned = true;
+		}
+		return v;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return getParsedField(key) != MISSING;
+	}
+
+	private Object getParsedField(Object key) {
+		TreeMap<String, Object> m = fields;
+		if (m != null) {
+			return m.containsKey(key) ? m.get(key) : MISSING;
+		}
+		if (!(key instanceof String) || OpObject.F_EVAL.equals(key)) {
+			return MISSING;
+		}
+		Object v = parsedFields.get(key);
+		if (v == null) {
+			if (parsedFields.size() >= MAX_LAZY_FIELDS) {
+				m = map();
+				return m.containsKey(key) ? m.get(key) : MISSING;
+			}
+			v = parseField((String) key);
+			parsedFields.put((String) key, v);
+		}
+		return v;
+	}
+
+	private Object parseField(String key) {
+		try {
+			JsonReader reader = new JsonReader(new StringReader(rawJson));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (key.equals(reader.nextName())) {
+					Object v = NUMBER_FIX.read(new JsonParser().parse(reader));
+					return v == null ? NULL_VALUE : v;
+				}
+				reader.skipValue();
+			}
+			return MISSING;
+		} catch (IOException e) {
+			throw new JsonParseException(e);
+		}
+	}
+
+	private TreeMap<String, Object> map() {
+		TreeMap<String, Object> m = fields;
+		if (m == null) {
+			synchronized (this) {
+				m = fields;
+				if (m == null) {
+					m = parseRawJson();
+					// keep already returned values, so they stay the same instances
+					for (Entry<String, Object> e : parsedFields.entrySet()) {
+						if (e.getValue() != MISSING && e.getValue() != NULL_VALUE) {
+							m.put(e.getKey(), e.getValue());
+						}
+					}
+					fields = m;
+				}
+			}
+		}
+		return m;
+	}
+
+	@Override
+	public int size() {
+		return map().size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return map().isEmpty();
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return map().containsValue(value);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return map().put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return map().remove(key);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ?> m) {
+		map().putAll(m);
+	}
+
+	@Override
+	public void clear() {
+		map().clear();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return map().keySet();
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return map().values();
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return map().entrySet();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return map().equals(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return map().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return map().toString();
+	}
+}
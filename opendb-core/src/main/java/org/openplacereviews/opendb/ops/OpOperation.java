@@ -6,6 +6,7 @@ import com.google.gson.*;
 import java.lang.reflect.Type;
 import java.util.*;
 
+import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.util.OUtils;
 
 public class OpOperation extends OpObject {
@@ -28,6 +29,14 @@ public class OpOperation extends OpObject {
 	private List<OpObject> editedObjects = new LinkedList<OpObject>();
 	protected String type;
 
+	// cache for immutable (merkle tree leaves)
+	private byte[] hashBytes;
+	private byte[] signatureBytes;
+	// calculated in advance for immutable (see OpBlockchainRules.preverifyOperation), not serialized
+	private String calculatedHash;
+	private int calculatedSize = -1;
+	private List<String> preverifiedSignatures;
+
 	public OpOperation() {
 	}
 
@@ -105,6 +114,55 @@ public class OpOperation extends OpObject {
 		return getStringList(F_SIGNATURE);
 	}
 
+	byte[] getHashBytes() {
+		byte[] h = hashBytes;
+		if (h == null) {
+			h = SecUtils.getHashBytes(getHash());
+			if (isImmutable) {
+				hashBytes = h;
+			}
+		}
+		return h;
+	}
+
+	String getCalculatedHash() {
+		return calculatedHash;
+	}
+
+	void setCalculatedHash(String calculatedHash) {
+		this.calculatedHash = calculatedHash;
+	}
+
+	int getCalculatedSize() {
+		return calculatedSize;
+	}
+
+	void setCalculatedSize(int calculatedSize) {
+		this.calculatedSize = calculatedSize;
+	}
+
+	List<String> getPreverifiedSignatures() {
+		return preverifiedSignatures;
+	}
+
+	void setPreverifiedSignatures(List<String> preverifiedSignatures) {
+		this.preverifiedSignatures = preverifiedSignatures;
+	}
+
+	// all signatures merged in one array
+	byte[] getSignatureBytes() {
+		byte[] bts = signatureBytes;
+		if (bts == null) {
+			for (String s : getSignatureList()) {
+				bts = SecUtils.mergeTwoArrays(bts, SecUtils.decodeSignature(s));
+			}
+			if (isImmutable) {
+				signatureBytes = bts;
+			}
+		}
+		return bts;
+	}
+
 	public Map<String, List<String>> getRef() {
 		return getMapStringList(F_REF);
 	}
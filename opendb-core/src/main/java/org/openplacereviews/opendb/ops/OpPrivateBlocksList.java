@@ -5,9 +5,11 @@ import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
 
 import java.util.Collection;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.function.Consumer;
 
 
 public class OpPrivateBlocksList {
@@ -40,6 +42,18 @@ public class OpPrivateBlocksList {
 		return blocks;
 	}
 	
+	public void fetchAllBlocks(Collection<String> opTypes, Consumer<OpBlock> consumer) {
+		if (dbAccess != null) {
+			dbAccess.fetchAllBlocks(blockHeaders, opTypes, consumer);
+			return;
+		}
+		Iterator<OpBlock> it = blocks.descendingIterator();
+		while (it.hasNext()) {
+			OpBlock b = it.next();
+			consumer.accept(opTypes == null ? b : OpBlock.filterOperations(b, opTypes));
+		}
+	}
+	
 	public Deque<OpBlock> getAllBlockHeaders() {
 		return blockHeaders;
 	}
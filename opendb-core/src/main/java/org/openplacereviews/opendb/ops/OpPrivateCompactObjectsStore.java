@@ -0,0 +1,265 @@
+package org.openplacereviews.opendb.ops;
+
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact storage of runtime superblock objects: objects are kept serialized (optionally deflated)
+ * in append-only arena of direct byte buffers and materialized only on access.
+ * Chunks of the arena start small and double up to MAX_CHUNK_SIZE, so stores of small types stay small.
+ * Space of overwritten or removed versions is not reused and it is released together with the store
+ * (runtime superblocks are short-living and they are replaced by merged or db superblocks).
+ */
+class OpPrivateCompactObjectsStore extends AbstractMap<CompoundKey, OpObject> {
+
+	static final int MIN_CHUNK_SIZE = 1 << 16;
+	static final int MAX_CHUNK_SIZE = 1 << 22;
+
+	private static final byte KIND_NULL = 0;
+	private static final byte KIND_DELETED = 1;
+	private static final byte KIND_JSON = 2;
+	private static final byte KIND_JSON_IMMUTABLE = 3;
+
+	private final JsonFormatter formatter;
+	private final boolean compress;
+	private final Map<CompoundKey, Slot> slots = new ConcurrentHashMap<>();
+	private final List<ByteBuffer> chunks = new CopyOnWriteArrayList<>();
+	private ByteBuffer currentChunk;
+	private int currentChunkPos;
+	private long allocatedBytes;
+
+	private static class Slot {
+		final byte kind;
+		final String parentType;
+		final String parentHash;
+		final ByteBuffer chunk;
+		final int offset;
+		final int length;
+		final int rawLength;
+
+		Slot(byte kind, String parentType, String parentHash, ByteBuffer chunk, int offset, int length, int rawLength) {
+			this.kind = kind;
+			this.parentType = parentType;
+			this.parentHash = parentHash;
+			this.chunk = chunk;
+			this.offset = offset;
+			this.length = length;
+			this.rawLength = rawLength;
+		}
+	}
+
+	private class LazyEntry implements Entry<CompoundKey, OpObject> {
+		private final CompoundKey key;
+		private final Slot slot;
+
+		LazyEntry(CompoundKey key, Slot slot) {
+			this.key = key;
+			this.slot = slot;
+		}
+
+		@Override
+		public CompoundKey getKey() {
+			return key;
+		}
+
+		@Override
+		public OpObject getValue() {
+			return decode(slot);
+		}
+
+		@Override
+		public OpObject setValue(OpObject value) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public OpPrivateCompactObjectsStore(JsonFormatter formatter, boolean compress) {
+		this.formatter = formatter;
+		this.compress = compress;
+	}
+
+	@Override
+	public int size() {
+		return slots.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return slots.containsKey(key);
+	}
+
+	@Override
+	public OpObject get(Object key) {
+		Slot s = slots.get(key);
+		return s == null ? null : decode(s);
+	}
+
+	/**
+	 * @return always null: previous version is not decoded as callers don't use it
+	 */
+	@Override
+	public OpObject put(CompoundKey key, OpObject value) {
+		slots.put(key, encode(value));
+		return null;
+	}
+
+	/**
+	 * @return always null: removed version is not decoded as callers don't use it
+	 */
+	@Override
+	public OpObject remove(Object key) {
+		slots.remove(key);
+		return null;
+	}
+
+	@Override
+	public Set<Entry<CompoundKey, OpObject>> entrySet() {
+		return new AbstractSet<Entry<CompoundKey, OpObject>>() {
+
+			@Override
+			public Iterator<Entry<CompoundKey, OpObject>> iterator() {
+				Iterator<Entry<CompoundKey, Slot>> it = slots.entrySet().iterator();
+				return new Iterator<Entry<CompoundKey, OpObject>>() {
+
+					@Override
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					@Override
+					public Entry<CompoundKey, OpObject> next() {
+						Entry<CompoundKey, Slot> e = it.next();
+						return new LazyEntry(e.getKey(), e.getValue());
+					}
+
+					@Override
+					public void remove() {
+						it.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return slots.size();
+			}
+		};
+	}
+
+	/**
+	 * copies serialized objects without materializing them
+	 */
+	void putAll(OpPrivateCompactObjectsStore prev, boolean overwrite) {
+		for (Entry<CompoundKey, Slot> e : prev.slots.entrySet()) {
+			if (overwrite || !slots.containsKey(e.getKey())) {
+				Slot s = e.getValue();
+				slots.put(e.getKey(), s.length == 0 ? s :
+						allocate(s.kind, s.parentType, s.parentHash, read(s), s.rawLength));
+			}
+		}
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	private Slot encode(OpObject obj) {
+		if (obj == OpObject.NULL) {
+			return new Slot(KIND_NULL, null, null, null, 0, 0, 0);
+		}
+		if (obj.isDeleted()) {
+			return new Slot(KIND_DELETED, obj.getParentType(), obj.getParentHash(), null, 0, 0, 0);
+		}
+		byte[] raw = formatter.objToJson(obj).getBytes(StandardCharsets.UTF_8);
+		byte[] bytes = compress ? deflate(raw) : raw;
+		return allocate(obj.isImmutable() ? KIND_JSON_IMMUTABLE : KIND_JSON, obj.getParentType(), obj.getParentHash(),
+				bytes, raw.length);
+	}
+
+	private synchronized Slot allocate(byte kind, String parentType, String parentHash, byte[] bytes, int rawLength) {
+		if (currentChunk == null || currentChunkPos + bytes.length > currentChunk.capacity()) {
+			int chunkSize = currentChunk == null ? MIN_CHUNK_SIZE : Math.min(MAX_CHUNK_SIZE, currentChunk.capacity() * 2);
+			currentChunk = ByteBuffer.allocateDirect(Math.max(chunkSize, bytes.length));
+			currentChunkPos = 0;
+			chunks.add(currentChunk);
+			allocatedBytes += currentChunk.capacity();
+		}
+		ByteBuffer b = currentChunk.duplicate();
+		b.position(currentChunkPos);
+		b.put(bytes);
+		Slot s = new Slot(kind, parentType, parentHash, currentChunk, currentChunkPos, bytes.length, rawLength);
+		currentChunkPos += bytes.length;
+		return s;
+	}
+
+	private byte[] read(Slot s) {
+		byte[] bytes = new byte[s.length];
+		ByteBuffer b = s.chunk.duplicate();
+		b.position(s.offset);
+		b.get(bytes);
+		return bytes;
+	}
+
+	private OpObject decode(Slot s) {
+		if (s.kind == KIND_NULL) {
+			return OpObject.NULL;
+		}
+		OpObject obj;
+		if (s.kind == KIND_DELETED) {
+			obj = new OpObject(true);
+		} else {
+			byte[] bytes = read(s);
+			byte[] raw = compress ? inflate(bytes, s.rawLength) : bytes;
+			obj = formatter.parseObjectLazy(new String(raw, StandardCharsets.UTF_8));
+		}
+		obj.setParentOp(s.parentType, s.parentHash);
+		if (s.kind == KIND_JSON_IMMUTABLE) {
+			obj.makeImmutable();
+		}
+		return obj;
+	}
+
+	private static byte[] deflate(byte[] raw) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+			byte[] buf = new byte[4096];
+			while (!deflater.finished()) {
+				int l = deflater.deflate(buf);
+				out.write(buf, 0, l);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] bytes, int rawLength) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(bytes);
+			byte[] raw = new byte[rawLength];
+			int l = 0;
+			while (l < rawLength && !inflater.finished()) {
+				l += inflater.inflate(raw, l, rawLength - l);
+			}
+			return raw;
+		} catch (DataFormatException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.openplacereviews.opendb.ops;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State derived from all objects of 1 type (i.e. roles closure or validation rules by type) shared by all chains
+ * with the same rules. State is stored with version of objects of the type through the whole superblock stack,
+ * so it is reused by different chain instances while objects of the type are not changed.
+ * Few latest versions are kept cause queue chain and block candidate chain could be validated at the same time.
+ * Version references object maps weakly (see WeakIdentityKey), so cached states don't keep removed chains in memory.
+ */
+class OpPrivateDerivedStateCache {
+
+	private static final int MAX_VERSIONS = 4;
+
+	private final Map<String, LinkedHashMap<List<Object>, Object>> states = new ConcurrentHashMap<>();
+
+	public Object get(String key, List<Object> version) {
+		LinkedHashMap<List<Object>, Object> versions = states.get(key);
+		if (versions == null) {
+			return null;
+		}
+		synchronized (versions) {
+			return versions.get(version);
+		}
+	}
+
+	public void put(String key, List<Object> version, Object value) {
+		LinkedHashMap<List<Object>, Object> versions = states.computeIfAbsent(key, k -> new LinkedHashMap<>(8, 0.75f, true));
+		synchronized (versions) {
+			versions.put(version, value);
+			Iterator<List<Object>> it = versions.keySet().iterator();
+			while (versions.size() > MAX_VERSIONS && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	public void clear() {
+		states.clear();
+	}
+
+	/**
+	 * Identity of object (i.e. object map of superblock) which doesn't prevent it from being garbage collected.
+	 * Key of collected object is never equal to any other key, so its states are evicted as old versions.
+	 */
+	static final class WeakIdentityKey {
+		private final WeakReference<Object> ref;
+		private final int hashCode;
+
+		WeakIdentityKey(Object o) {
+			this.ref = new WeakReference<>(o);
+			this.hashCode = System.identityHashCode(o);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof WeakIdentityKey)) {
+				return false;
+			}
+			Object o = ref.get();
+			return o != null && o == ((WeakIdentityKey) obj).ref.get();
+		}
+	}
+}
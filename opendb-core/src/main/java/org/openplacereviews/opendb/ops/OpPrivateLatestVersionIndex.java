@@ -0,0 +1,114 @@
+package org.openplacereviews.opendb.ops;
+
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Merged index of latest object versions for 1 type through the whole superblock stack.
+ * Key points to the superblock which stores latest version of the object or to the OpBlockChain.NULL
+ * in case object was deleted (tombstone). Absent key means that object doesn't exist in the chain.
+ * Index of the chain stores only objects of the chain itself and is chained to the index of its parent,
+ * chained indexes are flattened when they become too deep.
+ * Index is valid only while chain of parents it was built against stays the same.
+ */
+class OpPrivateLatestVersionIndex {
+
+	static final OpBlockChain TOMBSTONE = OpBlockChain.NULL;
+	// max amount of chained indexes visited by lookup
+	private static final int MAX_DEPTH = 8;
+
+	private final OpBlockChain[] ancestors;
+	// objects of this level (objects of all levels if there is no base)
+	private final Map<CompoundKey, OpBlockChain> owners;
+	// index of the parent chain
+	private final OpPrivateLatestVersionIndex base;
+	private final int depth;
+
+	public OpPrivateLatestVersionIndex(OpBlockChain parent) {
+		this.ancestors = getAncestors(parent);
+		this.owners = new ConcurrentHashMap<>();
+		this.base = null;
+		this.depth = 1;
+	}
+
+	/**
+	 * @param base index of the parent chain, objects of the chain are put on top of it
+	 */
+	public OpPrivateLatestVersionIndex(OpBlockChain parent, OpPrivateLatestVersionIndex base) {
+		this.ancestors = getAncestors(parent);
+		this.owners = new ConcurrentHashMap<>();
+		if (base.depth < MAX_DEPTH) {
+			this.base = base;
+			this.depth = base.depth + 1;
+		} else {
+			base.copyTo(owners);
+			this.base = null;
+			this.depth = 1;
+		}
+	}
+
+	/**
+	 * Creates index for the chain which merges the chain of this index and its parent.
+	 * Objects of both merged levels are owned by the merged chain, so they should be put to created index.
+	 */
+	OpPrivateLatestVersionIndex createMergedIndex(OpBlockChain parent) {
+		if (base != null && base.base != null) {
+			return new OpPrivateLatestVersionIndex(parent, base.base);
+		}
+		// flattened index has references to merged chains which are overridden by objects of the merged chain
+		OpPrivateLatestVersionIndex idx = new OpPrivateLatestVersionIndex(parent);
+		copyTo(idx.owners);
+		return idx;
+	}
+
+	private void copyTo(Map<CompoundKey, OpBlockChain> res) {
+		if (base != null) {
+			base.copyTo(res);
+		}
+		res.putAll(owners);
+	}
+
+	private static OpBlockChain[] getAncestors(OpBlockChain parent) {
+		List<OpBlockChain> lst = new ArrayList<>();
+		OpBlockChain p = parent;
+		while (p != null) {
+			lst.add(p);
+			p = p.getParent();
+		}
+		return lst.toArray(new OpBlockChain[lst.size()]);
+	}
+
+	public boolean isValid(OpBlockChain parent) {
+		OpBlockChain p = parent;
+		for (OpBlockChain a : ancestors) {
+			if (a != p) {
+				return false;
+			}
+			p = p.getParent();
+		}
+		return p == null;
+	}
+
+	void put(CompoundKey k, OpBlockChain owner, boolean deleted) {
+		owners.put(k, deleted ? TOMBSTONE : owner);
+	}
+
+	/**
+	 * returns null if object doesn't exist and TOMBSTONE if it was deleted
+	 */
+	public OpBlockChain getOwner(CompoundKey k) {
+		OpPrivateLatestVersionIndex idx = this;
+		while (idx != null) {
+			OpBlockChain owner = idx.owners.get(k);
+			if (owner != null) {
+				return owner;
+			}
+			idx = idx.base;
+		}
+		return null;
+	}
+}
@@ -4,11 +4,13 @@ import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
+import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
 
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
@@ -16,11 +18,16 @@ import java.util.stream.Stream;
 class OpPrivateObjectInstancesById {
 
 	private final String type;
-	private Map<CompoundKey, OpObject> objects = new ConcurrentHashMap<>();
+	private final Map<CompoundKey, OpObject> objects;
 	private volatile CacheObject cacheObject;
 	private Map<Object, CacheObject> cacheMap = null;
 	private AtomicInteger editVersion = new AtomicInteger(0);
 	private final BlockDbAccessInterface dbAccess;
+	// runtime index keys are maintained incrementally and they are not reset after edit
+	// (could contain keys of removed or overwritten versions)
+	private final Map<OpIndexColumn, Set<String>> indexKeys = new ConcurrentHashMap<>();
+	// built on first sorted fetch and maintained incrementally after (edits are guarded by indexKeys)
+	private volatile NavigableSet<CompoundKey> sortedKeys;
 
 	static class CacheObject {
 		Object cacheObject;
@@ -33,8 +40,22 @@ class OpPrivateObjectInstancesById {
 	}
 
 	public OpPrivateObjectInstancesById(String type, BlockDbAccessInterface dbAccess) {
+		this(type, dbAccess, null, false);
+	}
+
+	/**
+	 * @param compactFormatter - if not null runtime objects are kept serialized (system objects are always kept
+	 * as is cause they cache compiled rules)
+	 */
+	public OpPrivateObjectInstancesById(String type, BlockDbAccessInterface dbAccess,
+			JsonFormatter compactFormatter, boolean compress) {
 		this.type = type;
 		this.dbAccess = dbAccess;
+		if (compactFormatter != null && dbAccess == null && !type.startsWith(OpBlockchainRules.OP_TYPE_SYS)) {
+			this.objects = new OpPrivateCompactObjectsStore(compactFormatter, compress);
+		} else {
+			this.objects = new ConcurrentHashMap<>();
+		}
 	}
 
 	/**
@@ -46,9 +67,9 @@ class OpPrivateObjectInstancesById {
 	}
 	
 
-	Stream<Entry<CompoundKey, OpObject>> getRawObjects() {
+	Stream<Entry<CompoundKey, OpObject>> getRawObjects(boolean onlyKeys) {
 		if (dbAccess != null) {
-			return dbAccess.streamObjects(type, -1, false);
+			return dbAccess.streamObjects(type, -1, onlyKeys, null);
 		}
 		return objects.entrySet().stream();
 	}
@@ -57,6 +78,10 @@ class OpPrivateObjectInstancesById {
 		return dbAccess;
 	}
 
+	boolean isCompact() {
+		return objects instanceof OpPrivateCompactObjectsStore;
+	}
+
 	
 	public int countObjects() {
 		if(dbAccess != null) {
@@ -66,23 +91,53 @@ class OpPrivateObjectInstancesById {
 			return objects.size();
 		}
 	}
-	public Stream<Entry<CompoundKey, OpObject>> fetchObjects(ObjectsSearchRequest request, 
+	/**
+	 * returns objects (including deleted) sorted by key (see CompoundKey.COMPARATOR) after request.afterKey
+	 */
+	public Stream<Entry<CompoundKey, OpObject>> fetchSortedObjects(ObjectsSearchRequest request,
 			int superBlockSize, OpIndexColumn col, Object... args) throws DBStaleException {
-		// limit will be negative
-		int limit = request.limit - request.result.size();
 		Stream<Entry<CompoundKey, OpObject>> stream;
-		if(col != null) {
-			stream = col.streamObjects(this, superBlockSize, type, limit, request, args);
+		CompoundKey afterKey = request.afterKey;
+		if (col != null) {
+			stream = col.streamObjects(this, superBlockSize, type, -1, request, args);
+			if (dbAccess == null) {
+				if (afterKey != null) {
+					stream = stream.filter(e -> CompoundKey.COMPARATOR.compare(e.getKey(), afterKey) > 0);
+				}
+				stream = stream.sorted(Map.Entry.comparingByKey(CompoundKey.COMPARATOR));
+			}
 		} else {
 			if (dbAccess != null) {
-				stream = dbAccess.streamObjects(type, limit, request.requestOnlyKeys);
+				stream = dbAccess.streamObjects(type, -1, request.requestOnlyKeys, afterKey);
 			} else {
-				stream = objects.entrySet().stream();
+				NavigableSet<CompoundKey> keys = getSortedKeys();
+				if (afterKey != null) {
+					keys = keys.tailSet(afterKey, false);
+				}
+				stream = keys.stream().<Entry<CompoundKey, OpObject>>map(k -> {
+					OpObject o = objects.get(k);
+					return o == null ? null : new AbstractMap.SimpleImmutableEntry<>(k, o);
+				}).filter(Objects::nonNull);
 			}
 		}
 		return stream;
 	}
 
+	private NavigableSet<CompoundKey> getSortedKeys() {
+		NavigableSet<CompoundKey> keys = sortedKeys;
+		if (keys == null) {
+			synchronized (indexKeys) {
+				keys = sortedKeys;
+				if (keys == null) {
+					keys = new ConcurrentSkipListSet<>(CompoundKey.COMPARATOR);
+					keys.addAll(objects.keySet());
+					sortedKeys = keys;
+				}
+			}
+		}
+		return keys;
+	}
+
 	OpObject getByKey(CompoundKey k, boolean content) throws DBStaleException {
 		OpObject obj ;
 		if (dbAccess != null) {
@@ -93,6 +148,23 @@ class OpPrivateObjectInstancesById {
 		return obj;
 	}
 
+	/**
+	 * returns found objects including deleted
+	 */
+	Map<CompoundKey, OpObject> getByKeys(Collection<CompoundKey> keys, boolean content) throws DBStaleException {
+		if (dbAccess != null) {
+			return dbAccess.getObjectsByIds(type, keys, content);
+		}
+		Map<CompoundKey, OpObject> res = new HashMap<>();
+		for (CompoundKey k : keys) {
+			OpObject obj = objects.get(k);
+			if (obj != null) {
+				res.put(k, obj);
+			}
+		}
+		return res;
+	}
+
 	public OpObject getObjectById(String primaryKey, String secondaryKey) throws DBStaleException {
 		return getByKey(new CompoundKey(primaryKey, secondaryKey), true);
 	}
@@ -108,15 +180,67 @@ class OpPrivateObjectInstancesById {
 			throw new IllegalStateException(
 					String.format("Previous type %s doesn't match current type %s", prev.type, type));
 		}
-		Iterator<Entry<CompoundKey, OpObject>> objs = prev.objects.entrySet().iterator();
-		while (objs.hasNext()) {
-			Entry<CompoundKey, OpObject> e = objs.next();
-			if (!objects.containsKey(e.getKey()) || overwrite) {
-				objects.put(e.getKey(), e.getValue());
+		synchronized (indexKeys) {
+			boolean empty = objects.isEmpty();
+			if (isCompact() && prev.isCompact()) {
+				((OpPrivateCompactObjectsStore) objects).putAll((OpPrivateCompactObjectsStore) prev.objects, overwrite);
+			} else {
+				Iterator<Entry<CompoundKey, OpObject>> objs = prev.objects.entrySet().iterator();
+				while (objs.hasNext()) {
+					Entry<CompoundKey, OpObject> e = objs.next();
+					if (!objects.containsKey(e.getKey()) || overwrite) {
+						objects.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+			mergeIndexKeys(prev, empty);
+			if (sortedKeys != null) {
+				sortedKeys.addAll(prev.objects.keySet());
 			}
 		}
 		resetAfterEdit();
+	}
+
+	private void mergeIndexKeys(OpPrivateObjectInstancesById prev, boolean empty) {
+		if (empty) {
+			for (Entry<OpIndexColumn, Set<String>> e : prev.indexKeys.entrySet()) {
+				Set<String> keys = ConcurrentHashMap.newKeySet();
+				keys.addAll(e.getValue());
+				indexKeys.put(e.getKey(), keys);
+			}
+			return;
+		}
+		Iterator<Entry<OpIndexColumn, Set<String>>> it = indexKeys.entrySet().iterator();
+		while (it.hasNext()) {
+			Entry<OpIndexColumn, Set<String>> e = it.next();
+			Set<String> prevKeys = prev.indexKeys.get(e.getKey());
+			if (prevKeys != null) {
+				e.getValue().addAll(prevKeys);
+			} else {
+				// will be rebuilt on demand
+				it.remove();
+			}
+		}
+	}
 
+	Set<String> getIndexKeys(OpIndexColumn col) {
+		if (dbAccess != null) {
+			throw new UnsupportedOperationException();
+		}
+		Set<String> keys = indexKeys.get(col);
+		if (keys == null) {
+			synchronized (indexKeys) {
+				keys = indexKeys.get(col);
+				if (keys == null) {
+					keys = ConcurrentHashMap.newKeySet();
+					for (OpObject o : objects.values()) {
+						col.evalIndexKeys(o, keys);
+					}
+					indexKeys.put(col, keys);
+				}
+			}
+		}
+		return keys;
 	}
 
 	void resetAfterEdit() {
@@ -125,11 +249,22 @@ class OpPrivateObjectInstancesById {
 		cacheMap = null;
 	}
 
+	// returns previous version (always null for compact objects which don't decode overwritten versions)
 	public OpObject add(List<String> id, OpObject newObj) {
 		if (dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		OpObject r = objects.put(new CompoundKey(0, id), newObj == null ? OpObject.NULL : newObj);
+		OpObject r;
+		synchronized (indexKeys) {
+			CompoundKey k = new CompoundKey(0, id);
+			r = objects.put(k, newObj == null ? OpObject.NULL : newObj);
+			if (sortedKeys != null) {
+				sortedKeys.add(k);
+			}
+			for (Entry<OpIndexColumn, Set<String>> e : indexKeys.entrySet()) {
+				e.getKey().evalIndexKeys(newObj, e.getValue());
+			}
+		}
 		resetAfterEdit();
 		return r;
 	}
@@ -139,7 +274,14 @@ class OpPrivateObjectInstancesById {
 		if (dbAccess != null) {
 			throw new UnsupportedOperationException();
 		}
-		OpObject r = objects.remove( new CompoundKey(0, id));
+		OpObject r;
+		synchronized (indexKeys) {
+			CompoundKey k = new CompoundKey(0, id);
+			r = objects.remove(k);
+			if (sortedKeys != null) {
+				sortedKeys.remove(k);
+			}
+		}
 		resetAfterEdit();
 		return r;
 	}
@@ -0,0 +1,125 @@
+package org.openplacereviews.opendb.ops;
+
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
+
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
+
+/**
+ * Lazy merge of sorted by key object streams of superblocks (level 0 is the top superblock).
+ * Object of upper superblock shadows objects with the same key of lower superblocks, deleted objects are
+ * returned as well cause they need to be skipped by the caller.
+ */
+class OpPrivateObjectsMergeIterator implements Iterator<Entry<CompoundKey, OpObject>>, AutoCloseable {
+
+	private final List<Level> levels = new ArrayList<>();
+	private final PriorityQueue<Level> heads = new PriorityQueue<>(new Comparator<Level>() {
+
+		@Override
+		public int compare(Level o1, Level o2) {
+			int c = CompoundKey.COMPARATOR.compare(o1.head.getKey(), o2.head.getKey());
+			if (c != 0) {
+				return c;
+			}
+			return Integer.compare(o1.level, o2.level);
+		}
+	});
+	private final boolean checkUpperLevels;
+	private Entry<CompoundKey, OpObject> next;
+
+	private static class Level {
+		final int level;
+		final OpPrivateObjectInstancesById oi;
+		final Stream<Entry<CompoundKey, OpObject>> stream;
+		final Iterator<Entry<CompoundKey, OpObject>> it;
+		Entry<CompoundKey, OpObject> head;
+
+		Level(int level, OpPrivateObjectInstancesById oi, Stream<Entry<CompoundKey, OpObject>> stream) {
+			this.level = level;
+			this.oi = oi;
+			this.stream = stream;
+			this.it = stream.iterator();
+		}
+
+		boolean advance() {
+			head = it.hasNext() ? it.next() : null;
+			return head != null;
+		}
+
+		boolean advanceAfter(CompoundKey k) {
+			while (advance()) {
+				if (CompoundKey.COMPARATOR.compare(head.getKey(), k) != 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param checkUpperLevels - streams are filtered (i.e. by index) and object of upper superblock could be
+	 * missing in its stream, so upper superblocks need to be checked by key
+	 */
+	public OpPrivateObjectsMergeIterator(boolean checkUpperLevels) {
+		this.checkUpperLevels = checkUpperLevels;
+	}
+
+	public void addLevel(OpPrivateObjectInstancesById oi, Stream<Entry<CompoundKey, OpObject>> stream) {
+		Level l = new Level(levels.size(), oi, stream);
+		levels.add(l);
+		if (l.advance()) {
+			heads.add(l);
+		}
+	}
+
+	@Override
+	public boolean hasNext() throws DBStaleException {
+		while (next == null && !heads.isEmpty()) {
+			Level top = heads.poll();
+			Entry<CompoundKey, OpObject> e = top.head;
+			// skip older versions with the same key
+			while (!heads.isEmpty() && CompoundKey.COMPARATOR.compare(heads.peek().head.getKey(), e.getKey()) == 0) {
+				Level l = heads.poll();
+				if (l.advanceAfter(e.getKey())) {
+					heads.add(l);
+				}
+			}
+			if (top.advanceAfter(e.getKey())) {
+				heads.add(top);
+			}
+			if (!checkUpperLevels || !existsInUpperLevels(top.level, e.getKey())) {
+				next = e;
+			}
+		}
+		return next != null;
+	}
+
+	private boolean existsInUpperLevels(int level, CompoundKey k) throws DBStaleException {
+		for (int i = 0; i < level; i++) {
+			if (levels.get(i).oi.getByKey(k, false) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Entry<CompoundKey, OpObject> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Entry<CompoundKey, OpObject> e = next;
+		next = null;
+		return e;
+	}
+
+	@Override
+	public void close() {
+		for (Level l : levels) {
+			l.stream.close();
+		}
+		heads.clear();
+	}
+}
@@ -5,6 +5,23 @@ import org.openplacereviews.opendb.util.OUtils;
 import java.util.*;
 
 public class CompoundKey implements Collection<String> {
+	
+	// key order matches db order by p1, p2... with "C" collation (code points, nulls last)
+	public static final Comparator<CompoundKey> COMPARATOR = new Comparator<CompoundKey>() {
+
+		@Override
+		public int compare(CompoundKey o1, CompoundKey o2) {
+			int sz = Math.max(o1.size(), o2.size());
+			for (int i = 0; i < sz; i++) {
+				int c = compareStrings(o1.get(i), o2.get(i));
+				if (c != 0) {
+					return c;
+				}
+			}
+			return 0;
+		}
+	};
+	
 	public final String first;
 	public final String second;
 	public final int hashcode;
@@ -58,6 +75,40 @@ public class CompoundKey implements Collection<String> {
 		this.others = others;
 	}
 
+	public String get(int ind) {
+		if (ind == 0) {
+			return first;
+		} else if (ind == 1) {
+			return second;
+		} else if (others != null && others.size() > ind - 2) {
+			return others.get(ind - 2);
+		}
+		return null;
+	}
+	
+	public static int compareStrings(String s1, String s2) {
+		if (s1 == null || s2 == null) {
+			return s1 == s2 ? 0 : (s1 == null ? 1 : -1);
+		}
+		int i1 = 0;
+		int i2 = 0;
+		while (i1 < s1.length() && i2 < s2.length()) {
+			int c1 = s1.codePointAt(i1);
+			int c2 = s2.codePointAt(i2);
+			if (c1 != c2) {
+				return c1 < c2 ? -1 : 1;
+			}
+			i1 += Character.charCount(c1);
+			i2 += Character.charCount(c2);
+		}
+		if (i1 < s1.length()) {
+			return 1;
+		} else if (i2 < s2.length()) {
+			return -1;
+		}
+		return 0;
+	}
+
 	@Override
 	public int hashCode() {
 		return hashcode;
@@ -26,6 +26,7 @@ public class OpenDBScheduledServices {
 	private long previousReplicateCheck = 0;
 	private long previousBotsCheck = 0;
 	private long opsAppeared = 0;
+	private long previousSnapshot = System.currentTimeMillis();
 	
 	@Autowired
 	private BlocksManager blocksManager;
@@ -92,6 +93,19 @@ public class OpenDBScheduledServices {
 		}
 	}
 
+	@Scheduled(fixedRate = BLOCK_CREATION_PULSE_INTERVAL_SECONDS * SECOND, initialDelay = MINUTE)
+	public void saveSnapshot() {
+		long now = System.currentTimeMillis();
+		if (now - previousSnapshot >= getSnapshotInterval()) {
+			previousSnapshot = now;
+			try {
+				blocksManager.saveSnapshot();
+			} catch (Exception e) {
+				LOGGER.error("Error saving snapshot: " + e.getMessage(), e);
+			}
+		}
+	}
+
 	public int getReplicateInterval() {
 		return settingsManager.OPENDB_REPLICATE_INTERVAL.get();
 	}
@@ -108,6 +122,10 @@ public class OpenDBScheduledServices {
 		return settingsManager.OPENDB_BLOCK_CREATE_MIS_SECONDS_INTERVAL.get();
 	}
 
+	public long getSnapshotInterval() {
+		return settingsManager.OPENDB_SNAPSHOT_INTERVAL.get() * 1000L;
+	}
+
 	public Long getBotsMinInterval() {
 		return settingsManager.OPENDB_BOTS_MIN_INTERVAL.get() * 1000L;
 	}
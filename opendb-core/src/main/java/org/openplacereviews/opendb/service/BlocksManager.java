@@ -18,13 +18,29 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.PreDestroy;
 
 @Service
 public class BlocksManager {
@@ -69,10 +85,12 @@ public class BlocksManager {
 	
 	private KeyPair serverKeyPair;
 	
-	private OpBlockChain blockchain;
+	private volatile OpBlockChain blockchain;
 	
 	private String statusDescription = "";
 	
+	private ThreadPoolExecutor replicatePool;
+	
 	public String getServerPrivateKey() {
 		return serverPrivateKey;
 	}
@@ -163,14 +181,30 @@ public class BlocksManager {
 		return false;
 	}
 
-	public synchronized boolean addOperation(OpOperation originalOp) {
-		if (blockchain == null) {
+	public boolean addOperation(OpOperation originalOp) {
+		OpBlockChain blc = blockchain;
+		if (blc == null) {
 			return false;
 		}
-		Metric m = mBlockAddOpp.start();
 		// copy operation so it's not possible to insert even cache fields
 		OpOperation op = new OpOperation(originalOp, false);
 		op.makeImmutable();
+		// stateless checks (hash, size, signatures) run concurrently, only validation against the chain is serialized
+		Metric pm = mBlockAddOpPreverify.start();
+		blc.getRules().preverifyOperation(blc, op);
+		pm.capture();
+		try {
+			return addPreverifiedOperation(op);
+		} finally {
+			blc.getRules().clearPreverifiedOperation(op);
+		}
+	}
+
+	private synchronized boolean addPreverifiedOperation(OpOperation op) {
+		if (blockchain == null) {
+			return false;
+		}
+		Metric m = mBlockAddOpp.start();
 		boolean existing = dataManager.validateExistingOperation(op);
 		if (!existing) {
 			dataManager.insertOperation(op);
@@ -301,16 +335,11 @@ public class BlocksManager {
 		// blockchain = new OpBlockChain(blockchain.getParent(), blockchain.getRules());
 	}
 	
-	private Reader readerFromUrl(String url) throws IOException {
-		return new InputStreamReader(new URL(url).openStream());
-	}
-	
 	public boolean replicate() {
 		if (isReplicateOn() && blockchain != null) {
 			try {
 				String from = blockchain.getLastBlockRawHash();
-				BlocksListResult replicateBlockHeaders = formatter
-						.fromJson(readerFromUrl(getReplicateUrl() + "blocks?from=" + from), BlocksListResult.class);
+				BlocksListResult replicateBlockHeaders = downloadBlockHeaders(from);
 				LinkedList<OpBlock> headersToReplicate = replicateBlockHeaders.blocks;
 				if (!OUtils.isEmpty(from) && headersToReplicate.size() > 0) {
 					if (!OUtils.equals(headersToReplicate.peekFirst().getRawHash(), from)) {
@@ -322,43 +351,267 @@ public class BlocksManager {
 						headersToReplicate.removeFirst();
 					}
 				}
-				for (OpBlock header : headersToReplicate) {
-					OpBlock fullBlock = downloadBlock(header);
-					if (fullBlock == null) {
-						logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED,
-								ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED.getErrorFormat(header.getRawHash()),
-								null);
+				int prefetch = settingsManager.OPENDB_REPLICATE_PREFETCH_BLOCKS.get();
+				if (prefetch > 0) {
+					return replicatePipelined(headersToReplicate, prefetch);
+				}
+				if (settingsManager.OPENDB_REPLICATE_RANGE_DOWNLOAD.get()) {
+					return replicateRange(headersToReplicate.iterator());
+				}
+				return replicateByBlock(headersToReplicate.iterator());
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+				logSystem.logError(null, ErrorType.MGMT_REPLICATION_IO_FAILED,
+						"Failed to replicate from " + getReplicateUrl(), e);
+			}
+		}
+		return false;
+	}
+
+	private boolean replicateByBlock(Iterator<OpBlock> headers) throws IOException {
+		while (headers.hasNext()) {
+			OpBlock header = headers.next();
+			OpBlock fullBlock = downloadBlock(header);
+			if (!replicateDownloadedBlock(header, fullBlock)) {
+				return false;
+			}
+			if (!isReplicateOn()) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	// blocks are read one by one from a single (limited by server) stream of blocks after the last block
+	private boolean replicateRange(Iterator<OpBlock> headers) throws IOException {
+		if (headers.hasNext() && !isBlocksRangeSupported()) {
+			LOGGER.warn("Range block download is not supported by " + getReplicateUrl() + ", blocks are downloaded one by one");
+			return replicateByBlock(headers);
+		}
+		while (headers.hasNext()) {
+			int replicated = 0;
+			try (BufferedReader reader = openBlocksRange(blockchain.getLastBlockRawHash())) {
+				String line;
+				while (headers.hasNext() && (line = reader.readLine()) != null) {
+					OpBlock header = headers.next();
+					OpBlock fullBlock = formatter.parseBlock(line);
+					if (!OUtils.equals(fullBlock.getRawHash(), header.getRawHash())) {
+						fullBlock = null;
+					}
+					if (!replicateDownloadedBlock(header, fullBlock)) {
 						return false;
 					}
+					replicated++;
+					if (!isReplicateOn()) {
+						return true;
+					}
+				}
+			}
+			if (replicated == 0 && headers.hasNext()) {
+				OpBlock header = headers.next();
+				if (!replicateDownloadedBlock(header, downloadBlock(header))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// servers without range download respond with 404 to the endpoint itself,
+	// while 404 to the range request means that server doesn't have the block to start from
+	private boolean isBlocksRangeSupported() throws IOException {
+		try (InputStream is = new URL(getReplicateUrl() + "blocks-range?limit=0").openStream()) {
+			return true;
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+	}
+
+	private BufferedReader openBlocksRange(String from) throws IOException {
+		URLConnection conn = new URL(getReplicateUrl() + "blocks-range?from=" + from).openConnection();
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+		InputStream is = conn.getInputStream();
+		if ("gzip".equals(conn.getContentEncoding())) {
+			is = new GZIPInputStream(is, 1 << 16);
+		}
+		return new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	// blocks are downloaded and their operations are preverified ahead by worker threads, 
+	// while blocks are applied to the blockchain sequentially
+	private boolean replicatePipelined(LinkedList<OpBlock> headersToReplicate, int prefetch) throws IOException {
+		ExecutorService pool = getReplicatePool();
+		Deque<Future<OpBlock>> downloads = new ArrayDeque<Future<OpBlock>>();
+		Iterator<OpBlock> headers = headersToReplicate.iterator();
+		try {
+			for (OpBlock header : headersToReplicate) {
+				while (downloads.size() < prefetch && headers.hasNext()) {
+					downloads.add(pool.submit(downloadAndPreverifyBlock(headers.next())));
+				}
+				Metric m = mBlockReplicateWait.start();
+				OpBlock fullBlock = getDownloadedBlock(downloads.poll());
+				m.capture();
+				if (!replicateDownloadedBlock(header, fullBlock)) {
+					return false;
+				}
+				if (!isReplicateOn()) {
+					break;
+				}
+			}
+			return true;
+		} finally {
+			// blocks which are downloaded but not replicated
+			for (Future<OpBlock> f : downloads) {
+				if (!f.cancel(true)) {
+					clearPreverifiedOperations(f);
+				}
+			}
+		}
+	}
+
+	// pool is shared between replication runs and resized if number of threads is changed in settings
+	private synchronized ExecutorService getReplicatePool() {
+		int threads = Math.max(1, settingsManager.OPENDB_REPLICATE_VERIFY_THREADS.get());
+		if (replicatePool == null) {
+			ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+					.setNameFormat("replicate-%d").setDaemon(true).build();
+			replicatePool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads, namedThreadFactory);
+		} else if (threads > replicatePool.getMaximumPoolSize()) {
+			replicatePool.setMaximumPoolSize(threads);
+			replicatePool.setCorePoolSize(threads);
+		} else if (threads < replicatePool.getMaximumPoolSize()) {
+			replicatePool.setCorePoolSize(threads);
+			replicatePool.setMaximumPoolSize(threads);
+		}
+		return replicatePool;
+	}
+
+	@PreDestroy
+	public synchronized void shutdownReplicatePool() {
+		if (replicatePool != null) {
+			replicatePool.shutdownNow();
+			replicatePool = null;
+		}
+	}
+
+	private void clearPreverifiedOperations(Future<OpBlock> f) {
+		try {
+			clearPreverifiedOperations(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// block wasn't preverified
+		}
+	}
+
+	private void clearPreverifiedOperations(OpBlock block) {
+		if (block != null) {
+			for (OpOperation o : block.getOperations()) {
+				blockchain.getRules().clearPreverifiedOperation(o);
+			}
+		}
+	}
+
+	private Callable<OpBlock> downloadAndPreverifyBlock(OpBlock header) {
+		return new Callable<OpBlock>() {
+
+			@Override
+			public OpBlock call() throws Exception {
+				OpBlock fullBlock = downloadBlock(header);
+				if (fullBlock != null) {
+					Metric m = mBlockReplicatePreverify.start();
 					fullBlock.makeImmutable();
+					OpBlockChain blc = blockchain;
 					for (OpOperation o : fullBlock.getOperations()) {
-						if (!dataManager.validateExistingOperation(o)) {
-							dataManager.insertOperation(o);
-						}
+						blc.getRules().preverifyOperation(blc, o);
 					}
-					replicateOneBlock(fullBlock);
-					if (!isReplicateOn()) {
-						break;
+					m.capture();
+					if (Thread.currentThread().isInterrupted()) {
+						// replication is stopped and block won't be replicated
+						clearPreverifiedOperations(fullBlock);
 					}
 				}
-				return true;
-			} catch (IOException e) {
-				LOGGER.error(e.getMessage(), e);
-				logSystem.logError(null, ErrorType.MGMT_REPLICATION_IO_FAILED,
-						"Failed to replicate from " + getReplicateUrl(), e);
+				return fullBlock;
 			}
+		};
+	}
+
+	private OpBlock getDownloadedBlock(Future<OpBlock> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private boolean replicateDownloadedBlock(OpBlock header, OpBlock fullBlock) {
+		if (fullBlock == null) {
+			logSystem.logError(header, ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED,
+					ErrorType.MGMT_REPLICATION_BLOCK_DOWNLOAD_FAILED.getErrorFormat(header.getRawHash()),
+					null);
+			return false;
+		}
+		fullBlock.makeImmutable();
+		for (OpOperation o : fullBlock.getOperations()) {
+			if (!dataManager.validateExistingOperation(o)) {
+				dataManager.insertOperation(o);
+			}
+		}
+		try {
+			replicateOneBlock(fullBlock);
+		} finally {
+			// signatures of replicated operations are already used
+			clearPreverifiedOperations(fullBlock);
+		}
+		return true;
+	}
+
+	private BlocksListResult downloadBlockHeaders(String from) throws IOException {
+		URLConnection conn = openReplicateConnection(getReplicateUrl() + "blocks?from=" + from);
+		try (InputStream is = conn.getInputStream()) {
+			if (isBinaryResponse(conn)) {
+				BlocksListResult res = new BlocksListResult();
+				res.blockDepth = new OpBinaryFormat(formatter).readBlocks(is, res.blocks);
+				return res;
+			}
+			return formatter.fromJson(new InputStreamReader(is), BlocksListResult.class);
 		}
-		return false;
 	}
 
 	private OpBlock downloadBlock(OpBlock header) throws MalformedURLException, IOException {
-		URL downloadByHash = new URL(getReplicateUrl() + "block-by-hash?hash=" + header.getRawHash());
-		OpBlock res = formatter.fromJson(new InputStreamReader(downloadByHash.openStream()), OpBlock.class);
+		URLConnection conn = openReplicateConnection(getReplicateUrl() + "block-by-hash?hash=" + header.getRawHash());
+		OpBlock res;
+		try (InputStream is = conn.getInputStream()) {
+			if (isBinaryResponse(conn)) {
+				res = new OpBinaryFormat(formatter).readBlock(is);
+			} else {
+				res = formatter.fromJson(new InputStreamReader(is), OpBlock.class);
+			}
+		}
 		if(res.getBlockId() == -1) {
 			return null;
 		}
 		return res;
 	}
+
+	private URLConnection openReplicateConnection(String url) throws IOException {
+		if (settingsManager.OPENDB_REPLICATE_BINARY.get()) {
+			// servers which don't support binary format ignore parameter and respond with json
+			url += "&format=" + OpBinaryFormat.FORMAT_NAME;
+		}
+		return new URL(url).openConnection();
+	}
+
+	private boolean isBinaryResponse(URLConnection conn) {
+		String contentType = conn.getContentType();
+		return contentType != null && contentType.startsWith(OpBinaryFormat.CONTENT_TYPE);
+	}
 	
 	public synchronized boolean replicateOneBlock(OpBlock block) {
 		Metric m = mBlockSync.start();
@@ -498,6 +751,25 @@ public class BlocksManager {
 	public OpBlockChain getBlockchain() {
 		return blockchain == null ? OpBlockChain.NULL : blockchain;
 	}
+
+	public boolean saveSnapshot() {
+		OpBlockChain blc;
+		synchronized (this) {
+			blc = blockchain;
+		}
+		// snapshot is written without lock, so blocks and operations are not blocked
+		if (blc == null) {
+			return false;
+		}
+		return dataManager.saveSnapshot(blc);
+	}
+
+	@PreDestroy
+	public void saveSnapshotOnShutdown() {
+		if (saveSnapshot()) {
+			LOGGER.info("Snapshot of runtime blockchain is saved");
+		}
+	}
 	
 	public Map<String, OpBlock> getOrphanedBlocks() {
 		return dataManager.getOrphanedBlocks();
@@ -569,7 +841,7 @@ public class BlocksManager {
 		Deque<OpOperation> ops = blockchain.getQueueOperations();
 		for (OpOperation o : ops) {
 			opsCnt++;
-			opsSize += formatter.opToJson(o).length();
+			opsSize += blockchain.getRules().getOperationSize(o);
 		}
 		return capacity(opsSize, opsCnt);
 	}
@@ -584,8 +856,9 @@ public class BlocksManager {
 		int size = 0;
 		int opsCnt = 0;
 		List<OpOperation> candidates = new ArrayList<OpOperation>();
+		OpBlockchainRules rules = blockchain.getRules();
 		for (OpOperation o : q) {
-			int l = formatter.opToJson(o).length();
+			int l = rules.getOperationSize(o);
 			if (size + l > OpBlockchainRules.MAX_ALL_OP_SIZE_MB) {
 				break;
 			}
@@ -612,12 +885,15 @@ public class BlocksManager {
 	}
 
 	private static final PerformanceMetric mBlockAddOpp = PerformanceMetrics.i().getMetric("block.mgmt.addop");
+	private static final PerformanceMetric mBlockAddOpPreverify = PerformanceMetrics.i().getMetric("block.mgmt.addop.preverify");
 	private static final PerformanceMetric mBlockCreate = PerformanceMetrics.i().getMetric("block.mgmt.create.total");
 	private static final PerformanceMetric mBlockCreateAddOps = PerformanceMetrics.i().getMetric("block.mgmt.create.addops");
 	private static final PerformanceMetric mBlockCreateValidate = PerformanceMetrics.i().getMetric("block.mgmt.create.validate");
 	private static final PerformanceMetric mBlockCreateExtResources = PerformanceMetrics.i().getMetric("block.mgmt.create.extresources");
 	private static final PerformanceMetric mBlockSync = PerformanceMetrics.i().getMetric("block.mgmt.sync");
 	private static final PerformanceMetric mBlockReplicate = PerformanceMetrics.i().getMetric("block.mgmt.replicate.total");
+	private static final PerformanceMetric mBlockReplicateWait = PerformanceMetrics.i().getMetric("block.mgmt.replicate.prefetch.wait");
+	private static final PerformanceMetric mBlockReplicatePreverify = PerformanceMetrics.i().getMetric("block.mgmt.replicate.prefetch.preverify");
 	private static final PerformanceMetric mBlockSaveBlock = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.saveblock");
 	private static final PerformanceMetric mBlockSaveHistory = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.savesuperblock");
 	private static final PerformanceMetric mBlockSaveSuperBlock = PerformanceMetrics.i().getMetric("block.mgmt.replicate.db.savehistory");
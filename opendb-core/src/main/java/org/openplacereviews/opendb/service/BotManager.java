@@ -8,6 +8,7 @@ import static org.openplacereviews.opendb.service.bots.PublicDataUpdateBot.PUBLI
 
 import java.lang.reflect.Constructor;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
@@ -38,6 +39,7 @@ import org.springframework.stereotype.Service;
 public class BotManager {
 
 	private static final Log LOGGER = LogFactory.getLog(BotManager.class);
+	private static final String DERIVED_BOTS = "bots";
 
 	@Autowired
 	private BlocksManager blocksManager;
@@ -50,7 +52,6 @@ public class BotManager {
 	
 	@Autowired
 	private PublicDataManager publicDataManager;
-	private int publicDataManagerVersion;
 
 	private Map<String, IOpenDBBot<?>> bots = new TreeMap<String, IOpenDBBot<?>>();
 	private Map<String, IOpenDBBot<?>> systemBots = new TreeMap<String, IOpenDBBot<?>>();
@@ -68,23 +69,15 @@ public class BotManager {
 		systemBots.put(bt.getId(), bt);
 	}
 
-	@SuppressWarnings("unchecked")
 	public Map<String, IOpenDBBot<?>> getBots() {
-		OpBlockChain.ObjectsSearchRequest req = new OpBlockChain.ObjectsSearchRequest();
-		req.requestCache = true;
 		OpBlockChain blc = blocksManager.getBlockchain();
-		blc.fetchAllObjects(OpBlockchainRules.OP_BOT, req);
-		int publicDataManagerVersion = publicDataManager.getVersion();
-		if (req.cacheObject != null && publicDataManagerVersion == this.publicDataManagerVersion) {
-			return (Map<String, IOpenDBBot<?>>) req.cacheObject;
-		}
-		this.publicDataManagerVersion = publicDataManagerVersion;
-		return recreateBots(req, blc);
+		// bots are recreated when bot objects or public data endpoints are changed
+		return blc.getDerivedState(OpBlockchainRules.OP_BOT, DERIVED_BOTS, publicDataManager.getVersion(), this::recreateBots);
 	}
 
-	private synchronized Map<String, IOpenDBBot<?>> recreateBots(OpBlockChain.ObjectsSearchRequest req, OpBlockChain blc) {
+	private synchronized Map<String, IOpenDBBot<?>> recreateBots(List<OpObject> botObjects) {
 		Map<String, IOpenDBBot<?>> nbots = new TreeMap<>(this.bots);
-		for (OpObject cfg : req.result) {
+		for (OpObject cfg : botObjects) {
 			recreateBotInstance(nbots, cfg);
 		}
 		nbots.putAll(this.systemBots);
@@ -100,7 +93,6 @@ public class BotManager {
 			}
 		}
 		this.bots = nbots;
-		blc.setCacheAfterSearch(req, nbots);
 		return nbots;
 	}
 
@@ -8,26 +8,38 @@ import org.openplacereviews.opendb.OpenDBServer.MetadataDb;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.*;
 import org.openplacereviews.opendb.ops.OpBlockChain.BlockDbAccessInterface;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.IPFSService.ResourceDTO;
+import org.openplacereviews.opendb.service.RuntimeChainSnapshot.SnapshotLevel;
+import org.openplacereviews.opendb.service.RuntimeChainSnapshot.SnapshotState;
+import org.openplacereviews.opendb.util.BloomFilter;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.jdbc.support.rowset.SqlRowSet;
+import org.springframework.jdbc.datasource.SmartDataSource;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.sql.DataSource;
+import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
 import java.sql.Array;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
@@ -48,6 +60,18 @@ public class DBConsensusManager {
 
 	protected static final Log LOGGER = LogFactory.getLog(DBConsensusManager.class);
 
+	private static final String SUPERBLOCK_BLOCKS_TMP = "superblock_blocks_tmp";
+	private static final String SUPERBLOCK_OPS_TMP = "superblock_ops_tmp";
+	private static final String LIVE_DELTAS_MARKER = "";
+	// releases db connections of superblock streams which are not closed
+	private static final Cleaner CURSOR_CLEANER = Cleaner.create();
+
+	private static final PerformanceMetric mSaveSuperblock = PerformanceMetrics.i().getMetric("db.superblock.save.total");
+	private static final PerformanceMetric mSaveSuperblockOps = PerformanceMetrics.i().getMetric("db.superblock.save.ops");
+	private static final PerformanceMetric mSaveSuperblockObjs = PerformanceMetrics.i().getMetric("db.superblock.save.objs");
+	private static final PerformanceMetric mSaveSnapshot = PerformanceMetrics.i().getMetric("db.snapshot.save");
+	private static final PerformanceMetric mRestoreSnapshot = PerformanceMetrics.i().getMetric("db.snapshot.restore");
+
 	// check SimulateSuperblockCompactSequences to verify numbers
 
 	@Autowired
@@ -76,6 +100,8 @@ public class DBConsensusManager {
 	private Map<String, SuperblockDbAccess> dbSuperBlocks = new ConcurrentHashMap<>();
 	private OpBlockChain dbManagedChain = null;
 	private OpBlockchainRules rules;
+	private volatile String lastSnapshotKey;
+	private final Object snapshotLock = new Object();
 
 
 	public Map<String, OpBlock> getOrphanedBlocks() {
@@ -100,6 +126,9 @@ public class DBConsensusManager {
 	// mainchain could change
 	public OpBlockChain init(MetadataDb metadataDB) {
 		settingsManager.initPreferences();
+		OpBlockChain.USE_LATEST_VERSION_INDEX = settingsManager.OPENDB_LATEST_VERSION_INDEX.get();
+		OpBlockChain.COMPACT_RUNTIME_OBJECTS = settingsManager.OPENDB_COMPACT_RUNTIME_OBJECTS.get();
+		OpBlockChain.COMPRESS_RUNTIME_OBJECTS = settingsManager.OPENDB_COMPRESS_RUNTIME_OBJECTS.get();
 		dbSchema.initializeDatabaseSchema(metadataDB, jdbcTemplate);
 		backupManager.init();
 		rules = new OpBlockchainRules(formatter, logSystem);
@@ -117,30 +146,167 @@ public class DBConsensusManager {
 			LOGGER.info(String.format("### Selected main blockchain with '%s' and %d id. Orphaned blocks %d. ###",
 					dbManagedChain.getLastBlockRawHash(), dbManagedChain.getLastBlockId(), orphanedBlocks.size()));
 		}
-		LOGGER.info("... Loading blocks from database ...");
-		OpBlockChain topChain = loadBlocks(topBlockInfo, dbManagedChain, rules);
-		LOGGER.info(String.format("### Loaded %d blocks ###", topChain.getSuperblockSize()));
-
-		OpBlockChain blcQueue = new OpBlockChain(topChain, rules);
-
 		LOGGER.info("... Loading operation queue  ...");
-		int[] ops = new int[1];
+		List<OpOperation> queue = new ArrayList<OpOperation>();
 		jdbcTemplate.query("SELECT content from " + OPERATIONS_TABLE + " where blocks is null order by dbid asc ",
 				new RowCallbackHandler() {
 
 					@Override
 					public void processRow(ResultSet rs) throws SQLException {
-						ops[0]++;
 						OpOperation op = formatter.parseOperation(rs.getString(1));
 						op.makeImmutable();
-						blcQueue.addOperation(op);
+						queue.add(op);
 					}
 
 				});
-		LOGGER.info(String.format("... Loaded operation %d into queue  ...", ops[0]));
+		OpBlockChain blcQueue = restoreFromSnapshot(topBlockInfo, queue);
+		if (blcQueue == null) {
+			LOGGER.info("... Loading blocks from database ...");
+			OpBlockChain topChain = loadBlocks(topBlockInfo, dbManagedChain, rules);
+			LOGGER.info(String.format("### Loaded %d blocks ###", topChain.getSuperblockSize()));
+			blcQueue = new OpBlockChain(topChain, rules);
+			for (OpOperation op : queue) {
+				blcQueue.addOperation(op);
+			}
+		}
+		LOGGER.info(String.format("... Loaded operation %d into queue  ...", queue.size()));
 		LOGGER.info(String.format("+++ Database blockchain initialized +++"));
 		return blcQueue;
 	}
+
+	private RuntimeChainSnapshot getSnapshot() {
+		String path = settingsManager.OPENDB_SNAPSHOT_FILE.get();
+		if (OUtils.isEmpty(path)) {
+			return null;
+		}
+		return new RuntimeChainSnapshot(formatter, new File(path));
+	}
+
+	private String getSnapshotKey(OpBlockChain blc) {
+		Deque<OpOperation> queue = blc.getQueueOperations();
+		return blc.getLastBlockRawHash() + ":" + queue.size() + ":" + (queue.isEmpty() ? "" : queue.getLast().getRawHash());
+	}
+
+	/**
+	 * Saves runtime superblocks and queue to the snapshot file (if chain was changed since the last snapshot).
+	 * Chain could be modified while snapshot is written, in that case snapshot is discarded and saved next time.
+	 */
+	public boolean saveSnapshot(OpBlockChain blc) {
+		RuntimeChainSnapshot snapshot = getSnapshot();
+		if (snapshot == null || blc.isNullBlock()) {
+			return false;
+		}
+		synchronized (snapshotLock) {
+			String key = getSnapshotKey(blc);
+			if (key.equals(lastSnapshotKey)) {
+				return false;
+			}
+			Metric m = mSaveSnapshot.start();
+			try {
+				File tmp = snapshot.writeTemporary(blc);
+				if (!key.equals(getSnapshotKey(blc))) {
+					tmp.delete();
+					LOGGER.info("Blockchain was changed while snapshot was written, snapshot is discarded");
+					return false;
+				}
+				snapshot.commit(tmp);
+				lastSnapshotKey = key;
+				m.capture();
+				return true;
+			} catch (IOException | RuntimeException e) {
+				LOGGER.error(String.format("Error writing snapshot '%s': %s", snapshot.getFile(), e.getMessage()), e);
+				return false;
+			}
+		}
+	}
+
+	// restores runtime chain without validation, returns null if snapshot doesn't match blocks and queue of db
+	private OpBlockChain restoreFromSnapshot(List<OpBlock> topBlockInfo, List<OpOperation> queue) {
+		RuntimeChainSnapshot snapshot = getSnapshot();
+		if (snapshot == null) {
+			return null;
+		}
+		Metric m = mRestoreSnapshot.start();
+		try {
+			SnapshotState s = snapshot.read();
+			if (s == null) {
+				return null;
+			}
+			String inconsistency = checkSnapshotBlocks(s, topBlockInfo);
+			SnapshotLevel top = s.levels.isEmpty() ? null : s.levels.get(s.levels.size() - 1);
+			boolean queueRestored = inconsistency == null && checkSnapshotQueue(top, queue);
+			if (inconsistency == null && !top.blocks.isEmpty() && (!queueRestored || !queue.isEmpty())) {
+				// queue could be revalidated separately only when it is stored in a separate chain
+				inconsistency = "operations queue is changed";
+			}
+			if (inconsistency != null) {
+				LOGGER.warn(String.format("Snapshot '%s' is inconsistent with database (%s), blocks will be validated",
+						snapshot.getFile(), inconsistency));
+				return null;
+			}
+			LOGGER.info(String.format("... Restoring %d runtime superblocks from snapshot '%s' ...",
+					s.levels.size() - 1, snapshot.getFile()));
+			OpBlockChain blc = dbManagedChain;
+			for (SnapshotLevel l : s.levels) {
+				OpBlockChain c = new OpBlockChain(blc, rules);
+				if (l != top) {
+					c.restoreSnapshotState(l.blocks, Collections.emptyList(), l.objects, l.deltas);
+				} else if (queueRestored) {
+					c.restoreSnapshotState(l.blocks, queue, l.objects, l.deltas);
+				} else {
+					LOGGER.info("... Operations queue is changed since snapshot, it will be validated ...");
+					for (OpOperation op : queue) {
+						c.addOperation(op);
+					}
+				}
+				blc = c;
+			}
+			if (!top.blocks.isEmpty()) {
+				blc = new OpBlockChain(blc, rules);
+			}
+			lastSnapshotKey = getSnapshotKey(blc);
+			m.capture();
+			LOGGER.info(String.format("### Restored %d blocks from snapshot ###", topBlockInfo.size()));
+			return blc;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error(String.format("Error restoring snapshot '%s': %s", snapshot.getFile(), e.getMessage()), e);
+			return null;
+		}
+	}
+
+	private String checkSnapshotBlocks(SnapshotState s, List<OpBlock> topBlockInfo) {
+		if (s.levels.isEmpty()) {
+			return "snapshot is empty";
+		}
+		if (!OUtils.equals(s.dbSuperblock, dbManagedChain.isNullBlock() ? "" : dbManagedChain.getSuperBlockHash())) {
+			return String.format("db superblock '%s' != '%s'", s.dbSuperblock, dbManagedChain.getSuperBlockHash());
+		}
+		Iterator<OpBlock> it = topBlockInfo.iterator();
+		for (SnapshotLevel l : s.levels) {
+			for (OpBlock b : l.blocks) {
+				OpBlock header = it.hasNext() ? it.next() : null;
+				if (header == null || !OUtils.equals(header.getFullHash(), b.getFullHash())) {
+					return String.format("block '%s' is not in database", b.getRawHash());
+				}
+			}
+		}
+		if (it.hasNext()) {
+			return String.format("block '%s' is not in snapshot", it.next().getRawHash());
+		}
+		return null;
+	}
+
+	private boolean checkSnapshotQueue(SnapshotLevel top, List<OpOperation> queue) {
+		if (top.queue.size() != queue.size()) {
+			return false;
+		}
+		for (int i = 0; i < queue.size(); i++) {
+			if (!OUtils.equals(top.queue.get(i), queue.get(i).getRawHash())) {
+				return false;
+			}
+		}
+		return true;
+	}
 	
 	public OpIndexColumn getIndex(String type, String columnId) {
 		return dbSchema.getIndex(type, columnId);
@@ -170,8 +336,15 @@ public class DBConsensusManager {
 
 
 	private OpBlock loadBlock(String blockHash) {
-		List<OpBlock> blocks = jdbcTemplate.query("SELECT content from " + BLOCKS_TABLE + " where hash = ? ",
-				new Object[]{SecUtils.getHashBytes(blockHash)}, new RowMapper<OpBlock>() {
+		return loadBlock(blockHash, null);
+	}
+
+	private OpBlock loadBlock(String blockHash, Collection<String> opTypes) {
+		List<Object> args = new ArrayList<Object>();
+		String content = blockContentColumn(opTypes, args);
+		args.add(SecUtils.getHashBytes(blockHash));
+		List<OpBlock> blocks = jdbcTemplate.query("SELECT " + content + " from " + BLOCKS_TABLE + " where hash = ? ",
+				args.toArray(), new RowMapper<OpBlock>() {
 
 					@Override
 					public OpBlock mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -188,6 +361,31 @@ public class DBConsensusManager {
 		return rawBlock;
 	}
 
+	// operations are filtered by postgres, so skipped operations are neither transferred nor parsed
+	private String blockContentColumn(Collection<String> opTypes, List<Object> args) {
+		if (opTypes == null) {
+			return "content";
+		}
+		if (opTypes.isEmpty()) {
+			return "jsonb_set(content, '{operations}', '[]'::jsonb)";
+		}
+		args.addAll(opTypes);
+		return "jsonb_set(content, '{operations}', coalesce((SELECT jsonb_agg(o.op ORDER BY o.ind) "
+				+ " FROM jsonb_array_elements(content->'operations') WITH ORDINALITY o(op, ind) "
+				+ " WHERE o.op->>'type' IN (" + dbSchema.repeatString("?", ",", opTypes.size()) + ")), '[]'::jsonb))";
+	}
+
+	private void queryByCursor(String task, String sql, Object[] args, RowCallbackHandler handler) {
+		try (DbCursor cursor = new DbCursor(task, sql, args)) {
+			ResultSet rs = cursor.getResultSet();
+			while (rs.next()) {
+				handler.processRow(rs);
+			}
+		} catch (SQLException e) {
+			throw jdbcTemplate.getExceptionTranslator().translate(task, sql, e);
+		}
+	}
+
 	private OpBlockChain compactTwoDBAccessed(OpBlockChain blc) {
 		LOGGER.info(String.format("Compacting db superblock '%s' into  superblock '%s'",
 				blc.getParent().getSuperBlockHash(), blc.getSuperBlockHash()));
@@ -200,6 +398,11 @@ public class DBConsensusManager {
 		byte[] sbHashCurrent = SecUtils.getHashBytes(blc.getSuperBlockHash());
 		byte[] sbHashParent = SecUtils.getHashBytes(blc.getParent().getSuperBlockHash());
 		byte[] sbHashNew = SecUtils.getHashBytes(newSuperblockHash);
+		// deltas are relative to the next parent, so merged delta is a sum
+		Map<String, Integer> liveObjectsDeltas = new TreeMap<>(blc.getLiveObjectsDeltas());
+		for (Entry<String, Integer> e : blc.getParent().getLiveObjectsDeltas().entrySet()) {
+			liveObjectsDeltas.merge(e.getKey(), e.getValue(), Integer::sum);
+		}
 		return txTemplate.execute(new TransactionCallback<OpBlockChain>() {
 
 			@Override
@@ -216,6 +419,9 @@ public class DBConsensusManager {
 					jdbcTemplate.update("UPDATE " + objTable + " set superblock = ?  WHERE superblock = ? ", sbHashNew, sbHashCurrent);
 					jdbcTemplate.update("UPDATE " + objTable + " set superblock = ?  WHERE superblock = ? ", sbHashNew, sbHashParent);
 				}
+				jdbcTemplate.update("DELETE FROM " + INDEX_FILTERS_TABLE + " WHERE superblock = ? or superblock = ?", sbHashCurrent, sbHashParent);
+				jdbcTemplate.update("DELETE FROM " + OBJS_COUNT_TABLE + " WHERE superblock = ? or superblock = ?", sbHashCurrent, sbHashParent);
+				insertLiveObjectsDeltas(sbHashNew, liveObjectsDeltas);
 
 				OpBlockChain res = new OpBlockChain(blc.getParent().getParent(),
 						blockHeaders, createDbAccess(newSuperblockHash, blockHeaders), blc.getRules());
@@ -229,24 +435,132 @@ public class DBConsensusManager {
 
 
 
+	// forward only cursor in read only transaction, so rows are fetched from db by FETCH_SIZE
+	// (postgres driver reads the whole result set into memory otherwise)
+	protected class DbCursor implements AutoCloseable {
+
+		private static final int FETCH_SIZE = 1000;
+		private Connection conn;
+		private boolean dedicatedConnection;
+		private PreparedStatement ps;
+		private ResultSet rs;
+
+		DbCursor(String task, String sql, Object[] args) {
+			DataSource ds = jdbcTemplate.getDataSource();
+			try {
+				conn = ds.getConnection();
+				// i.e. single connection data source (tests) is shared and its state should be kept
+				dedicatedConnection = !(ds instanceof SmartDataSource) || ((SmartDataSource) ds).shouldClose(conn);
+				if (dedicatedConnection) {
+					conn.setAutoCommit(false);
+					conn.setReadOnly(true);
+				}
+				ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				ps.setFetchSize(FETCH_SIZE);
+				new ArgumentPreparedStatementSetter(args).setValues(ps);
+				rs = ps.executeQuery();
+			} catch (SQLException e) {
+				close();
+				throw jdbcTemplate.getExceptionTranslator().translate(task, sql, e);
+			}
+		}
+
+		public ResultSet getResultSet() {
+			return rs;
+		}
+
+		public synchronized boolean isClosed() {
+			return conn == null;
+		}
+
+		@Override
+		public synchronized void close() {
+			try {
+				if (rs != null) {
+					rs.close();
+				}
+				if (ps != null) {
+					ps.close();
+				}
+				if (conn != null && dedicatedConnection) {
+					conn.rollback();
+					conn.setReadOnly(false);
+					conn.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				LOGGER.warn("Failed to close cursor: " + e.getMessage(), e);
+			} finally {
+				if (conn != null && dedicatedConnection) {
+					try {
+						conn.close();
+					} catch (SQLException e) {
+						LOGGER.warn("Failed to close connection: " + e.getMessage(), e);
+					}
+				}
+				rs = null;
+				ps = null;
+				conn = null;
+			}
+		}
+	}
+
+	// shouldn't reference spliterator, otherwise it is never garbage collected
+	private static class UnclosedCursorAction implements Runnable {
+
+		private final DbCursor cursor;
+		private final String sql;
+
+		UnclosedCursorAction(DbCursor cursor, String sql) {
+			this.cursor = cursor;
+			this.sql = sql;
+		}
+
+		@Override
+		public void run() {
+			if (!cursor.isClosed()) {
+				LOGGER.warn("Stream of superblock objects is garbage collected without being closed: " + sql);
+				cursor.close();
+			}
+		}
+	}
+
 	protected class SuperblockDbSpliterator implements Spliterator<Map.Entry<CompoundKey, OpObject>> {
 
 		private static final int BATCH_SIZE = 250;
-		private SqlRowSet rs;
 		private SuperblockDbAccess dbAccess;
 		private final int keySize; 
 		private LinkedList<Map.Entry<CompoundKey, OpObject>> results = new LinkedList<>();
 		private boolean end;
 		private boolean onlyKeys;
-		SuperblockDbSpliterator(SuperblockDbAccess dbAccess, int keySize, boolean onlyKeys, SqlRowSet rowSet) throws DBStaleException {
+		private final String sql;
+		private DbCursor cursor;
+		private final Cleaner.Cleanable cleanable;
+		private ResultSet rs;
+
+		SuperblockDbSpliterator(SuperblockDbAccess dbAccess, int keySize, boolean onlyKeys, String sql, Object[] args) throws DBStaleException {
 			this.dbAccess = dbAccess;
 			this.keySize = keySize;
 			this.onlyKeys = onlyKeys;
-			this.rs = rowSet;
-			readEntries();
+			this.sql = sql;
+			this.cursor = new DbCursor("Stream superblock objects", sql, args);
+			this.cleanable = CURSOR_CLEANER.register(this, new UnclosedCursorAction(cursor, sql));
+			this.rs = cursor.getResultSet();
+			try {
+				readEntries();
+			} catch (RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public synchronized void close() {
+			end = true;
+			rs = null;
+			cursor.close();
+			cleanable.clean();
 		}
 		
-		private boolean readEntries() throws DBStaleException {
+		private synchronized boolean readEntries() throws DBStaleException {
 			if (end) {
 				return true;
 			}
@@ -257,7 +571,7 @@ public class DBConsensusManager {
 				int cnt = 0;
 				while (cnt++ < BATCH_SIZE) {
 					if(!rs.next()) {
-						end = true;
+						close();
 						return true;
 					}
 					ls.clear();
@@ -268,11 +582,11 @@ public class DBConsensusManager {
 					final OpObject obj ;
 					if(!onlyKeys) {
 						String cont = rs.getString(1);
-						obj = cont == null ? new OpObject(true) : formatter.parseObject(cont);
+						obj = cont == null ? new OpObject(true) : formatter.parseObjectLazy(cont);
 					} else {
 						obj = new OpObject(rs.getBoolean(1));
 					}
-					obj.setParentOp(rs.getString(2), SecUtils.hexify((byte[]) rs.getObject(3)));
+					obj.setParentOp(rs.getString(2), SecUtils.hexify(rs.getBytes(3)));
 					results.add(new Map.Entry<CompoundKey, OpObject>() {
 
 						@Override
@@ -291,6 +605,9 @@ public class DBConsensusManager {
 						}
 					});
 				}
+			} catch (SQLException e) {
+				close();
+				throw jdbcTemplate.getExceptionTranslator().translate("Stream superblock objects", sql, e);
 			} finally {
 				dbAccess.readLock.unlock();
 			}
@@ -340,15 +657,23 @@ public class DBConsensusManager {
 	
 	protected class SuperblockDbAccess implements BlockDbAccessInterface {
 
+		private static final int OBJS_BY_IDS_BATCH_SIZE = 1000;
+		private static final double INDEX_FILTER_FPP = 0.01;
+
 		protected final String superBlockHash;
 		protected final List<OpBlock> blockHeaders;
 		private final ReentrantReadWriteLock readWriteLock;
 		private final ReadLock readLock;
 		private final byte[] sbhash;
 		private AtomicBoolean staleAccess = new AtomicBoolean(false);
+		private final Map<String, BloomFilter> indexFilters = new ConcurrentHashMap<>();
+		private final Map<String, Object> indexFilterLocks = new ConcurrentHashMap<>();
+		private final DBObjectsCache objectsCache;
+		private volatile Map<String, Integer> liveObjectsDeltas;
 
 		public SuperblockDbAccess(String superBlockHash, Collection<OpBlock> blockHeaders) {
 			this.superBlockHash = superBlockHash;
+			this.objectsCache = new DBObjectsCache(settingsManager.OPENDB_DB_OBJECTS_CACHE_SIZE.get() * 1024L);
 			sbhash = SecUtils.getHashBytes(superBlockHash);
 			this.blockHeaders = new ArrayList<OpBlock>(blockHeaders);
 			this.readWriteLock = new ReentrantReadWriteLock();
@@ -361,6 +686,7 @@ public class DBConsensusManager {
 			lock.lock();
 			try {
 				staleAccess.set(stale);
+				objectsCache.clear();
 				return true;
 			} finally {
 				lock.unlock();
@@ -372,96 +698,247 @@ public class DBConsensusManager {
 			readLock.lock();
 			try {
 				checkNotStale();
-				int sz = k.size();
-				Object[] o = new Object[sz + 2];
-				o[0] = sbhash;
-				o[1] = type;
-				k.toArray(o, 2);
-				String table = dbSchema.getTableByType(type);
-				int keySizeByTable = dbSchema.getKeySizeByTable(table);
-				if (sz > keySizeByTable || sz == 0) {
-					throw new UnsupportedOperationException();
+				OpObject cached = objectsCache.get(type, k);
+				if (cached != null) {
+					return cached == DBObjectsCache.MISSING ? null : cached;
 				}
-				String nullFields = "";
-				for (int i = sz; i < keySizeByTable; i++) {
-					nullFields += " and p" + (i + 1) + " is null ";
+				Metric m = objectsCache.startMiss();
+				OpObject obj = loadObjectById(type, k, content);
+				m.capture();
+				// objects without content are not complete
+				if (obj == null || content) {
+					objectsCache.put(type, k, obj);
 				}
-				String s = "select type, ophash" + (content ? ", content" : "") + " from " + table +
-						" where superblock = ? and type = ? and " +
-						dbSchema.generatePKString(table, "p%1$d = ?", " and ", sz) + nullFields +
-						" order by sblockid desc";
-				return jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject	>() {
+				return obj;
+			} finally {
+				readLock.unlock();
+			}
+		}
 
-					@Override
-					public OpObject extractData(ResultSet rs) throws SQLException, DataAccessException {
-						if (!rs.next()) {
-							return null;
-						}
-						OpObject obj;
-						if (!content) {
-							// this is not 100% correct
-							obj = new OpObject(false);
+		private OpObject loadObjectById(String type, CompoundKey k, boolean content) {
+			int sz = k.size();
+			Object[] o = new Object[sz + 2];
+			o[0] = sbhash;
+			o[1] = type;
+			k.toArray(o, 2);
+			String table = dbSchema.getTableByType(type);
+			int keySizeByTable = dbSchema.getKeySizeByTable(table);
+			if (sz > keySizeByTable || sz == 0) {
+				throw new UnsupportedOperationException();
+			}
+			String nullFields = "";
+			for (int i = sz; i < keySizeByTable; i++) {
+				nullFields += " and p" + (i + 1) + " is null ";
+			}
+			String s = "select type, ophash" + (content ? ", content" : "") + " from " + table +
+					" where superblock = ? and type = ? and " +
+					dbSchema.generatePKString(table, "p%1$d = ?", " and ", sz) + nullFields +
+					" order by sblockid desc";
+			return jdbcTemplate.query(s, o, new ResultSetExtractor<OpObject	>() {
+
+				@Override
+				public OpObject extractData(ResultSet rs) throws SQLException, DataAccessException {
+					if (!rs.next()) {
+						return null;
+					}
+					OpObject obj;
+					if (!content) {
+						// this is not 100% correct
+						obj = new OpObject(false);
+					} else {
+						String cnt = rs.getString(3);
+						if (cnt == null) {
+							obj = new OpObject(true);
 						} else {
-							String cnt = rs.getString(3);
-							if (cnt == null) {
-								obj = new OpObject(true);
-							} else {
-								obj = formatter.parseObject(cnt);
+							obj = formatter.parseObjectLazy(cnt);
+						}
+					}
+					obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
+					return obj;
+				}
+			});
+		}
+
+		@Override
+		public Map<CompoundKey, OpObject> getObjectsByIds(String type, Collection<CompoundKey> keys, boolean content) throws DBStaleException {
+			Map<CompoundKey, OpObject> res = new HashMap<CompoundKey, OpObject>();
+			if (keys.isEmpty()) {
+				return res;
+			}
+			readLock.lock();
+			try {
+				checkNotStale();
+				String table = dbSchema.getTableByType(type);
+				int keySizeByTable = dbSchema.getKeySizeByTable(table);
+				// keys with different size are compared with different amount of columns
+				Map<Integer, List<CompoundKey>> keysBySize = new TreeMap<Integer, List<CompoundKey>>();
+				for (CompoundKey k : keys) {
+					int sz = k.size();
+					if (sz > 0 && sz <= keySizeByTable) {
+						OpObject cached = objectsCache.get(type, k);
+						if (cached != null) {
+							if (cached != DBObjectsCache.MISSING) {
+								res.put(k, cached);
 							}
+							continue;
 						}
-						obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
-						return obj;
+						keysBySize.computeIfAbsent(sz, s -> new ArrayList<CompoundKey>()).add(k);
 					}
-				});
+				}
+				for (Entry<Integer, List<CompoundKey>> e : keysBySize.entrySet()) {
+					List<CompoundKey> lst = e.getValue();
+					Metric m = objectsCache.startMiss();
+					for (int i = 0; i < lst.size(); i += OBJS_BY_IDS_BATCH_SIZE) {
+						List<CompoundKey> batch = lst.subList(i, Math.min(lst.size(), i + OBJS_BY_IDS_BATCH_SIZE));
+						loadObjectsByIds(type, table, keySizeByTable, e.getKey(), batch, content, res);
+					}
+					m.capture();
+					for (CompoundKey k : lst) {
+						OpObject obj = res.get(k);
+						if (obj == null || content) {
+							objectsCache.put(type, k, obj);
+						}
+					}
+				}
+				return res;
 			} finally {
 				readLock.unlock();
 			}
 		}
 
+		private void loadObjectsByIds(String type, String table, int keySizeByTable, int sz, List<CompoundKey> keys,
+				boolean content, Map<CompoundKey, OpObject> res) {
+			Object[] o = new Object[keys.size() * sz + 2];
+			int ind = 0;
+			for (CompoundKey k : keys) {
+				k.toArray(o, ind);
+				ind += sz;
+			}
+			o[ind++] = sbhash;
+			o[ind++] = type;
+			String nullFields = "";
+			for (int i = sz; i < keySizeByTable; i++) {
+				nullFields += " and p" + (i + 1) + " is null ";
+			}
+			String values = dbSchema.repeatString("(" + dbSchema.repeatString("?", ", ", sz) + ")", ", ", keys.size());
+			String s = "select type, ophash, " + (content ? "content" : "null") + ", " + dbSchema.generatePKString(table, "p%1$d", ", ", sz) +
+					" from " + table + " join (values " + values + ") v(" + dbSchema.generatePKString(table, "k%1$d", ", ", sz) + ")" +
+					" on " + dbSchema.generatePKString(table, "p%1$d = v.k%1$d", " and ", sz) +
+					" where superblock = ? and type = ? " + nullFields +
+					" order by sblockid desc";
+			final List<String> ls = new ArrayList<String>(sz);
+			jdbcTemplate.query(s, o, new RowCallbackHandler() {
+
+				@Override
+				public void processRow(ResultSet rs) throws SQLException {
+					ls.clear();
+					for (int i = 0; i < sz; i++) {
+						ls.add(rs.getString(i + 4));
+					}
+					CompoundKey k = new CompoundKey(0, ls);
+					if (res.containsKey(k)) {
+						// older version
+						return;
+					}
+					OpObject obj;
+					if (!content) {
+						// this is not 100% correct
+						obj = new OpObject(false);
+					} else {
+						String cnt = rs.getString(3);
+						if (cnt == null) {
+							obj = new OpObject(true);
+						} else {
+							obj = formatter.parseObjectLazy(cnt);
+						}
+					}
+					obj.setParentOp(rs.getString(1), SecUtils.hexify(rs.getBytes(2)));
+					res.put(k, obj);
+				}
+			});
+		}
+
 		private void checkNotStale() throws DBStaleException {
 			if (staleAccess.get()) {
 				throw new DBStaleException("Superblock is stale : " + SecUtils.hexify(sbhash));
 			}
 		}
 
-		public Stream<Map.Entry<CompoundKey, OpObject>> streamObjects(String type,  int limit, boolean onlyKeys, Object... extraParams) throws DBStaleException {
+		public Stream<Map.Entry<CompoundKey, OpObject>> streamObjects(String type,  int limit, boolean onlyKeys, CompoundKey afterKey,
+				Object... extraParams) throws DBStaleException {
 			readLock.lock();
 			try {
 				checkNotStale();
 				int l = (extraParams == null ? 0 : extraParams.length);
-				Object[] o = new Object[2 + Math.max(l - 1, 0)];
-				o[0] = sbhash;
-				o[1] = type;
+				List<Object> o = new ArrayList<Object>();
+				o.add(sbhash);
+				o.add(type);
 				String cond = null;
 				for(int i = 0; i < l; i++) {
 					if(i == 0) {
 						cond =  extraParams[i].toString();
 					} else {
-						o[1 + i] = extraParams[i];
+						o.add(extraParams[i]);
 					}
 				}
 				String objTable = dbSchema.getTableByType(type);
 				final int keySize = dbSchema.getKeySizeByTable(objTable);
+				if (afterKey != null) {
+					String afterCond = getAfterKeyCondition(afterKey, keySize, o);
+					cond = cond == null ? afterCond : cond + " and " + afterCond;
+				}
 				String cntField = "content";
 				if(onlyKeys) {
 					 cntField = "case when content is null then true else false end";
 				}
-				String sql = "select " + cntField + ", type, ophash, " + dbSchema.generatePKString(objTable, "p%1$d", ", ") + "  from " + objTable
+				// latest version of every object sorted by key (same order as CompoundKey.COMPARATOR)
+				String pks = dbSchema.generatePKString(objTable, "p%1$d COLLATE \"C\"", ", ");
+				String sql = "select distinct on (" + pks + ") " + cntField + ", type, ophash, " + dbSchema.generatePKString(objTable, "p%1$d", ", ") + "  from " + objTable
 						+ " where superblock = ? and type = ? " + (cond == null ? "" : " and " + cond);
-				// so the result can simply override and get latest version
-				sql = sql + " order by sblockid asc";
+				sql = sql + " order by " + pks + ", sblockid desc";
 				if (limit > 0) {
 					sql = sql + " limit " + limit;
 				}
 				
-				final SqlRowSet rs = jdbcTemplate.queryForRowSet(sql, o);
-				return StreamSupport.stream(new SuperblockDbSpliterator(this, keySize, onlyKeys, rs), false); 
+				final SuperblockDbSpliterator spliterator = new SuperblockDbSpliterator(this, keySize, onlyKeys, sql, o.toArray());
+				return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+
+					@Override
+					public void run() {
+						spliterator.close();
+					}
+				});
 			} finally {
 				readLock.unlock();
 			}
 			
 		}
 		
+		// keys greater than afterKey in order of CompoundKey.COMPARATOR (null parts are the last as in 'order by')
+		private String getAfterKeyCondition(CompoundKey afterKey, int keySize, List<Object> params) {
+			StringBuilder cond = new StringBuilder();
+			StringBuilder prefix = new StringBuilder();
+			List<Object> prefixParams = new ArrayList<Object>();
+			for (int i = 0; i < keySize; i++) {
+				String col = "p" + (i + 1);
+				String v = afterKey.get(i);
+				if (v == null) {
+					prefix.append(col).append(" is null and ");
+					continue;
+				}
+				if (cond.length() > 0) {
+					cond.append(" or ");
+				}
+				cond.append("(").append(prefix).append("(").append(col).append(" COLLATE \"C\" > ? or ")
+						.append(col).append(" is null))");
+				params.addAll(prefixParams);
+				params.add(v);
+				prefix.append(col).append(" = ? and ");
+				prefixParams.add(v);
+			}
+			return cond.length() == 0 ? "false" : "(" + cond + ")";
+		}
+		
 		public int countObjects(String type, Object... extraParams) throws DBStaleException {
 			readLock.lock();
 			try {
@@ -488,6 +965,119 @@ public class DBConsensusManager {
 			
 		}
 
+		@Override
+		public Map<String, Integer> getLiveObjectsDeltas() throws DBStaleException {
+			Map<String, Integer> deltas = liveObjectsDeltas;
+			if (deltas != null) {
+				return deltas;
+			}
+			readLock.lock();
+			try {
+				checkNotStale();
+				Map<String, Integer> res = new TreeMap<>();
+				boolean[] stored = new boolean[1];
+				jdbcTemplate.query("SELECT type, livedelta from " + OBJS_COUNT_TABLE + " where superblock = ?", new RowCallbackHandler() {
+
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						stored[0] = true;
+						if (!LIVE_DELTAS_MARKER.equals(rs.getString(1))) {
+							res.put(rs.getString(1), rs.getInt(2));
+						}
+					}
+				}, sbhash);
+				if (!stored[0]) {
+					return null;
+				}
+				liveObjectsDeltas = Collections.unmodifiableMap(res);
+				return liveObjectsDeltas;
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public void saveLiveObjectsDeltas(Map<String, Integer> deltas) throws DBStaleException {
+			readLock.lock();
+			try {
+				checkNotStale();
+				txTemplate.execute(new TransactionCallbackWithoutResult() {
+
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus status) {
+						jdbcTemplate.update("DELETE FROM " + OBJS_COUNT_TABLE + " where superblock = ?", sbhash);
+						insertLiveObjectsDeltas(sbhash, deltas);
+					}
+				});
+				liveObjectsDeltas = Collections.unmodifiableMap(new TreeMap<>(deltas));
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public BloomFilter getIndexKeysFilter(String type, OpIndexColumn column) throws DBStaleException {
+			String signature = column.getKeysSignature();
+			String key = type + "/" + column.getIndexId();
+			readLock.lock();
+			try {
+				checkNotStale();
+				BloomFilter filter = indexFilters.get(key);
+				if (filter != null) {
+					return filter;
+				}
+				// only one reader builds filter for the same superblock / type / index
+				synchronized (indexFilterLocks.computeIfAbsent(key, k -> new Object())) {
+					filter = indexFilters.get(key);
+					if (filter == null) {
+						filter = loadIndexKeysFilter(type, column, signature);
+						indexFilters.put(key, filter);
+					}
+				}
+				return filter;
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		private BloomFilter loadIndexKeysFilter(String type, OpIndexColumn column, String signature) {
+			byte[] data = jdbcTemplate.query("SELECT filter from " + INDEX_FILTERS_TABLE
+					+ " where superblock = ? and type = ? and indexid = ? and signature = ?",
+					new ResultSetExtractor<byte[]>() {
+
+						@Override
+						public byte[] extractData(ResultSet rs) throws SQLException, DataAccessException {
+							return rs.next() ? rs.getBytes(1) : null;
+						}
+					}, sbhash, type, column.getIndexId(), signature);
+			if (data != null) {
+				return BloomFilter.fromBytes(data);
+			}
+			BloomFilter filter = buildIndexKeysFilter(type, column);
+			// filters with outdated signature are left until superblock is merged or removed
+			jdbcTemplate.update("INSERT INTO " + INDEX_FILTERS_TABLE + "(superblock, type, indexid, signature, filter) VALUES (?, ?, ?, ?, ?)"
+					+ " ON CONFLICT DO NOTHING", sbhash, type, column.getIndexId(), signature, filter.toBytes());
+			return filter;
+		}
+
+		private BloomFilter buildIndexKeysFilter(String type, OpIndexColumn column) {
+			long tm = System.currentTimeMillis();
+			Set<String> keys = new HashSet<String>();
+			try (Stream<Map.Entry<CompoundKey, OpObject>> stream = streamObjects(type, -1, false, null)) {
+				Iterator<Map.Entry<CompoundKey, OpObject>> it = stream.iterator();
+				while (it.hasNext()) {
+					column.evalIndexKeys(it.next().getValue(), keys);
+				}
+			}
+			BloomFilter filter = BloomFilter.create(keys.size(), INDEX_FILTER_FPP);
+			for (String k : keys) {
+				filter.put(k);
+			}
+			LOGGER.info(String.format("Built index filter '%s' for type '%s' with %d keys in superblock %s (%d ms)",
+					column.getIndexId(), type, keys.size(), superBlockHash, System.currentTimeMillis() - tm));
+			return filter;
+		}
+
 		@Override
 		public OpOperation getOperation(String rawHash, boolean strict) throws DBStaleException {
 			readLock.lock();
@@ -517,6 +1107,24 @@ public class DBConsensusManager {
 
 		@Override
 		public Deque<OpBlock> getAllBlocks(Collection<OpBlock> blockHeaders) {
+			final LinkedList<OpBlock> blocks = new LinkedList<OpBlock>();
+			fetchAllBlocks(blockHeaders, null, new Consumer<OpBlock>() {
+
+				@Override
+				public void accept(OpBlock b) {
+					blocks.addFirst(b);
+				}
+			});
+			return blocks;
+		}
+
+		@Override
+		public void fetchAllBlocks(Collection<OpBlock> blockHeaders, Collection<String> opTypes,
+				final Consumer<OpBlock> consumer) {
+			// headers are sorted from the last block to the first
+			final List<OpBlock> headers = new ArrayList<OpBlock>(blockHeaders);
+			Collections.reverse(headers);
+			final int[] loaded = new int[1];
 			boolean isSuperblockReferenceActive = false;
 			readLock.lock();
 			try {
@@ -524,19 +1132,38 @@ public class DBConsensusManager {
 			} finally {
 				readLock.unlock();
 			}
-			if (isSuperblockReferenceActive) {
-				// to do faster to load by superblock reference, so it could be 1 sql
-				// but it need to handle correctly DBStaleException
+			if (isSuperblockReferenceActive && headers.size() > 0) {
+				// superblock reference could be changed by compaction meanwhile,
+				// so the rows are checked against headers and the rest is loaded by hash
+				final boolean[] mismatch = new boolean[1];
+				List<Object> args = new ArrayList<Object>();
+				String content = blockContentColumn(opTypes, args);
+				args.add(sbhash);
+				queryByCursor("Load superblock blocks", "SELECT hash, " + content + " FROM " + BLOCKS_TABLE
+						+ " WHERE superblock = ? ORDER BY blockid asc", args.toArray(), new RowCallbackHandler() {
+
+					@Override
+					public void processRow(ResultSet rs) throws SQLException {
+						if (mismatch[0] || loaded[0] >= headers.size() ||
+								!Arrays.equals(rs.getBytes(1), SecUtils.getHashBytes(headers.get(loaded[0]).getRawHash()))) {
+							mismatch[0] = true;
+							return;
+						}
+						OpBlock rawBlock = formatter.parseBlock(rs.getString(2));
+						rawBlock.makeImmutable();
+						loaded[0]++;
+						consumer.accept(rawBlock);
+					}
+				});
 			}
-			LinkedList<OpBlock> blocks = new LinkedList<OpBlock>();
-			for (OpBlock b : blockHeaders) {
-				OpBlock lb = loadBlock(b.getRawHash());
+			for (int i = loaded[0]; i < headers.size(); i++) {
+				OpBlock b = headers.get(i);
+				OpBlock lb = loadBlock(b.getRawHash(), opTypes);
 				if (lb == null) {
 					throw new IllegalStateException(String.format("Couldn't load '%s' block from db", b.getRawHash()));
 				}
-				blocks.add(lb);
+				consumer.accept(lb);
 			}
-			return blocks;
 		}
 
 		@Override
@@ -550,15 +1177,10 @@ public class DBConsensusManager {
 			try {
 				Set<String> types = new LinkedHashSet<String>();
 				checkNotStale();
-				jdbcTemplate.query("SELECT distinct type from " + OPERATIONS_TABLE + " where superblock = ?", new RowCallbackHandler() {
-
-					@Override
-					public void processRow(ResultSet rs) throws SQLException {
-						if (rs.next()) {
-							types.add(rs.getString(1));
-						}
-					}
-				}, sbhash);
+				for (String objTable : dbSchema.getObjectTables()) {
+					types.addAll(jdbcTemplate.queryForList("SELECT distinct type from " + objTable + " where superblock = ?",
+							String.class, sbhash));
+				}
 				return types;
 			} finally {
 				readLock.unlock();
@@ -763,106 +1385,168 @@ public class DBConsensusManager {
 
 			@Override
 			public OpBlockChain doInTransaction(TransactionStatus status) {
-				Map<String, Long> opsId = new HashMap<String, Long>();
-				for (OpBlock block : blc.getSuperblockFullBlocks()) {
-					byte[] blHash = SecUtils.getHashBytes(block.getFullHash());
-					// assign parent hash only for last block
-					// String blockRawHash = SecUtils.hexify(blHash);
-					// LOGGER.info(String.format("Update block %s to superblock %s ", o.getHash(), superBlockHash));
-					jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? where hash = ?", superBlockHash, blHash);
-					int order = 0;
-					int bid = block.getBlockId();
-					for (OpOperation op : block.getOperations()) {
-						long l = OUtils.combine(bid, order);
-						opsId.put(op.getRawHash(), l);
-						jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ?, sblockid = ?, sorder = ? where hash = ?",
-								superBlockHash, bid, order, SecUtils.getHashBytes(op.getRawHash()));
-						order++;
-					}
-				}
+				Metric m = mSaveSuperblock.start();
+				// connection is bound to the transaction, so copy is rolled back together with the rest
+				boolean copied = jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
 
-				for (String type : blc.getRawSuperblockTypes()) {
-					Stream<Map.Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(type);
-					Collection<OpIndexColumn> indexes = dbSchema.getIndicesForType(type);
-					List<OpIndexColumn> dbIndexes = new ArrayList<OpIndexColumn>();
-					for (OpIndexColumn index : indexes) {
-						if(index.getIdIndex() < 0) {
-							dbIndexes.add(index);
+					@Override
+					public Boolean doInConnection(Connection conn) throws SQLException, DataAccessException {
+						if (!DBCopyWriter.isSupported(conn)) {
+							return false;
 						}
+						saveSuperblockCopy(blc, superBlockHash, conn);
+						return true;
 					}
-					List<Object[]> insertBatch = prepareInsertObjBatch(objects, type, superBlockHash, opsId, dbIndexes);
-					String table = dbSchema.getTableByType(type);
-					dbSchema.insertObjIntoTableBatch(insertBatch, table, jdbcTemplate, dbIndexes);
+				});
+				if (!copied) {
+					saveSuperblockBatch(blc, superBlockHash);
 				}
+				insertLiveObjectsDeltas(superBlockHash, blc.getLiveObjectsDeltas());
 				OpBlockChain dbchain = new OpBlockChain(blc.getParent(), blockHeaders, createDbAccess(superBlockHashStr, blockHeaders),
 						blc.getRules());
-
+				m.capture();
 				return dbchain;
 			}
 		});
 	}
 
+	private void insertLiveObjectsDeltas(byte[] superBlockHash, Map<String, Integer> deltas) {
+		List<Object[]> args = new ArrayList<>();
+		// marker row to distinguish superblock without objects from superblock without stored deltas
+		args.add(new Object[] { superBlockHash, LIVE_DELTAS_MARKER, 0 });
+		for (Entry<String, Integer> e : deltas.entrySet()) {
+			args.add(new Object[] { superBlockHash, e.getKey(), e.getValue() });
+		}
+		jdbcTemplate.batchUpdate("INSERT INTO " + OBJS_COUNT_TABLE + "(superblock, type, livedelta) VALUES (?, ?, ?)", args);
+	}
+
+	private void saveSuperblockBatch(OpBlockChain blc, byte[] superBlockHash) {
+		Map<String, Long> opsId = new HashMap<String, Long>();
+		for (OpBlock block : blc.getSuperblockFullBlocks()) {
+			byte[] blHash = SecUtils.getHashBytes(block.getFullHash());
+			// assign parent hash only for last block
+			// String blockRawHash = SecUtils.hexify(blHash);
+			// LOGGER.info(String.format("Update block %s to superblock %s ", o.getHash(), superBlockHash));
+			jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? where hash = ?", superBlockHash, blHash);
+			int order = 0;
+			int bid = block.getBlockId();
+			for (OpOperation op : block.getOperations()) {
+				long l = OUtils.combine(bid, order);
+				opsId.put(op.getRawHash(), l);
+				jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ?, sblockid = ?, sorder = ? where hash = ?",
+						superBlockHash, bid, order, SecUtils.getHashBytes(op.getRawHash()));
+				order++;
+			}
+		}
+
+		for (String type : blc.getRawSuperblockTypes()) {
+			List<OpIndexColumn> dbIndexes = getDbIndexes(type);
+			List<Object[]> insertBatch;
+			try (Stream<Map.Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(type)) {
+				insertBatch = prepareInsertObjBatch(objects, type, superBlockHash, opsId, dbIndexes);
+			}
+			String table = dbSchema.getTableByType(type);
+			dbSchema.insertObjIntoTableBatch(insertBatch, table, jdbcTemplate, dbIndexes);
+		}
+	}
+
+	// blocks and operations are copied into temporary tables and updated with 1 statement per table,
+	// objects are copied directly into object tables
+	private void saveSuperblockCopy(OpBlockChain blc, byte[] superBlockHash, Connection conn) throws SQLException {
+		Map<String, Long> opsId = new HashMap<String, Long>();
+		Metric m = mSaveSuperblockOps.start();
+		jdbcTemplate.execute("CREATE TEMP TABLE " + SUPERBLOCK_BLOCKS_TMP + " (hash bytea) ON COMMIT DROP");
+		jdbcTemplate.execute("CREATE TEMP TABLE " + SUPERBLOCK_OPS_TMP + " (hash bytea, sblockid int, sorder int) ON COMMIT DROP");
+		// only 1 copy could be active on connection
+		List<byte[]> blockHashes = new ArrayList<byte[]>();
+		DBCopyWriter opsCopy = new DBCopyWriter(conn, SUPERBLOCK_OPS_TMP, "hash,sblockid,sorder");
+		try {
+			for (OpBlock block : blc.getSuperblockFullBlocks()) {
+				blockHashes.add(SecUtils.getHashBytes(block.getFullHash()));
+				int order = 0;
+				int bid = block.getBlockId();
+				for (OpOperation op : block.getOperations()) {
+					opsId.put(op.getRawHash(), OUtils.combine(bid, order));
+					opsCopy.writeRow(SecUtils.getHashBytes(op.getRawHash()), bid, order);
+					order++;
+				}
+			}
+			opsCopy.endCopy();
+		} catch (SQLException | RuntimeException e) {
+			opsCopy.cancel();
+			throw e;
+		}
+		DBCopyWriter blocksCopy = new DBCopyWriter(conn, SUPERBLOCK_BLOCKS_TMP, "hash");
+		try {
+			for (byte[] blHash : blockHashes) {
+				blocksCopy.writeRow(blHash);
+			}
+			blocksCopy.endCopy();
+		} catch (SQLException | RuntimeException e) {
+			blocksCopy.cancel();
+			throw e;
+		}
+		jdbcTemplate.execute("ANALYZE " + SUPERBLOCK_OPS_TMP);
+		int blocks = jdbcTemplate.update("UPDATE " + BLOCKS_TABLE + " set superblock = ? FROM " + SUPERBLOCK_BLOCKS_TMP + " t "
+				+ " WHERE " + BLOCKS_TABLE + ".hash = t.hash", superBlockHash);
+		int ops = jdbcTemplate.update("UPDATE " + OPERATIONS_TABLE + " set superblock = ?, sblockid = t.sblockid, sorder = t.sorder FROM "
+				+ SUPERBLOCK_OPS_TMP + " t WHERE " + OPERATIONS_TABLE + ".hash = t.hash", superBlockHash);
+		m.capture();
+		LOGGER.info(String.format("Superblock %d blocks and %d operations are updated", blocks, ops));
+
+		for (String type : blc.getRawSuperblockTypes()) {
+			m = mSaveSuperblockObjs.start();
+			List<OpIndexColumn> dbIndexes = getDbIndexes(type);
+			String table = dbSchema.getTableByType(type);
+			DBCopyWriter objCopy = new DBCopyWriter(conn, table, dbSchema.getObjTableColumns(table, dbIndexes));
+			try (Stream<Map.Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(type)) {
+				// no statements could be run on connection while copy is active, so array values are not created by connection
+				prepareInsertObjRows(objects, type, superBlockHash, opsId, dbIndexes, null, new Consumer<Object[]>() {
+
+					@Override
+					public void accept(Object[] args) {
+						try {
+							objCopy.writeRow(args);
+						} catch (SQLException e) {
+							throw new IllegalArgumentException(e);
+						}
+					}
+				});
+				objCopy.endCopy();
+			} catch (SQLException | RuntimeException e) {
+				objCopy.cancel();
+				throw e;
+			}
+			m.capture();
+			LOGGER.info(String.format("Superblock objects of type '%s' are saved: %d", type, objCopy.getRows()));
+		}
+	}
+
+	private List<OpIndexColumn> getDbIndexes(String type) {
+		Collection<OpIndexColumn> indexes = dbSchema.getIndicesForType(type);
+		List<OpIndexColumn> dbIndexes = new ArrayList<OpIndexColumn>();
+		for (OpIndexColumn index : indexes) {
+			if(index.getIdIndex() < 0) {
+				dbIndexes.add(index);
+			}
+		}
+		return dbIndexes;
+	}
+
 	protected List<Object[]> prepareInsertObjBatch(Stream<Map.Entry<CompoundKey, OpObject>> objects, String type,
 												   byte[] superBlockHash, Map<String, Long> opsId, Collection<OpIndexColumn> indexes) {
 
 		List<Object[]> insertBatch = new ArrayList<>();
-		String tableByType = dbSchema.getTableByType(type);
-		int ksize = dbSchema.getKeySizeByTable(tableByType);
-		Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
 		Connection conn = null;
 		try {
 			conn = jdbcTemplate.getDataSource().getConnection();
-			while (it.hasNext()) {
-				Entry<CompoundKey, OpObject> e = it.next();
-				CompoundKey pkey = e.getKey();
-				OpObject obj = e.getValue();
-				// OpObject.NULL doesn't have parent hash otherwise it should be a separate object
-				Long l = opsId.get(obj.getParentHash());
-				if (obj == OpObject.NULL) {
-					l = 0l;
-				}
-				if(l == null) {
-					throw new IllegalArgumentException(String.format("Not found op: '%s'", obj.getParentHash()));
-				}
-				int sblockid = OUtils.first(l);
-				int sorder = OUtils.second(l);
-				if (pkey.size() > ksize) {
-					throw new UnsupportedOperationException("Key is too long to be stored: " + pkey.toString());
-				}
-
-				Object[] args = new Object[6 + ksize + indexes.size()];
-				int ind = 0;
-				args[ind++] = type;
-				String ophash = obj.getParentHash();
-				args[ind++] = SecUtils.getHashBytes(ophash);
-				args[ind++] = superBlockHash;
-
-				args[ind++] = sblockid;
-				args[ind++] = sorder;
-				if (!obj.isDeleted()) {
-					PGobject contentObj = new PGobject();
-					contentObj.setType("jsonb");
-					try {
-						contentObj.setValue(formatter.objToJson(obj));
-					} catch (SQLException es) {
-						throw new IllegalArgumentException(es);
-					}
-					args[ind++] = contentObj;
-				} else {
-					args[ind++] = null;
-				}
+			prepareInsertObjRows(objects, type, superBlockHash, opsId, indexes, conn, new Consumer<Object[]>() {
 
-				for (OpIndexColumn index : indexes) {
-					if (!obj.isDeleted()) {
-						args[ind++] = index.evalDBValue(obj, conn);
-					} else {
-						args[ind++] = null;
-					}
+				@Override
+				public void accept(Object[] args) {
+					insertBatch.add(args);
 				}
-				pkey.toArray(args, ind);
-
-				insertBatch.add(args);
-			}
+			});
 		} catch (SQLException e) {
 			throw new IllegalArgumentException();
 		} finally {
@@ -878,6 +1562,65 @@ public class DBConsensusManager {
 		return insertBatch;
 	}
 
+	private void prepareInsertObjRows(Stream<Map.Entry<CompoundKey, OpObject>> objects, String type,
+			byte[] superBlockHash, Map<String, Long> opsId, Collection<OpIndexColumn> indexes, Connection conn,
+			Consumer<Object[]> rows) {
+		String tableByType = dbSchema.getTableByType(type);
+		int ksize = dbSchema.getKeySizeByTable(tableByType);
+		Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
+		while (it.hasNext()) {
+			Entry<CompoundKey, OpObject> e = it.next();
+			CompoundKey pkey = e.getKey();
+			OpObject obj = e.getValue();
+			// OpObject.NULL doesn't have parent hash otherwise it should be a separate object
+			Long l = opsId.get(obj.getParentHash());
+			if (obj == OpObject.NULL) {
+				l = 0l;
+			}
+			if(l == null) {
+				throw new IllegalArgumentException(String.format("Not found op: '%s'", obj.getParentHash()));
+			}
+			int sblockid = OUtils.first(l);
+			int sorder = OUtils.second(l);
+			if (pkey.size() > ksize) {
+				throw new UnsupportedOperationException("Key is too long to be stored: " + pkey.toString());
+			}
+
+			Object[] args = new Object[6 + ksize + indexes.size()];
+			int ind = 0;
+			args[ind++] = type;
+			String ophash = obj.getParentHash();
+			args[ind++] = SecUtils.getHashBytes(ophash);
+			args[ind++] = superBlockHash;
+
+			args[ind++] = sblockid;
+			args[ind++] = sorder;
+			if (!obj.isDeleted()) {
+				PGobject contentObj = new PGobject();
+				contentObj.setType("jsonb");
+				try {
+					contentObj.setValue(formatter.objToJson(obj));
+				} catch (SQLException es) {
+					throw new IllegalArgumentException(es);
+				}
+				args[ind++] = contentObj;
+			} else {
+				args[ind++] = null;
+			}
+
+			for (OpIndexColumn index : indexes) {
+				if (!obj.isDeleted()) {
+					args[ind++] = index.evalDBValue(obj, conn);
+				} else {
+					args[ind++] = null;
+				}
+			}
+			pkey.toArray(args, ind);
+
+			rows.accept(args);
+		}
+	}
+
 	public OpBlockChain compact(int prevSize, OpBlockChain blc, boolean db) {
 		if (blc == null || blc.isNullBlock() || blc.getParent().isNullBlock()) {
 			return blc;
@@ -987,12 +1730,15 @@ public class DBConsensusManager {
 		if (blc.isDbAccessed()) {
 			SuperblockDbAccess dba = dbSuperBlocks.get(blc.getSuperBlockHash());
 			final OpBlockChain res = new OpBlockChain(blc.getParent(), blc.getRules());
-			List<OpBlock> lst = new ArrayList<OpBlock>(blc.getSuperblockFullBlocks());
 			byte[] blockHash = SecUtils.getHashBytes(blc.getSuperBlockHash());
-			Collections.reverse(lst);
-			for (OpBlock block : lst) {
-				res.replicateBlock(block);
-			}
+			// blocks are streamed from db, so the whole superblock is not kept in memory twice
+			blc.fetchSuperblockFullBlocks(new Consumer<OpBlock>() {
+
+				@Override
+				public void accept(OpBlock block) {
+					res.replicateBlock(block);
+				}
+			});
 			return txTemplate.execute(new TransactionCallback<OpBlockChain>() {
 
 				@Override
@@ -1003,6 +1749,8 @@ public class DBConsensusManager {
 					for (String objTable : dbSchema.getObjectTables()) {
 						jdbcTemplate.update("DELETE FROM " + objTable + " where superblock = ?", blockHash);
 					}
+					jdbcTemplate.update("DELETE FROM " + INDEX_FILTERS_TABLE + " where superblock = ?", blockHash);
+					jdbcTemplate.update("DELETE FROM " + OBJS_COUNT_TABLE + " where superblock = ?", blockHash);
 					return res;
 				}
 			}) ;
@@ -0,0 +1,133 @@
+package org.openplacereviews.opendb.service;
+
+import org.openplacereviews.opendb.SecUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.util.PGobject;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Streams rows into postgres table with COPY ... FROM STDIN (csv format).
+ * Copy runs on the given connection, so it is a part of the current transaction.
+ */
+class DBCopyWriter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final CopyIn copyIn;
+	private final StringBuilder buf = new StringBuilder(BUFFER_SIZE);
+	private long rows;
+
+	public DBCopyWriter(Connection conn, String table, String columns) throws SQLException {
+		copyIn = conn.unwrap(PGConnection.class).getCopyAPI()
+				.copyIn("COPY " + table + "(" + columns + ") FROM STDIN WITH (FORMAT csv)");
+	}
+
+	public static boolean isSupported(Connection conn) throws SQLException {
+		return conn.isWrapperFor(PGConnection.class);
+	}
+
+	public void writeRow(Object... values) throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				buf.append(',');
+			}
+			appendValue(values[i]);
+		}
+		buf.append('\n');
+		rows++;
+		if (buf.length() >= BUFFER_SIZE) {
+			flush();
+		}
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long endCopy() throws SQLException {
+		flush();
+		return copyIn.endCopy();
+	}
+
+	public void cancel() {
+		try {
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		} catch (SQLException e) {
+			DBConsensusManager.LOGGER.warn("Couldn't cancel copy: " + e.getMessage(), e);
+		}
+	}
+
+	private void flush() throws SQLException {
+		if (buf.length() > 0) {
+			byte[] bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+			copyIn.writeToCopy(bytes, 0, bytes.length);
+			buf.setLength(0);
+		}
+	}
+
+	private void appendValue(Object o) throws SQLException {
+		// unquoted empty value is NULL in csv format
+		if (o == null) {
+			return;
+		}
+		if (o instanceof byte[]) {
+			buf.append("\\x").append(SecUtils.hexify((byte[]) o));
+		} else if (o instanceof Number || o instanceof Boolean) {
+			buf.append(o);
+		} else if (o instanceof PGobject) {
+			String v = ((PGobject) o).getValue();
+			if (v != null) {
+				appendQuoted(v);
+			}
+		} else if (o instanceof Object[]) {
+			appendQuoted(arrayLiteral((Object[]) o));
+		} else if (o instanceof Array) {
+			appendQuoted(arrayLiteral((Object[]) ((Array) o).getArray()));
+		} else {
+			appendQuoted(o.toString());
+		}
+	}
+
+	private void appendQuoted(String s) {
+		buf.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"') {
+				buf.append('"');
+			}
+			buf.append(c);
+		}
+		buf.append('"');
+	}
+
+	private static String arrayLiteral(Object[] array) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < array.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			if (array[i] == null) {
+				sb.append("NULL");
+				continue;
+			}
+			sb.append('"');
+			String s = array[i].toString();
+			for (int j = 0; j < s.length(); j++) {
+				char c = s.charAt(j);
+				if (c == '"' || c == '\\') {
+					sb.append('\\');
+				}
+				sb.append(c);
+			}
+			sb.append('"');
+		}
+		return sb.append('}').toString();
+	}
+}
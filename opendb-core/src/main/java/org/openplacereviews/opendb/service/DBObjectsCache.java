@@ -0,0 +1,204 @@
+package org.openplacereviews.opendb.service;
+
+import com.google.gson.stream.JsonReader;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * LRU cache of decoded objects and missing keys of db superblock (superblock is immutable until it becomes stale).
+ * Cache is bounded by approximate memory size of cached objects.
+ */
+class DBObjectsCache {
+
+	private static final PerformanceMetric mCacheHit = PerformanceMetrics.i().getMetric("db.objcache.hit");
+	private static final PerformanceMetric mCacheMiss = PerformanceMetrics.i().getMetric("db.objcache.miss");
+
+	public static final OpObject MISSING = new OpObject(true).makeImmutable();
+
+	// approximate heap sizes of retained objects
+	static final int ENTRY_OVERHEAD = 128;
+	private static final int OBJECT_OVERHEAD = 32;
+	private static final int STRING_OVERHEAD = 40;
+	private static final int MAP_OVERHEAD = 48;
+	private static final int MAP_ENTRY_OVERHEAD = 40;
+	private static final int LIST_OVERHEAD = 40;
+	private static final int REFERENCE_SIZE = 8;
+	private static final int BOXED_SIZE = 24;
+
+	private final long maxSize;
+	private long size;
+	private final LinkedHashMap<Entry<String, CompoundKey>, CachedObject> objects = new LinkedHashMap<>(16, 0.75f, true);
+
+	private static class CachedObject {
+		final OpObject obj;
+		final int size;
+
+		CachedObject(OpObject obj, int size) {
+			this.obj = obj;
+			this.size = size;
+		}
+	}
+
+	public DBObjectsCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * @return cached object, MISSING if object is known to be absent or null if it is not cached
+	 */
+	public OpObject get(String type, CompoundKey k) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Metric m = mCacheHit.start();
+		CachedObject c;
+		synchronized (this) {
+			c = objects.get(new SimpleImmutableEntry<>(type, k));
+		}
+		if (c != null) {
+			m.capture();
+			return c.obj;
+		}
+		return null;
+	}
+
+	public Metric startMiss() {
+		return mCacheMiss.start();
+	}
+
+	// object is null if it doesn't exist in superblock
+	public void put(String type, CompoundKey k, OpObject obj) {
+		if (!isEnabled()) {
+			return;
+		}
+		int sz = ENTRY_OVERHEAD;
+		if (obj == null) {
+			obj = MISSING;
+		} else if (!obj.isDeleted()) {
+			sz += estimateSize(obj);
+		}
+		// object is shared by all callers as objects of runtime superblocks
+		obj.makeImmutable();
+		synchronized (this) {
+			CachedObject prev = objects.put(new SimpleImmutableEntry<>(type, k), new CachedObject(obj, sz));
+			if (prev != null) {
+				size -= prev.size;
+			}
+			size += sz;
+			Iterator<CachedObject> it = objects.values().iterator();
+			while (size > maxSize && it.hasNext()) {
+				size -= it.next().size;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Object loaded from db keeps raw json and fields parsed from it on access,
+	 * so both of them are counted as any cached object could be accessed by all its fields.
+	 */
+	static int estimateSize(OpObject obj) {
+		String raw = obj.getRawJson();
+		if (raw != null) {
+			return OBJECT_OVERHEAD + stringSize(raw) + estimateJsonSize(raw);
+		}
+		return OBJECT_OVERHEAD + estimateValueSize(obj.getRawOtherFields());
+	}
+
+	// size of values which are parsed from json (json is scanned without building its tree)
+	private static int estimateJsonSize(String json) {
+		int sz = 0;
+		try {
+			JsonReader reader = new JsonReader(new StringReader(json));
+			while (true) {
+				switch (reader.peek()) {
+				case BEGIN_OBJECT:
+					reader.beginObject();
+					sz += MAP_OVERHEAD;
+					break;
+				case END_OBJECT:
+					reader.endObject();
+					break;
+				case NAME:
+					sz += MAP_ENTRY_OVERHEAD + stringSize(reader.nextName());
+					break;
+				case BEGIN_ARRAY:
+					reader.beginArray();
+					sz += REFERENCE_SIZE + LIST_OVERHEAD;
+					break;
+				case END_ARRAY:
+					reader.endArray();
+					break;
+				case STRING:
+					sz += REFERENCE_SIZE + stringSize(reader.nextString());
+					break;
+				case END_DOCUMENT:
+					return sz;
+				default:
+					reader.skipValue();
+					sz += REFERENCE_SIZE + BOXED_SIZE;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			return sz + json.length() * 2;
+		}
+	}
+
+	private static int estimateValueSize(Object v) {
+		if (v == null) {
+			return 0;
+		} else if (v instanceof String) {
+			return stringSize((String) v);
+		} else if (v instanceof Map) {
+			int sz = MAP_OVERHEAD;
+			for (Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+				sz += MAP_ENTRY_OVERHEAD + estimateValueSize(e.getKey()) + estimateValueSize(e.getValue());
+			}
+			return sz;
+		} else if (v instanceof Collection) {
+			int sz = LIST_OVERHEAD;
+			for (Object o : (Collection<?>) v) {
+				sz += REFERENCE_SIZE + estimateValueSize(o);
+			}
+			return sz;
+		} else if (v instanceof OpObject) {
+			return estimateSize((OpObject) v);
+		}
+		return BOXED_SIZE;
+	}
+
+	private static int stringSize(String s) {
+		return STRING_OVERHEAD + s.length() * 2;
+	}
+
+	// approximate memory size of cached objects
+	synchronized long getMemorySize() {
+		return size;
+	}
+
+	public synchronized void clear() {
+		objects.clear();
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return objects.size();
+	}
+}
@@ -102,7 +102,8 @@ public class DBSchemaHelper {
 	}
 
 	public void alterTableNewColumn(JdbcTemplate jdbcTemplate, ColumnDef c) {
-		String alterTable = String.format("alter table %s add column %s %s", c.getTableName(), 
+		// column could already exist if adding was interrupted before its state was saved
+		String alterTable = String.format("alter table %s add column if not exists %s %s", c.getTableName(), 
 				c.getColName(), c.getColType());
 		jdbcTemplate.execute(alterTable);
 		if(c.getIndex() != NOT_INDEXED) {
@@ -167,13 +168,13 @@ public class DBSchemaHelper {
 	private String generateIndexQuery(ColumnDef c) {
 		String indName = generateIndexName(c.getIndex(), c.getTableName(), c.getColName());
 		if (c.getIndex() == INDEXED) {
-			return String.format("create index %s on %s (%s);\n", indName,
+			return String.format("create index if not exists %s on %s (%s);\n", indName,
 					c.getTableName(), c.getColName());
 		} else if (c.getIndex() == GIN) {
-			return String.format("create index %s on %s using gin (%s);\n", indName,
+			return String.format("create index if not exists %s on %s using gin (%s);\n", indName,
 					c.getTableName(), c.getColName());
 		} else if (c.getIndex() == GIST) {
-			return String.format("create index %s on %s using gist (tsvector(%s));\n", indName,
+			return String.format("create index if not exists %s on %s using gist (tsvector(%s));\n", indName,
 					c.getTableName(), c.getColName());
 		}
 		return null;
@@ -58,6 +58,8 @@ public class DBSchemaManager {
 	protected static final String BLOCKS_TRASH_TABLE = "blocks_trash";
 	protected static final String EXT_RESOURCE_TABLE = "resources";
 	protected static final String OP_OBJ_HISTORY_TABLE = "op_obj_history";
+	protected static final String INDEX_FILTERS_TABLE = "index_filters";
+	protected static final String OBJS_COUNT_TABLE = "objs_count";
 
 	private static DBSchemaHelper dbschema = new DBSchemaHelper(SETTINGS_TABLE);
 	protected static final int MAX_KEY_SIZE = 5;
@@ -167,6 +169,16 @@ public class DBSchemaManager {
 		dbschema.registerColumn(EXT_RESOURCE_TABLE, "added", "timestamp", NOT_INDEXED);
 		dbschema.registerColumn(EXT_RESOURCE_TABLE, "blocks", "bytea[]", NOT_INDEXED);
 
+		dbschema.registerColumn(INDEX_FILTERS_TABLE, "superblock", "bytea", INDEXED);
+		dbschema.registerColumn(INDEX_FILTERS_TABLE, "type", "text", NOT_INDEXED);
+		dbschema.registerColumn(INDEX_FILTERS_TABLE, "indexid", "text", NOT_INDEXED);
+		dbschema.registerColumn(INDEX_FILTERS_TABLE, "signature", "text", NOT_INDEXED);
+		dbschema.registerColumn(INDEX_FILTERS_TABLE, "filter", "bytea", NOT_INDEXED);
+
+		dbschema.registerColumn(OBJS_COUNT_TABLE, "superblock", "bytea", INDEXED);
+		dbschema.registerColumn(OBJS_COUNT_TABLE, "type", "text", NOT_INDEXED);
+		dbschema.registerColumn(OBJS_COUNT_TABLE, "livedelta", "int", NOT_INDEXED);
+
 
 		registerObjTable(OBJS_TABLE, MAX_KEY_SIZE);
 
@@ -312,10 +324,22 @@ public class DBSchemaManager {
 		prepareObjTableMapping();
 		prepareCustomIndices(jdbcTemplate);
 		dbschema.createTablesIfNeeded(metadataDB, jdbcTemplate);
+		createCompositeIndexes(jdbcTemplate);
 		migrateDBSchema(jdbcTemplate);
 		migrateObjMappingIfNeeded(jdbcTemplate);
 	}
 
+	private void createCompositeIndexes(JdbcTemplate jdbcTemplate) {
+		// supports streaming latest objects of superblock ordered by key (distinct on keys order by keys, sblockid desc)
+		for (String objTable : getObjectTables()) {
+			jdbcTemplate.execute(String.format("create index if not exists %s_superblock_keys_ind on %s (superblock, type, %s, sblockid desc)",
+					objTable, objTable, generatePKString(objTable, "p%1$d COLLATE \"C\"", ", ")));
+		}
+		// index filters are built lazily by readers and inserted with 'on conflict do nothing'
+		jdbcTemplate.execute(String.format("create unique index if not exists %s_key_ind on %s (superblock, type, indexid, signature)",
+				INDEX_FILTERS_TABLE, INDEX_FILTERS_TABLE));
+	}
+
 	@SuppressWarnings("unchecked")
 	private void migrateObjMappingIfNeeded(JdbcTemplate jdbcTemplate) {
 		String objMapping = getSetting(jdbcTemplate, "opendb.mapping");
@@ -546,15 +570,20 @@ public class DBSchemaManager {
 	}
 
 	public void insertObjIntoTableBatch(List<Object[]> args, String table, JdbcTemplate jdbcTemplate, Collection<OpIndexColumn> indexes) {
+		jdbcTemplate.batchUpdate("INSERT INTO " + table
+				+ "(" + getObjTableColumns(table, indexes) + ") "
+				+ " values(?,?,?,?,?,?," + repeatString("?,", "", indexes.size()) + generatePKString(table, "?", ",") + ")", args);
+	}
+
+	// columns in the order of values prepared for object insert
+	public String getObjTableColumns(String table, Collection<OpIndexColumn> indexes) {
 		StringBuilder extraColumnNames = new StringBuilder();
 		for(OpIndexColumn index : indexes) {
 			extraColumnNames.append(index.getColumnDef().getColName()).append(",");
 		}
-		jdbcTemplate.batchUpdate("INSERT INTO " + table
-				+ "(type,ophash,superblock,sblockid,sorder,content,"
+		return "type,ophash,superblock,sblockid,sorder,content,"
 				+ extraColumnNames.toString()
-				+ generatePKString(table, "p%1$d", ",") + ") "
-				+ " values(?,?,?,?,?,?," + repeatString("?,", "", indexes.size()) + generatePKString(table, "?", ",") + ")", args);
+				+ generatePKString(table, "p%1$d", ",");
 	}
 
 	public void insertObjIntoHistoryTableBatch(List<Object[]> args, String table, JdbcTemplate jdbcTemplate) {
@@ -1,9 +1,16 @@
 package org.openplacereviews.opendb.service;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.PerformanceMetrics;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.Metric;
+import org.openplacereviews.opendb.ops.PerformanceMetrics.PerformanceMetric;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.postgresql.util.PGobject;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,10 +22,14 @@ import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PreDestroy;
+
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import static org.openplacereviews.opendb.ops.OpBlockChain.*;
 import static org.openplacereviews.opendb.ops.OpObject.F_FINAL;
@@ -39,6 +50,23 @@ public class HistoryManager {
 
 	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(OpObject.DATE_FORMAT);
 
+	private static final Log LOGGER = LogFactory.getLog(HistoryManager.class);
+	private static final PerformanceMetric mHistoryWrite = PerformanceMetrics.i().getMetric("history.write");
+	// time between block is queued and its history is committed
+	private static final PerformanceMetric mHistoryLag = PerformanceMetrics.i().getMetric("history.lag");
+	private static final int MAX_BATCH_BLOCKS = 64;
+	private static final int MAX_WRITE_ATTEMPTS = 5;
+	private static final long SHUTDOWN_TIMEOUT_MS = 60000;
+
+	// blocks waiting to be written by history writer thread (null if history is written synchronously)
+	private BlockingQueue<HistoryBlock> historyQueue;
+	private Thread historyWriter;
+	// history writer gave up, history of further blocks is recovered from blockchain on restart
+	private volatile boolean historyWriterFailed;
+	private long retryTimeoutMs = 10000;
+	private long queuedBlocks;
+	private long writtenBlocks;
+
 	@Autowired
 	private DBSchemaManager dbSchema;
 
@@ -61,25 +89,245 @@ public class HistoryManager {
 		return settingsManager.OPENDB_STORE_HISTORY.get();
 	}
 	
+	private static class HistoryBlock {
+		final OpBlock block;
+		final DeletedObjectCtx hctx;
+		final Metric lag;
+		long seq;
+
+		HistoryBlock(OpBlock block, DeletedObjectCtx hctx) {
+			this.block = block;
+			this.hctx = hctx;
+			this.lag = mHistoryLag.start();
+		}
+	}
+
+	/**
+	 * Starts history writer thread and queues blocks of the blockchain which are newer than the last block
+	 * stored in history (i.e. they were queued but not written before restart)
+	 */
+	public synchronized void init(OpBlockChain blc) {
+		if (!isRunning() || !settingsManager.OPENDB_HISTORY_ASYNC.get() || historyQueue != null) {
+			return;
+		}
+		historyQueue = new LinkedBlockingQueue<>();
+		recoverHistory(blc);
+		historyWriter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				writeHistoryQueue();
+			}
+		}, "history-writer");
+		historyWriter.setDaemon(true);
+		historyWriter.start();
+	}
+
+	/**
+	 * Waits till queued history is written and stops history writer thread,
+	 * history which is not written in time is recovered from blockchain on next start
+	 */
+	@PreDestroy
+	public void stopHistoryWriter() throws InterruptedException {
+		Thread writer;
+		synchronized (this) {
+			writer = historyWriter;
+			historyWriter = null;
+		}
+		if (writer == null) {
+			return;
+		}
+		if (!waitForQueuedHistory(SHUTDOWN_TIMEOUT_MS)) {
+			LOGGER.warn(String.format("History of %d blocks is not written before shutdown", getHistoryLag()));
+		}
+		writer.interrupt();
+		writer.join(SHUTDOWN_TIMEOUT_MS);
+	}
+
+	private void recoverHistory(OpBlockChain blc) {
+		byte[] lastHash = jdbcTemplate.query("SELECT blockhash FROM " + OP_OBJ_HISTORY_TABLE + " ORDER BY sorder DESC LIMIT 1",
+				new ResultSetExtractor<byte[]>() {
+
+					@Override
+					public byte[] extractData(ResultSet rs) throws SQLException, DataAccessException {
+						return rs.next() ? rs.getBytes(1) : null;
+					}
+				});
+		if (lastHash == null) {
+			return;
+		}
+		OpBlock lastBlock = blc.getBlockHeaderByRawHash(SecUtils.hexify(lastHash));
+		if (lastBlock == null) {
+			LOGGER.warn(String.format("Last block of history %s is not found in blockchain", SecUtils.hexify(lastHash)));
+			return;
+		}
+		int lastId = lastBlock.getBlockId();
+		if (blc.getLastBlockId() <= lastId) {
+			return;
+		}
+		// deleted objects are not available in current state anymore, so blocks are replayed
+		// on top of the superblock preceding the last history block to collect them
+		OpBlockChain base = blc;
+		while (base.getLastBlockId() > lastId) {
+			base = base.getParent();
+		}
+		OpBlockChain replay = new OpBlockChain(base, blc.getRules());
+		for (int id = base.getLastBlockId() + 1; id <= blc.getLastBlockId(); id++) {
+			OpBlock block = blc.getFullBlockByBlockId(id);
+			DeletedObjectCtx hctx = new DeletedObjectCtx();
+			if (replay != null) {
+				try {
+					if (replay.replicateBlock(block, hctx) == null) {
+						throw new IllegalStateException("Block is not replicated");
+					}
+				} catch (RuntimeException e) {
+					LOGGER.error(String.format("Block %s couldn't be replayed to recover history, only ids of deleted objects are stored: %s",
+							block.getRawHash(), e.getMessage()), e);
+					replay = null;
+				}
+			}
+			if (id > lastId) {
+				queueHistoryBlock(new HistoryBlock(block, replay != null ? hctx : getDeletedIds(block)));
+			}
+		}
+		LOGGER.info(String.format("History of %d blocks after %s is queued", blc.getLastBlockId() - lastId,
+				lastBlock.getRawHash()));
+	}
+
+	private DeletedObjectCtx getDeletedIds(OpBlock block) {
+		DeletedObjectCtx hctx = new DeletedObjectCtx();
+		for (OpOperation o : block.getOperations()) {
+			for (List<String> deleted : o.getDeleted()) {
+				OpObject obj = new OpObject();
+				obj.putObjectValue(OpObject.F_ID, deleted);
+				hctx.putObjectToDeleteCache(o.getHash(), obj);
+			}
+		}
+		return hctx;
+	}
+
 	public void saveHistoryForBlockOperations(OpBlock opBlock, DeletedObjectCtx hctx) {
 		if (!isRunning()) {
 			return;
 		}
+		if (historyQueue != null) {
+			queueHistoryBlock(new HistoryBlock(opBlock, hctx));
+			return;
+		}
+		writeHistory(Collections.singletonList(new HistoryBlock(opBlock, hctx)));
+	}
+
+	private synchronized void queueHistoryBlock(HistoryBlock b) {
+		if (historyWriterFailed) {
+			return;
+		}
+		b.seq = ++queuedBlocks;
+		historyQueue.add(b);
+	}
+
+	public boolean isHistoryWriterFailed() {
+		return historyWriterFailed;
+	}
+
+	/**
+	 * @return amount of blocks which history is not written yet
+	 */
+	public synchronized long getHistoryLag() {
+		return queuedBlocks - writtenBlocks;
+	}
+
+	/**
+	 * Waits till history of all currently queued blocks is written
+	 * @return false if timeout has passed
+	 */
+	public synchronized boolean waitForQueuedHistory(long timeoutMs) throws InterruptedException {
+		long target = queuedBlocks;
+		long end = System.currentTimeMillis() + timeoutMs;
+		while (writtenBlocks < target) {
+			long left = end - System.currentTimeMillis();
+			if (left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+		return true;
+	}
+
+	private void writeHistoryQueue() {
+		List<HistoryBlock> batch = new ArrayList<>();
+		while (true) {
+			try {
+				batch.add(historyQueue.take());
+				historyQueue.drainTo(batch, MAX_BATCH_BLOCKS - 1);
+				// history is written in blocks order, so failed batch is retried and not skipped
+				for (int attempt = 1; ; attempt++) {
+					try {
+						writeHistory(batch);
+						break;
+					} catch (RuntimeException e) {
+						LOGGER.error(String.format("Error writing history (attempt %d): %s", attempt, e.getMessage()), e);
+						if (attempt >= MAX_WRITE_ATTEMPTS) {
+							stopFailedWriter(batch);
+							return;
+						}
+						Thread.sleep(retryTimeoutMs);
+					}
+				}
+				synchronized (this) {
+					writtenBlocks = batch.get(batch.size() - 1).seq;
+					notifyAll();
+				}
+				batch.clear();
+			} catch (InterruptedException e) {
+				LOGGER.warn("History writer is interrupted");
+				return;
+			}
+		}
+	}
+
+	private synchronized void stopFailedWriter(List<HistoryBlock> batch) {
+		// nothing after the failed batch is written, so the whole history tail is recovered from blockchain on restart
+		historyWriterFailed = true;
+		historyQueue.clear();
+		LOGGER.error(String.format("History writer is stopped, history of blocks starting from %s will be recovered on restart",
+				batch.get(0).block.getRawHash()));
+		writtenBlocks = queuedBlocks;
+		notifyAll();
+	}
+
+	private void writeHistory(List<HistoryBlock> blocks) {
+		Metric m = mHistoryWrite.start();
 		txTemplate.execute(new TransactionCallback<Void>() {
 
 			@Override
 			public Void doInTransaction(TransactionStatus status) {
-				Date date = new Date(opBlock.getDate(OpBlock.F_DATE));
-				for (OpOperation o : opBlock.getOperations()) {
-					List<Object[]> allBatches = generateHistoryObjBatch(opBlock, o, date, hctx);
-					dbSchema.insertObjIntoHistoryTableBatch(allBatches, OP_OBJ_HISTORY_TABLE, jdbcTemplate);
+				List<Object[]> allBatches = new ArrayList<>();
+				for (HistoryBlock b : blocks) {
+					Date date = new Date(b.block.getDate(OpBlock.F_DATE));
+					for (OpOperation o : b.block.getOperations()) {
+						allBatches.addAll(generateHistoryObjBatch(b.block, o, date, b.hctx));
+					}
 				}
+				dbSchema.insertObjIntoHistoryTableBatch(allBatches, OP_OBJ_HISTORY_TABLE, jdbcTemplate);
 				return null;
 			}
 		});
+		m.capture();
+		for (HistoryBlock b : blocks) {
+			b.lag.capture();
+		}
 	}
 
 	public void retrieveHistory(HistoryObjectRequest historyObjectRequest) {
+		if (historyQueue != null && !historyWriterFailed) {
+			try {
+				if (!waitForQueuedHistory(settingsManager.OPENDB_HISTORY_WAIT_TIMEOUT.get())) {
+					LOGGER.warn(String.format("History is %d blocks behind blockchain", getHistoryLag()));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		String sql;
 		switch (historyObjectRequest.historyType) {
 			case HISTORY_BY_USER: {
@@ -243,8 +491,10 @@ public class HistoryManager {
 
 		Map<List<String>, HistoryEdit> previousHistoryEditMap = new HashMap<>();
 		Map<List<String>, OpObject> originObjectMap = new HashMap<>();
+		Map<String, Map<CompoundKey, OpObject>> currentObjects = loadCurrentObjects(historyList);
 		for (HistoryEdit historyEdit : historyList) {
-			OpObject originObject = getPreviousOpObject(originObjectMap.get(historyEdit.id), previousHistoryEditMap.get(historyEdit.id), historyEdit);
+			OpObject originObject = getPreviousOpObject(originObjectMap.get(historyEdit.id), previousHistoryEditMap.get(historyEdit.id), historyEdit,
+					currentObjects);
 			previousHistoryEditMap.put(historyEdit.id, historyEdit);
 			newHistoryList.add(historyEdit);
 			originObjectMap.put(historyEdit.id, originObject);
@@ -262,12 +512,37 @@ public class HistoryManager {
 	}
 
 
+	// load current versions of all objects in history with 1 request per type
+	private Map<String, Map<CompoundKey, OpObject>> loadCurrentObjects(List<HistoryEdit> historyList) {
+		Map<String, Set<CompoundKey>> keysByType = new HashMap<>();
+		for (HistoryEdit historyEdit : historyList) {
+			if (!historyEdit.getStatus().equals(Status.DELETED)) {
+				keysByType.computeIfAbsent(historyEdit.objType, t -> new HashSet<>()).add(new CompoundKey(1, historyEdit.id));
+			}
+		}
+		Map<String, Map<CompoundKey, OpObject>> res = new HashMap<>();
+		OpBlockChain blc = blocksManager.getBlockchain();
+		for (Map.Entry<String, Set<CompoundKey>> e : keysByType.entrySet()) {
+			res.put(e.getKey(), blc.getObjectsByNames(e.getKey(), e.getValue()));
+		}
+		return res;
+	}
+
 	protected OpObject getPreviousOpObject(OpObject originObject, HistoryEdit previousHistoryEdit, HistoryEdit historyEdit) {
+		return getPreviousOpObject(originObject, previousHistoryEdit, historyEdit, null);
+	}
+
+	protected OpObject getPreviousOpObject(OpObject originObject, HistoryEdit previousHistoryEdit, HistoryEdit historyEdit,
+										   Map<String, Map<CompoundKey, OpObject>> currentObjects) {
 		if (historyEdit.getStatus().equals(Status.DELETED)) {
 			originObject = historyEdit.objEdit;
 		} else if (historyEdit.getStatus().equals(Status.EDITED) && originObject == null ||
 				historyEdit.getStatus().equals(Status.CREATED) && previousHistoryEdit == null) {
-			originObject = blocksManager.getBlockchain().getObjectByName(historyEdit.objType, historyEdit.id.subList(1, historyEdit.id.size()));
+			if (currentObjects != null && currentObjects.containsKey(historyEdit.objType)) {
+				originObject = currentObjects.get(historyEdit.objType).get(new CompoundKey(1, historyEdit.id));
+			} else {
+				originObject = blocksManager.getBlockchain().getObjectByName(historyEdit.objType, historyEdit.id.subList(1, historyEdit.id.size()));
+			}
 			historyEdit.objEdit = originObject;
 		} else {
 			Map<String, Object> changes = previousHistoryEdit.deltaChanges;
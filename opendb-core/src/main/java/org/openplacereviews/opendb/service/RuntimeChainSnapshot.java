@@ -0,0 +1,248 @@
+package org.openplacereviews.opendb.service;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.openplacereviews.opendb.ops.OpBlock;
+import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshot of runtime (not saved to db) superblocks and operations queue on top of db superblocks.
+ * Snapshot is written to a temporary file and moved by {@link #commit(File)}, so it is either complete or absent.
+ * It stores blocks, latest object versions and live objects deltas of every runtime superblock,
+ * so chain could be restored without validation of blocks and operations.
+ */
+class RuntimeChainSnapshot {
+
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final JsonFormatter formatter;
+	private final File file;
+
+	static class SnapshotLevel {
+		List<OpBlock> blocks = new ArrayList<>();
+		List<String> queue = new ArrayList<>();
+		Map<String, Map<CompoundKey, OpObject>> objects = new TreeMap<>();
+		Map<String, Integer> deltas = new TreeMap<>();
+	}
+
+	static class SnapshotState {
+		String dbSuperblock;
+		// from the oldest to the newest (queue chain)
+		List<SnapshotLevel> levels = new ArrayList<>();
+	}
+
+	public RuntimeChainSnapshot(JsonFormatter formatter, File file) {
+		this.formatter = formatter;
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return temporary file which should be committed to replace snapshot
+	 */
+	public File writeTemporary(OpBlockChain blc) throws IOException {
+		LinkedList<OpBlockChain> levels = new LinkedList<>();
+		OpBlockChain p = blc;
+		while (!p.isNullBlock() && !p.isDbAccessed()) {
+			levels.addFirst(p);
+			p = p.getParent();
+		}
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try (JsonWriter w = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), StandardCharsets.UTF_8)))) {
+			w.beginObject();
+			w.name("version").value(VERSION);
+			w.name("dbSuperblock").value(p.isNullBlock() ? "" : p.getSuperBlockHash());
+			w.name("levels").beginArray();
+			for (OpBlockChain l : levels) {
+				writeLevel(w, l);
+			}
+			w.endArray();
+			w.endObject();
+		} catch (IOException | RuntimeException e) {
+			tmp.delete();
+			throw e;
+		}
+		return tmp;
+	}
+
+	public void commit(File tmp) throws IOException {
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void writeLevel(JsonWriter w, OpBlockChain l) throws IOException {
+		w.beginObject();
+		w.name("blocks").beginArray();
+		Iterator<OpBlock> it = l.getSuperblockFullBlocks().descendingIterator();
+		while (it.hasNext()) {
+			w.value(formatter.toJson(it.next()));
+		}
+		w.endArray();
+		w.name("queue").beginArray();
+		for (OpOperation o : l.getQueueOperations()) {
+			w.value(o.getRawHash());
+		}
+		w.endArray();
+		w.name("deltas").beginObject();
+		for (Entry<String, Integer> e : l.getLiveObjectsDeltas().entrySet()) {
+			w.name(e.getKey()).value(e.getValue());
+		}
+		w.endObject();
+		w.name("objects").beginObject();
+		for (String type : new ArrayList<>(l.getRawSuperblockTypes())) {
+			w.name(type).beginArray();
+			try (Stream<Entry<CompoundKey, OpObject>> objects = l.getRawSuperblockObjects(type)) {
+				Iterator<Entry<CompoundKey, OpObject>> oit = objects.iterator();
+				while (oit.hasNext()) {
+					Entry<CompoundKey, OpObject> e = oit.next();
+					OpObject obj = e.getValue();
+					w.beginArray();
+					w.beginArray();
+					for (String k : e.getKey()) {
+						w.value(k);
+					}
+					w.endArray();
+					w.value(obj.getParentType());
+					w.value(obj.getParentHash());
+					w.value(obj.isDeleted() ? null : formatter.objToJson(obj));
+					w.endArray();
+				}
+			}
+			w.endArray();
+		}
+		w.endObject();
+		w.endObject();
+	}
+
+	/**
+	 * @return null if snapshot doesn't exist or it was written by other version
+	 */
+	public SnapshotState read() throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		SnapshotState s = new SnapshotState();
+		try (JsonReader r = new JsonReader(new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), StandardCharsets.UTF_8)))) {
+			r.beginObject();
+			while (r.hasNext()) {
+				String name = r.nextName();
+				if (name.equals("version")) {
+					if (r.nextInt() != VERSION) {
+						return null;
+					}
+				} else if (name.equals("dbSuperblock")) {
+					s.dbSuperblock = r.nextString();
+				} else if (name.equals("levels")) {
+					r.beginArray();
+					while (r.hasNext()) {
+						s.levels.add(readLevel(r));
+					}
+					r.endArray();
+				} else {
+					r.skipValue();
+				}
+			}
+			r.endObject();
+		}
+		return s;
+	}
+
+	private SnapshotLevel readLevel(JsonReader r) throws IOException {
+		SnapshotLevel l = new SnapshotLevel();
+		r.beginObject();
+		while (r.hasNext()) {
+			String name = r.nextName();
+			if (name.equals("blocks")) {
+				r.beginArray();
+				while (r.hasNext()) {
+					OpBlock block = formatter.parseBlock(r.nextString());
+					block.makeImmutable();
+					l.blocks.add(block);
+				}
+				r.endArray();
+			} else if (name.equals("queue")) {
+				r.beginArray();
+				while (r.hasNext()) {
+					l.queue.add(r.nextString());
+				}
+				r.endArray();
+			} else if (name.equals("deltas")) {
+				r.beginObject();
+				while (r.hasNext()) {
+					l.deltas.put(r.nextName(), r.nextInt());
+				}
+				r.endObject();
+			} else if (name.equals("objects")) {
+				r.beginObject();
+				while (r.hasNext()) {
+					Map<CompoundKey, OpObject> objects = new LinkedHashMap<>();
+					l.objects.put(r.nextName(), objects);
+					r.beginArray();
+					while (r.hasNext()) {
+						readObject(r, objects);
+					}
+					r.endArray();
+				}
+				r.endObject();
+			} else {
+				r.skipValue();
+			}
+		}
+		r.endObject();
+		return l;
+	}
+
+	private void readObject(JsonReader r, Map<CompoundKey, OpObject> objects) throws IOException {
+		r.beginArray();
+		List<String> key = new ArrayList<>(2);
+		r.beginArray();
+		while (r.hasNext()) {
+			key.add(r.nextString());
+		}
+		r.endArray();
+		String parentType = nextNullableString(r);
+		String parentHash = nextNullableString(r);
+		String content = nextNullableString(r);
+		r.endArray();
+		OpObject obj;
+		if (content == null && parentType == null && parentHash == null) {
+			obj = OpObject.NULL;
+		} else {
+			obj = content == null ? new OpObject(true) : formatter.parseObjectLazy(content);
+			obj.setParentOp(parentType, parentHash);
+			obj.makeImmutable();
+		}
+		objects.put(new CompoundKey(0, key), obj);
+	}
+
+	private static String nextNullableString(JsonReader r) throws IOException {
+		if (r.peek() == JsonToken.NULL) {
+			r.nextNull();
+			return null;
+		}
+		return r.nextString();
+	}
+}
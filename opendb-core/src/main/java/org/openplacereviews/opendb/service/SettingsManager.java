@@ -518,11 +518,25 @@ public class SettingsManager {
 	// REPLICA
 	public final CommonPreference<Integer> OPENDB_REPLICATE_INTERVAL = registerIntPreference(USER, "opendb.replicate.interval", 15, "Time interval to replicate blocks").editable();
 	public final CommonPreference<String> OPENDB_REPLICATE_URL = registerStringPreference(USER, "opendb.replicate.url", "https://test.openplacereviews.org/api/", "Main source to replicate blocks").editable();
+	public final CommonPreference<Integer> OPENDB_REPLICATE_PREFETCH_BLOCKS = registerIntPreference(USER, "opendb.replicate.prefetchBlocks", 0, "Number of blocks to download and verify ahead during replication (0 - sequential replication)").editable();
+	public final CommonPreference<Boolean> OPENDB_REPLICATE_BINARY = registerBooleanPreference("opendb.replicate.binary", true, "Request blocks in compact binary format during replication (falls back to json if server doesn't support it)").editable();
+	public final CommonPreference<Boolean> OPENDB_REPLICATE_RANGE_DOWNLOAD = registerBooleanPreference("opendb.replicate.rangeDownload", true, "Download blocks with a single streaming request instead of a request per block (sequential replication)").editable();
+	public final CommonPreference<Integer> OPENDB_REPLICATE_VERIFY_THREADS = registerIntPreference(USER, "opendb.replicate.verifyThreads", 4, "Number of threads to download blocks and verify hashes and signatures ahead during replication").editable();
 
 	// BLOCK AND HISTORY
 	public final CommonPreference<Boolean> OPENDB_STORE_HISTORY = registerBooleanPreference("opendb.db.store-history", true, "Store history of operations").editable().restartNeeded();
+	public final CommonPreference<Boolean> OPENDB_HISTORY_ASYNC = registerBooleanPreference("opendb.db.historyAsync", false, "Store history of operations in background (history could be behind the last block)").editable().restartNeeded();
+	public final CommonPreference<Integer> OPENDB_HISTORY_WAIT_TIMEOUT = registerIntPreference("opendb.db.historyWaitTimeoutMs", 5000, "Time (ms) to wait for queued history before history is retrieved").editable();
 	public final CommonPreference<Double> OPENDB_COMPACT_COEFICIENT = registerDoublePreference("opendb.db.compactCoefficient", 1.0,  "Compact coefficient for compacting blockchain").editable();
 	public final CommonPreference<Integer> OPENDB_SUPERBLOCK_SIZE = registerIntPreference("opendb.db.dbSuperblockSize", 32,  "The amount of blocks to create superblock in a database").editable();
+	public final CommonPreference<Boolean> OPENDB_LATEST_VERSION_INDEX = registerBooleanPreference("opendb.db.latestVersionIndex", false, "Keep merged in-memory index of latest object versions through all superblocks").editable().restartNeeded();
+	public final CommonPreference<Boolean> OPENDB_COMPACT_RUNTIME_OBJECTS = registerBooleanPreference("opendb.db.compactRuntimeObjects", false, "Keep objects of not yet persisted superblocks serialized off-heap and parse them on access").editable().restartNeeded();
+	public final CommonPreference<Boolean> OPENDB_COMPRESS_RUNTIME_OBJECTS = registerBooleanPreference("opendb.db.compressRuntimeObjects", false, "Compress serialized objects of not yet persisted superblocks (used with compact runtime objects)").editable().restartNeeded();
+	public final CommonPreference<Integer> OPENDB_DB_OBJECTS_CACHE_SIZE = registerIntPreference("opendb.db.objectsCacheSizeKb", 4096, "Size (KB) of cache of objects and missing keys per db superblock (0 - disabled)").editable();
+	public final CommonPreference<Integer> OPENDB_REINDEX_THREADS = registerIntPreference("opendb.db.reindexThreads", 4, "Number of threads to fill new index column (superblocks are processed in parallel, limited by db connection pool size)").editable();
+	public final CommonPreference<String> OPENDB_SNAPSHOT_FILE = registerStringPreference("opendb.db.snapshotFile", "", "File with snapshot of not yet persisted superblocks and queue to restore them on startup without validation (empty - disabled)").editable();
+	public final CommonPreference<Integer> OPENDB_SNAPSHOT_INTERVAL = registerIntPreference("opendb.db.snapshotIntervalSeconds", 600, "Interval (seconds) to save snapshot of not yet persisted superblocks (it is saved on shutdown as well)").editable();
+	public final CommonPreference<Map<String, Object>> OPENDB_REINDEX_PROGRESS = registerMapPreference("opendb.db.reindexProgress", new TreeMap<>(), "Superblocks with filled new index column (used to resume after restart)");
 
 	// LOCAL STORAGE
 	public final CommonPreference<String> OPENDB_STORAGE_LOCAL_STORAGE_PATH = registerStringPreference("opendb.storage.local-storage", "", "Path for storing resource files").restartNeeded().editable();
@@ -5,13 +5,18 @@ import static org.openplacereviews.opendb.ops.OpObject.F_CHANGE;
 import static org.openplacereviews.opendb.ops.OpObject.F_CURRENT;
 import static org.openplacereviews.opendb.ops.OpObject.F_ID;
 
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
@@ -19,20 +24,24 @@ import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.BlocksManager;
+import org.openplacereviews.opendb.util.BloomFilter;
 import org.openplacereviews.opendb.util.OUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 
 public abstract class GenericBlockchainReviewBot<T> extends GenericMultiThreadBot<T> {
 
 	private static final String F_BLOCK_HASH = "lastblock";
+	private static final int SCAN_BATCH_SIZE = 1000;
+	private static final double SHADOW_FILTER_FPP = 0.01;
 	
 	@Autowired
 	protected BlocksManager blocksManager;
 
-	private int totalCnt = 1;
-	private int progress = 0;
-
-	private int changed;
+	private volatile int totalCnt = 1;
+	private final AtomicInteger progress = new AtomicInteger();
+	private final AtomicInteger changed = new AtomicInteger();
+	// operations are added to blockchain one by one
+	private final Object opLock = new Object();
 	
 	public GenericBlockchainReviewBot(OpObject botObject) {
 		super(botObject);
@@ -44,8 +53,18 @@ public abstract class GenericBlockchainReviewBot<T> extends GenericMultiThreadBo
 	
 	public abstract String objectType();
 	
+	/**
+	 * Method is called concurrently (with different op) only if bot enables parallel scan, see isParallelScan
+	 */
 	public abstract boolean processSingleObject(OpObject value, OpOperation op, OpBlock lastBlockHeader);
 	
+	/**
+	 * Superblocks are scanned one by one unless bot confirms that processSingleObject is thread safe
+	 */
+	protected boolean isParallelScan() {
+		return false;
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public synchronized T call() throws Exception {
@@ -55,48 +74,31 @@ public abstract class GenericBlockchainReviewBot<T> extends GenericMultiThreadBo
 			OpBlockChain blc = blocksManager.getBlockchain();
 			OpBlockChain init = blc;
 			totalCnt = blc.countAllObjects(objectType());
-			progress = 0;
-			changed = 0;
+			progress.set(0);
+			changed.set(0);
 			String lastScannedBlockHash = botObject.getField(null, F_BOT_STATE, F_BLOCK_HASH);
 			info(String.format("Synchronization of '%s' has started from block %s. Total %d places.", botTypeName(), lastScannedBlockHash, totalCnt));
-			OpOperation op = initOpOperation(objectType());
-			Set<CompoundKey> keys = new HashSet<CompoundKey>();
+			List<OpBlockChain> superblocks = new ArrayList<>();
 			boolean blockExist = blc.getBlockHeaderByRawHash(wrapNull(lastScannedBlockHash)) != null;
 			while (blc != null && !blc.isNullBlock()) {
-				OpBlock lastBlockHeader = blc.getLastBlockHeader();
-				Iterator<Entry<CompoundKey, OpObject>> it = blc.getRawSuperblockObjects("opr.place").iterator();
-				while (it.hasNext()) {
-					Entry<CompoundKey, OpObject> e = it.next();
-					if (!keys.add(e.getKey())) {
-						continue;
-					}
-					progress++;
-					boolean proc = processSingleObject(e.getValue(), op, lastBlockHeader);
-					if (proc) {
-						op = addOpIfNeeded(op, false);
-						changed++;
-					}
-					if (progress % 5000 == 0) {
-						info(String.format("Progress of '%s' %d / %d  (changed %d).", botTypeName(),
-								progress, totalCnt, changed));
-					}
-				}
+				superblocks.add(blc);
 				blc = blc.getParent();
 				if (blockExist && blc.getBlockHeaderByRawHash(wrapNull(lastScannedBlockHash)) == null) {
 					break;
 				}
 			}
-			op = addOpIfNeeded(op, true);
+			scanSuperblocks(superblocks);
 			String lastBlockRawHash = init.getLastBlockRawHash();
-			if ((changed > 0 || lastScannedBlockHash == null) &&
+			// interrupted scan is not complete, so it shouldn't be continued from the last block
+			if ((changed.get() > 0 || lastScannedBlockHash == null) && !isInterrupted() &&
 					!OUtils.equals(lastBlockRawHash, lastScannedBlockHash)) {
-				op = initOpOperation(botObject.getParentType());
+				OpOperation op = initOpOperation(botObject.getParentType());
 				generateSetOperation(op, botObject.getId(),
 						F_BOT_STATE + "." + F_BLOCK_HASH, lastScannedBlockHash, lastBlockRawHash);
 				addOpIfNeeded(op, true);
 			}
 			info(String.format("Synchronization of '%s' has finished. Scanned %d, changed %d", botTypeName(),
-					progress, changed));
+					progress.get(), changed.get()));
 			setSuccessState();
 		} catch (Exception e) {
 			setFailedState();
@@ -110,6 +112,117 @@ public abstract class GenericBlockchainReviewBot<T> extends GenericMultiThreadBo
 	
 
 
+	/**
+	 * Every superblock is scanned by separate task (tasks run in parallel only if isParallelScan). Object is processed
+	 * only in the most recent superblock where it is present, keys of upper superblocks are checked with bloom filters
+	 * instead of keeping all scanned keys.
+	 */
+	private void scanSuperblocks(List<OpBlockChain> superblocks) throws Exception {
+		List<BloomFilter> filters = new ArrayList<>();
+		List<Future<BloomFilter>> filterFutures = new ArrayList<>();
+		// the last superblock doesn't shadow any other superblock
+		for (int i = 0; i < superblocks.size() - 1; i++) {
+			if (isInterrupted()) {
+				return;
+			}
+			OpBlockChain sblc = superblocks.get(i);
+			filterFutures.add(service.submit(() -> buildKeysFilter(sblc)));
+		}
+		for (Future<BloomFilter> f : filterFutures) {
+			filters.add(f.get());
+		}
+		Deque<Future<TaskResult>> futures = new ArrayDeque<>();
+		if (!isParallelScan()) {
+			for (int i = superblocks.size() - 1; i >= 0 && !isInterrupted(); i--) {
+				int ind = i;
+				submitTaskAndWait(String.format("Scan superblock %d / %d of '%s'", superblocks.size() - i,
+						superblocks.size(), botTypeName()), () -> scanSuperblock(superblocks, filters, ind), futures);
+			}
+			return;
+		}
+		for (int i = superblocks.size() - 1; i > 0; i--) {
+			int ind = i;
+			submitTask(null, () -> scanSuperblock(superblocks, filters, ind), futures);
+		}
+		if (!superblocks.isEmpty()) {
+			submitTaskAndWait(String.format("Scan %d superblocks of '%s'", superblocks.size(), botTypeName()),
+					() -> scanSuperblock(superblocks, filters, 0), futures);
+		}
+	}
+
+	private BloomFilter buildKeysFilter(OpBlockChain sblc) {
+		BloomFilter filter = BloomFilter.create(sblc.countRawSuperblockObjects(objectType()), SHADOW_FILTER_FPP);
+		try (Stream<Entry<CompoundKey, OpObject>> objects = sblc.getRawSuperblockObjects(objectType(), true)) {
+			Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
+			while (it.hasNext()) {
+				filter.put(it.next().getKey().toString());
+			}
+		}
+		return filter;
+	}
+
+	private TaskResult scanSuperblock(List<OpBlockChain> superblocks, List<BloomFilter> filters, int ind) {
+		OpBlockChain sblc = superblocks.get(ind);
+		String msg = String.format("Superblock %s of '%s' is scanned", sblc.getSuperBlockHash(), botTypeName());
+		try {
+			OpBlock lastBlockHeader = sblc.getLastBlockHeader();
+			OpOperation op = initOpOperation(objectType());
+			int scanned = 0;
+			List<Entry<CompoundKey, OpObject>> batch = new ArrayList<>();
+			try (Stream<Entry<CompoundKey, OpObject>> objects = sblc.getRawSuperblockObjects(objectType())) {
+				Iterator<Entry<CompoundKey, OpObject>> it = objects.iterator();
+				while (it.hasNext() && !isInterrupted()) {
+					batch.add(it.next());
+					if (batch.size() < SCAN_BATCH_SIZE && it.hasNext()) {
+						continue;
+					}
+					removeShadowedObjects(superblocks, filters, ind, batch);
+					for (Entry<CompoundKey, OpObject> e : batch) {
+						scanned++;
+						if (processSingleObject(e.getValue(), op, lastBlockHeader)) {
+							synchronized (opLock) {
+								op = addOpIfNeeded(op, false);
+							}
+							changed.incrementAndGet();
+						}
+						int p = progress.incrementAndGet();
+						if (p % 5000 == 0) {
+							info(String.format("Progress of '%s' %d / %d  (changed %d).", botTypeName(),
+									p, totalCnt, changed.get()));
+						}
+					}
+					batch.clear();
+				}
+			}
+			synchronized (opLock) {
+				addOpIfNeeded(op, true);
+			}
+			return new TaskResult(msg, scanned, null);
+		} catch (Exception e) {
+			return errorResult(msg, e);
+		}
+	}
+
+	private void removeShadowedObjects(List<OpBlockChain> superblocks, List<BloomFilter> filters, int ind,
+			List<Entry<CompoundKey, OpObject>> batch) {
+		for (int i = 0; i < ind && !batch.isEmpty(); i++) {
+			BloomFilter filter = filters.get(i);
+			List<CompoundKey> candidates = new ArrayList<>();
+			for (Entry<CompoundKey, OpObject> e : batch) {
+				if (filter.mightContain(e.getKey().toString())) {
+					candidates.add(e.getKey());
+				}
+			}
+			if (!candidates.isEmpty()) {
+				// filter could give false positives, so candidates are checked in upper superblock
+				Set<CompoundKey> shadowed = superblocks.get(i).getRawSuperblockObjectsByKeys(objectType(), candidates).keySet();
+				if (!shadowed.isEmpty()) {
+					batch.removeIf(e -> shadowed.contains(e.getKey()));
+				}
+			}
+		}
+	}
+
 	@Override
 	public int total() {
 		return totalCnt;
@@ -117,7 +230,7 @@ public abstract class GenericBlockchainReviewBot<T> extends GenericMultiThreadBo
 
 	@Override
 	public int progress() {
-		return progress;
+		return progress.get();
 	}
 
 	private String wrapNull(String tp) {
@@ -6,25 +6,45 @@ import org.openplacereviews.opendb.ops.OpIndexColumn;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.service.BlocksManager;
+import org.openplacereviews.opendb.service.DBConsensusManager.DBStaleException;
 import org.openplacereviews.opendb.service.DBSchemaManager;
 import org.openplacereviews.opendb.service.SettingsManager;
 import org.openplacereviews.opendb.service.SettingsManager.CommonPreference;
 import org.openplacereviews.opendb.service.SettingsManager.PreferenceFamily;
 import org.openplacereviews.opendb.util.OUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static org.openplacereviews.opendb.service.SettingsManager.*;
 
 public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 
-	private int totalCnt = 1;
-	private int progress = 0;
+	private static final String REINDEX_TABLE = "table";
+	private static final String REINDEX_INDEX = "index";
+	private static final String REINDEX_SUPERBLOCKS = "superblocks";
+	private static final int BATCH_SIZE = 1000;
+	// each reindex task holds cursor over superblock objects and connection to write batches
+	private static final int CONNECTIONS_PER_TASK = 2;
+	// connections left to the rest of the server while reindexing
+	private static final int RESERVED_CONNECTIONS = 2;
+
+	private volatile int totalCnt = 1;
+	private volatile int progress = 0;
 	
 
 	@Autowired
@@ -39,6 +59,9 @@ public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 	@Autowired
 	private BlocksManager blocksManager;
 
+	@Value("${spring.datasource.hikari.maximum-pool-size:10}")
+	private int dbPoolSize;
+
 	public UpdateIndexesBot(String id) {
 		super(id);
 	}
@@ -74,22 +97,31 @@ public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 				String colName = (String) expectedIndex.get(INDEX_NAME);
 				String tableName = (String) expectedIndex.get(INDEX_TABLENAME);
 				
-				info(String.format("Start creating new index: '%s' for table '%s'...", colName, tableName));
-				dbSchemaManager.alterTableNewColumn(jdbcTemplate, dbSchemaManager.generateIndexColumn(expectedIndex));
-				info("Index: '" + colName + "' for table: " + tableName + " was added");
+				Set<String> reindexed = getReindexedSuperblocks(tableName, colName);
+				if (reindexed == null) {
+					info(String.format("Start creating new index: '%s' for table '%s'...", colName, tableName));
+					dbSchemaManager.alterTableNewColumn(jdbcTemplate, dbSchemaManager.generateIndexColumn(expectedIndex));
+					info("Index: '" + colName + "' for table: " + tableName + " was added");
+					reindexed = new TreeSet<>();
+					saveReindexProgress(tableName, colName, reindexed);
+				} else {
+					info(String.format("Resume data migration for index: '%s' for table '%s' (%d superblocks are done)",
+							colName, tableName, reindexed.size()));
+				}
 				
 				info(" Start data migration for new index ...");
-				blocksManager.lockBlockchain("Locked for DB Index Updating");
+				Map<String, OpIndexColumn> columns = new LinkedHashMap<>();
 				List<String> objTypes = dbSchemaManager.getTypesByTable(tableName);
 				for (String objType : objTypes) {
 					Map<String, OpIndexColumn> map = dbSchemaManager.getIndexes().get(objType);
 					if(map != null && map.get(colName) != null) {
-						reindexOpColumn(tableName, objType, map.get(colName));
+						columns.put(objType, map.get(colName));
 					}
 				}
-				blocksManager.unlockBlockchain();
+				reindexOpColumn(tableName, colName, columns, reindexed);
 				CommonPreference<Map<String, Object>> pn = settingsManager.registerMapPreferenceForFamily(SettingsManager.DB_SCHEMA_INTERNAL_INDEXES, expectedIndex);
 				pn.set(expectedIndex);
+				settingsManager.OPENDB_REINDEX_PROGRESS.set(new TreeMap<>());
 				info("Data migration for new index was finished");
 			}
 			setSuccessState();
@@ -114,61 +146,141 @@ public class UpdateIndexesBot extends GenericMultiThreadBot<UpdateIndexesBot> {
 		return mp;
 	}
 
-	private void reindexOpColumn(String tableName, String objType, OpIndexColumn ind) {
-		String sql = "UPDATE " + tableName + " SET " + ind.getColumnDef().getColName() + " = ? WHERE "
-				+ dbSchemaManager.generatePKString(tableName, "p%1$d = ?", " AND ") + " AND ophash = ?";
-		
-		OpBlockChain opBlockChain = blocksManager.getBlockchain();
-		while (opBlockChain.getParent() != null) {
-			Stream<Map.Entry<CompoundKey, OpObject>> objects = opBlockChain.getRawSuperblockObjects(objType);
-			List<Object[]> args = prepareInsertIndexObjBatch(objects, objType, ind);
-			totalCnt += args.size();
-			for (Object[] arg : args) {
-				progress++;
-				jdbcTemplate.update(sql, arg);
-				if (progress % 5000 == 0) {
-					info(String.format("Progress of 'update-indexes' %d / %d", progress, totalCnt));
-				}
-			}
-
-			opBlockChain = opBlockChain.getParent();
+	@SuppressWarnings("unchecked")
+	private Set<String> getReindexedSuperblocks(String tableName, String colName) {
+		Map<String, Object> state = settingsManager.OPENDB_REINDEX_PROGRESS.get();
+		if (!OUtils.equals(tableName, state.get(REINDEX_TABLE)) || !OUtils.equals(colName, state.get(REINDEX_INDEX))) {
+			return null;
+		}
+		Set<String> res = new TreeSet<>();
+		Object l = state.get(REINDEX_SUPERBLOCKS);
+		if (l instanceof Collection) {
+			res.addAll((Collection<String>) l);
 		}
+		return res;
 	}
-	
-	private List<Object[]> prepareInsertIndexObjBatch(Stream<Map.Entry<CompoundKey, OpObject>> objects, String type, OpIndexColumn index) {
-		List<Object[]> updateList = new ArrayList<>();
-		String table = dbSchemaManager.getTableByType(type);
-		int ksize = dbSchemaManager.getKeySizeByTable(table);
-		Iterator<Map.Entry<CompoundKey, OpObject>> it = objects.iterator();
-		Connection conn = null;
+
+	private void saveReindexProgress(String tableName, String colName, Set<String> reindexed) {
+		TreeMap<String, Object> state = new TreeMap<>();
+		state.put(REINDEX_TABLE, tableName);
+		state.put(REINDEX_INDEX, colName);
+		state.put(REINDEX_SUPERBLOCKS, new ArrayList<>(reindexed));
+		settingsManager.OPENDB_REINDEX_PROGRESS.set(state);
+	}
+
+	// blockchain is not locked: objects of superblocks saved meanwhile already have new column filled by db schema
+	// and superblocks compacted meanwhile are processed again with a new hash (update is idempotent)
+	private void reindexOpColumn(String tableName, String colName, Map<String, OpIndexColumn> columns,
+			Set<String> reindexed) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(getReindexThreads());
 		try {
-			conn = jdbcTemplate.getDataSource().getConnection();
-			while (it.hasNext()) {
-				Map.Entry<CompoundKey, OpObject> e = it.next();
-				CompoundKey pkey = e.getKey();
-				OpObject obj = e.getValue();
-				Object[] args = new Object[1 + ksize + 1];
-				if (obj != null && !obj.isDeleted()) {
-					args[0] = index.evalDBValue(obj, conn);
+			boolean stale = true;
+			while (stale) {
+				stale = false;
+				List<Future<Integer>> futures = new ArrayList<>();
+				OpBlockChain opBlockChain = blocksManager.getBlockchain();
+				while (!opBlockChain.isNullBlock()) {
+					if (opBlockChain.isDbAccessed() && !reindexed.contains(opBlockChain.getSuperBlockHash())) {
+						futures.add(executor.submit(reindexSuperblockTask(opBlockChain, tableName, colName, columns, reindexed)));
+					}
+					opBlockChain = opBlockChain.getParent();
+				}
+				totalCnt = progress + futures.size();
+				for (Future<Integer> f : futures) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						if (!(e.getCause() instanceof DBStaleException)) {
+							throw e;
+						}
+						stale = true;
+					}
+				}
+				if (stale) {
+					info("Superblocks were changed during data migration, continue with the current blockchain ...");
 				}
-				pkey.toArray(args, 1);
-				args[ksize + 1] = SecUtils.getHashBytes(obj.getParentHash());
-				updateList.add(args);
-				
 			}
-		} catch (SQLException e) {
-			throw new IllegalArgumentException();
 		} finally {
-			if(conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-					throw new IllegalArgumentException(e);
+			executor.shutdownNow();
+		}
+	}
+
+	private int getReindexThreads() {
+		int threads = Math.max(1, settingsManager.OPENDB_REINDEX_THREADS.get());
+		int maxThreads = Math.max(1, (dbPoolSize - RESERVED_CONNECTIONS) / CONNECTIONS_PER_TASK);
+		if (threads > maxThreads) {
+			info(String.format("Reindex threads are limited to %d by db connection pool size %d", maxThreads, dbPoolSize));
+			return maxThreads;
+		}
+		return threads;
+	}
+
+	private Callable<Integer> reindexSuperblockTask(OpBlockChain blc, String tableName, String colName,
+			Map<String, OpIndexColumn> columns, Set<String> reindexed) {
+		return new Callable<Integer>() {
+
+			@Override
+			public Integer call() throws Exception {
+				int cnt = 0;
+				for (Map.Entry<String, OpIndexColumn> e : columns.entrySet()) {
+					cnt += reindexSuperblock(blc, tableName, e.getKey(), e.getValue());
+				}
+				synchronized (reindexed) {
+					reindexed.add(blc.getSuperBlockHash());
+					progress++;
+					saveReindexProgress(tableName, colName, reindexed);
+					info(String.format("Progress of 'update-indexes' %d / %d superblocks (%d objects in superblock %s)",
+							progress, totalCnt, cnt, blc.getSuperBlockHash()));
 				}
+				return cnt;
 			}
-		}
+		};
+	}
 
-		return updateList;
+	private int reindexSuperblock(OpBlockChain blc, String tableName, String objType, OpIndexColumn ind) {
+		String sql = "UPDATE " + tableName + " SET " + ind.getColumnDef().getColName() + " = ? WHERE "
+				+ dbSchemaManager.generatePKString(tableName, "p%1$d = ?", " AND ") + " AND ophash = ?";
+		int ksize = dbSchemaManager.getKeySizeByTable(tableName);
+		try (Stream<Map.Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(objType)) {
+			Iterator<Map.Entry<CompoundKey, OpObject>> it = objects.iterator();
+			// index values are evaluated on the same connection which is used to write batches
+			return jdbcTemplate.execute(new ConnectionCallback<Integer>() {
+
+				@Override
+				public Integer doInConnection(Connection conn) throws SQLException, DataAccessException {
+					int cnt = 0;
+					try (PreparedStatement ps = conn.prepareStatement(sql)) {
+						int batch = 0;
+						while (it.hasNext()) {
+							Map.Entry<CompoundKey, OpObject> e = it.next();
+							new ArgumentPreparedStatementSetter(prepareUpdateIndexArgs(e, ksize, ind, conn)).setValues(ps);
+							ps.addBatch();
+							cnt++;
+							if (++batch >= BATCH_SIZE) {
+								ps.executeBatch();
+								batch = 0;
+							}
+						}
+						if (batch > 0) {
+							ps.executeBatch();
+						}
+					}
+					return cnt;
+				}
+			});
+		}
+	}
+	
+	private Object[] prepareUpdateIndexArgs(Map.Entry<CompoundKey, OpObject> e, int ksize, OpIndexColumn index, Connection conn) {
+		CompoundKey pkey = e.getKey();
+		OpObject obj = e.getValue();
+		Object[] args = new Object[1 + ksize + 1];
+		if (obj != null && !obj.isDeleted()) {
+			args[0] = index.evalDBValue(obj, conn);
+		}
+		pkey.toArray(args, 1);
+		args[ksize + 1] = SecUtils.getHashBytes(obj.getParentHash());
+		return args;
 	}
 
 	
@@ -0,0 +1,90 @@
+package org.openplacereviews.opendb.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Simple bloom filter of string keys which could be serialized to bytes (i.e. to be stored in db).
+ * False positives are possible, false negatives are not.
+ */
+public class BloomFilter {
+
+	private final long[] bits;
+	private final int numHashes;
+	private final long numBits;
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+		this.numBits = (long) bits.length * Long.SIZE;
+	}
+
+	public static BloomFilter create(int expectedInsertions, double fpp) {
+		int n = Math.max(expectedInsertions, 1);
+		long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		m = Math.max(m, Long.SIZE);
+		int k = (int) Math.max(1, Math.round((double) m / n * Math.log(2)));
+		return new BloomFilter(new long[(int) ((m + Long.SIZE - 1) / Long.SIZE)], k);
+	}
+
+	public static BloomFilter fromBytes(byte[] data) {
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		int k = bb.getInt();
+		long[] bits = new long[bb.getInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = bb.getLong();
+		}
+		return new BloomFilter(bits, k);
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer bb = ByteBuffer.allocate(8 + bits.length * 8);
+		bb.putInt(numHashes);
+		bb.putInt(bits.length);
+		for (long l : bits) {
+			bb.putLong(l);
+		}
+		return bb.array();
+	}
+
+	public void put(String key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			long ind = index(h1 + i * h2);
+			bits[(int) (ind >>> 6)] |= 1L << ind;
+		}
+	}
+
+	public boolean mightContain(String key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			long ind = index(h1 + i * h2);
+			if ((bits[(int) (ind >>> 6)] & (1L << ind)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long index(int combined) {
+		return (combined & Integer.MAX_VALUE) % numBits;
+	}
+
+	private static long hash(String key) {
+		// FNV-1a with murmur3 finalizer
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -1,12 +1,15 @@
 package org.openplacereviews.opendb.util;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.util.*;
 
@@ -101,12 +104,17 @@ public class JsonFormatter {
 		return gson.fromJson(opJson, OpObject.class);
 	}
 	
+	// fields are parsed on access
+	public OpObject parseObjectLazy(String opJson) {
+		return OpObject.createFromRawJson(opJson);
+	}
+	
 	public OpBlock parseBlock(String opJson) {
 		return gson.fromJson(opJson, OpBlock.class);
 	}
 	
 	public String toJson(OpBlock bl) {
-		return gson.toJson(bl);
+		return canonicalJson(bl);
 	}
 	
 	public JsonElement toJsonElement(Object o) {
@@ -128,20 +136,64 @@ public class JsonFormatter {
 	}
 
 	public String fullObjectToJson(Object o) {
+		if (o instanceof OpObject && ((OpObject) o).isImmutable()) {
+			return memoizedFullOutput((OpObject) o);
+		}
 		return gsonFullOutput.toJson(o);
 	}
 	
+	// full output of immutable blocks, operations and objects is memoized until their eval fields change
+	private String memoizedFullOutput(OpObject o) {
+		String json = o.getFullOutputJson();
+		if (json == null) {
+			long evalVersion = o.getEvalVersion();
+			json = gsonFullOutput.toJson(o);
+			o.setFullOutputJson(json, evalVersion);
+		}
+		return json;
+	}
+	
+	// writer for responses which are written by parts (i.e. array of objects is written while objects are fetched)
+	public JsonWriter newFullOutputWriter(Writer w) throws IOException {
+		return gsonFullOutput.newJsonWriter(w);
+	}
+	
+	public void fullObjectToJson(Object o, JsonWriter w) throws JsonIOException {
+		if (o instanceof OpObject && ((OpObject) o).isImmutable()) {
+			try {
+				w.jsonValue(memoizedFullOutput((OpObject) o));
+			} catch (IOException e) {
+				throw new JsonIOException(e);
+			}
+			return;
+		}
+		gsonFullOutput.toJson(o, o.getClass(), w);
+	}
 	
 	public String opToJsonNoHash(OpOperation op) {
 		return gsonOperationHash.toJson(op);
 	}
 	
 	public String opToJson(OpOperation op) {
-		return gson.toJson(op);
+		return canonicalJson(op);
 	}
 	
 	public String objToJson(OpObject op) {
-		return gson.toJson(op);
+		String raw = op.getRawJson();
+		if (raw != null) {
+			return raw;
+		}
+		return canonicalJson(op);
+	}
+	
+	// canonical json doesn't depend on cache fields, so it is memoized for immutable objects
+	private String canonicalJson(OpObject o) {
+		String json = o.getCanonicalJson();
+		if (json == null) {
+			json = gson.toJson(o);
+			o.setCanonicalJson(json);
+		}
+		return json;
 	}
 
 	
@@ -65,9 +65,17 @@ public class OpExprEvaluator {
 	private ExpressionContext ectx;
 
 	public static class EvaluationContext {
-		private JsonElement ctx;
+		private JsonObject ctx;
 		private OpBlockChain blc;
 		private int exprNested;
+		// operation context converted to json lazily (only parts accessed by expressions)
+		private JsonFormatter formatter;
+		private OpOperation op;
+		private Collection<OpObject> created;
+		private List<OpObject> deleted;
+		private Map<String, OpObject> refs;
+		private JsonObject opElement;
+		private Map<String, JsonElement> ctxElements;
 
 		public EvaluationContext(OpBlockChain blockchain, JsonObject ctx, JsonElement createdElement, JsonElement deleted, JsonObject refs) {
 			ctx.add(F_REF, refs);
@@ -77,8 +85,101 @@ public class OpExprEvaluator {
 			this.ctx = ctx;
 		}
 
+		public EvaluationContext(OpBlockChain blockchain, JsonFormatter formatter, OpOperation op,
+				Collection<OpObject> created, List<OpObject> deleted, Map<String, OpObject> refs) {
+			this.blc = blockchain;
+			this.formatter = formatter;
+			this.op = op;
+			this.created = created;
+			this.deleted = deleted;
+			this.refs = refs;
+			this.ctxElements = new HashMap<String, JsonElement>();
+		}
+
+		JsonObject getRoot() {
+			if (ctx == null) {
+				JsonObject c = getOpElement();
+				c.add(F_REF, getRootField(F_REF));
+				c.add(F_OLD, getRootField(F_OLD));
+				c.add(F_NEW, getRootField(F_NEW));
+				ctx = c;
+			}
+			return ctx;
+		}
+
+		JsonElement getRootField(String field) {
+			if (ctx != null) {
+				return ctx.get(field);
+			}
+			if (!F_REF.equals(field) && !F_OLD.equals(field) && !F_NEW.equals(field)) {
+				return getOpElement().get(field);
+			}
+			JsonElement e = ctxElements.get(field);
+			if (e == null) {
+				if (F_REF.equals(field)) {
+					JsonObject refsMap = formatter.toJsonElement(refs).getAsJsonObject();
+					for (String key : refsMap.keySet()) {
+						((JsonObject) refsMap.get(key)).addProperty(OpOperation.F_TYPE, refs.get(key).getParentType());
+					}
+					e = refsMap;
+				} else if (F_OLD.equals(field)) {
+					JsonArray deletedArray = (JsonArray) formatter.toJsonElement(deleted);
+					for (int i = 0; i < deletedArray.size(); i++) {
+						((JsonObject) deletedArray.get(i)).addProperty(OpOperation.F_TYPE, deleted.get(i).getParentType());
+					}
+					e = deletedArray;
+				} else {
+					e = formatter.toJsonElement(created);
+				}
+				ctxElements.put(field, e);
+			}
+			return e;
+		}
+
+		private JsonObject getOpElement() {
+			if (opElement == null) {
+				opElement = formatter.toJsonElement(op).getAsJsonObject();
+			}
+			return opElement;
+		}
+
 	}
 
+	// expression compiled to the tree of closures with resolved constants
+	private abstract static class CompiledExpression {
+
+		abstract Object eval(EvaluationContext ctx);
+
+		boolean isConstant() {
+			return false;
+		}
+	}
+
+	private static class ConstantExpression extends CompiledExpression {
+		private final Object value;
+
+		ConstantExpression(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object eval(EvaluationContext ctx) {
+			return value;
+		}
+
+		@Override
+		boolean isConstant() {
+			return true;
+		}
+	}
+
+	private static final Set<String> CONSTANT_FOLDING_FUNCTIONS = new HashSet<String>(Arrays.asList(
+			FUNCTION_M_PLUS, FUNCTION_M_MINUS, FUNCTION_M_MULT, FUNCTION_M_DIV,
+			FUNCTION_STR_FIRST, FUNCTION_STR_SECOND, FUNCTION_STR_ALL, FUNCTION_STR_CONCAT,
+			FUNCTION_STD_EQ, FUNCTION_STD_NEQ, FUNCTION_STD_LEQ, FUNCTION_STD_LE, FUNCTION_STD_AND, FUNCTION_STD_OR));
+
+	private volatile CompiledExpression compiled;
+
 	public OpExprEvaluator(ExpressionContext ectx) {
 		this.ectx = ectx;
 	}
@@ -88,7 +189,15 @@ public class OpExprEvaluator {
 	}
 
 	public Object evaluateObject(EvaluationContext obj) {
-		return eval(ectx, obj);
+		if (isTraceExpressions()) {
+			return eval(ectx, obj);
+		}
+		CompiledExpression c = compiled;
+		if (c == null) {
+			c = compile(ectx);
+			compiled = c;
+		}
+		return c.eval(obj);
 	}
 
 	public boolean evaluateBoolean(EvaluationContext ctx) {
@@ -112,351 +221,448 @@ public class OpExprEvaluator {
 		return new OpExprEvaluator(ectx);
 	}
 
+	// function is resolved by name once, so compiled expressions call it directly on every evaluation
+	private interface ExprFunction {
+
+		Object call(List<Object> args, EvaluationContext ctx);
+	}
+
 	protected Object callFunction(String functionName, List<Object> args, EvaluationContext ctx) {
-		Number n1, n2;
-		Object obj1, obj2;
-		JsonObject object;
+		return resolveFunction(functionName).call(args, ctx);
+	}
+
+	private ExprFunction resolveFunction(String functionName) {
 		switch (functionName) {
 		case FUNCTION_M_MULT:
-			n1 = (Number) getObjArgument(functionName, args, 0);
-			n2 = (Number) getObjArgument(functionName, args, 1);
-			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
-				return n1.longValue() * n2.longValue();
-			}
-			return n1.doubleValue() * n2.doubleValue();
+			return this::fnMMult;
 		case FUNCTION_M_DIV:
-			n1 = (Number) getObjArgument(functionName, args, 0);
-			n2 = (Number) getObjArgument(functionName, args, 1);
-			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
-				if (n2.longValue() == 0) {
-					if (n1.longValue() == 0) {
-						return Double.NaN;
-					} else if (n1.longValue() > 0) {
-						return Double.POSITIVE_INFINITY;
-					} else {
-						return Double.NEGATIVE_INFINITY;
-					}
-				}
-				return n1.longValue() / n2.longValue();
-			}
-			return n1.doubleValue() / n2.doubleValue();
+			return this::fnMDiv;
 		case FUNCTION_M_PLUS:
-			n1 = (Number) getObjArgument(functionName, args, 0);
-			n2 = (Number) getObjArgument(functionName, args, 1);
-			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
-				return n1.longValue() + n2.longValue();
-			}
-			return n1.doubleValue() + n2.doubleValue();
+			return this::fnMPlus;
 		case FUNCTION_M_MINUS:
-			n1 = (Number) getObjArgument(functionName, args, 0);
-			n2 = (Number) getObjArgument(functionName, args, 1);
-			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
-				return n1.longValue() - n2.longValue();
-			}
-			return n1.doubleValue() - n2.doubleValue();
+			return this::fnMMinus;
 		case FUNCTION_STR_FIRST:
 		case FUNCTION_STR_SECOND:
 		case FUNCTION_STR_ALL:
-			String ffs = getStringArgument(functionName, args, 0);
-			if (ffs != null) {
-				int indexOf = ffs.indexOf(':');
-				if (indexOf != -1) {
-					return functionName.equals(FUNCTION_STR_ALL) ? ffs : functionName.equals(FUNCTION_STR_FIRST) ? ffs.substring(0, indexOf) : ffs
-							.substring(indexOf + 1);
-				}
-			}
-			return ffs;
-		case FUNCTION_STR_CONCAT: {
-			String res = getStringObject(getObjArgument(functionName, args, 0, false));
-			for(int i = 1 ; i <args.size(); i++) {
-				res += getStringObject(getObjArgument(functionName, args, i, false));
-			}
-			return res;
-		}
+			return (args, ctx) -> fnStrPart(functionName, args);
+		case FUNCTION_STR_CONCAT:
+			return this::fnStrConcat;
 		case FUNCTION_STR_COMBINE:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			String s1 = getStringArgument(functionName, args, 1);
-			String res = "";
-			if (!isJsonArrayObj(obj1)) {
-				return obj1;
-			} else {
-				JsonArray ar1 = (JsonArray) obj1;
-				for(int i = 0; i < ar1.size(); i++) {
-					if(i > 0) {
-						res += s1;
-					}
-					JsonElement e1 = ar1.get(i);
-					res += e1 != null && e1.isJsonPrimitive() ? 
-							((JsonPrimitive)e1).getAsString() : toStringPrimitive(e1); 
-				}
-			}
-			return res;
+			return this::fnStrCombine;
 		case FUNCTION_STD_EQ:
-			obj1 = getObjArgument(functionName, args, 0);
-			obj2 = getObjArgument(functionName, args, 1);
-			return objEquals(obj1, obj2);
+			return this::fnStdEq;
 		case FUNCTION_STD_NEQ:
-			obj1 = getObjArgument(functionName, args, 0);
-			obj2 = getObjArgument(functionName, args, 1);
-			int r = objEquals(obj1, obj2);
-			return r == 0 ? 1 : 0;
+			return this::fnStdNeq;
 		case FUNCTION_STD_LEQ:
-			n1 = (Number) getObjArgument(functionName, args, 0);
-			n2 = (Number) getObjArgument(functionName, args, 1);
-			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
-				return n1.longValue() <= n2.longValue() ? 1 : 0;
-			}
-			return n1.doubleValue() <= n2.doubleValue() ? 1 : 0;
+			return this::fnStdLeq;
 		case FUNCTION_STD_LE:
-			n1 = (Number) getObjArgument(functionName, args, 0);
-			n2 = (Number) getObjArgument(functionName, args, 1);
-			if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
-				return n1.longValue() < n2.longValue() ? 1 : 0;
-			}
-			return n1.doubleValue() < n2.doubleValue() ? 1 : 0;
+			return this::fnStdLe;
 		case FUNCTION_STD_SIZE:
-			Object ob = getObjArgument(functionName, args, 0, false);
-			if (ob instanceof JsonArray) {
-				return ((JsonArray) ob).size();
-			} else if (ob instanceof JsonObject) {
-				return ((JsonObject) ob).size();
-			}
-			return ob == null ? 0 : 1;
+			return this::fnStdSize;
 		case FUNCTION_STD_AND:
-			for (Object o : args) {
-				if (o == null) {
-					return 0;
-				} else if (o instanceof Number) {
-					if (((Number) o).doubleValue() == 0) {
-						return 0;
-					}
-				} else if (o instanceof String) {
-					if (((String) o).length() == 0) {
-						return 0;
-					}
-				}
-			}
-			return 1;
+			return this::fnStdAnd;
 		case FUNCTION_STD_OR:
-			for (Object o : args) {
-				if (o == null) {
-					continue;
-				} else if (o instanceof Number) {
-					if (((Number) o).doubleValue() != 0) {
-						return 1;
-					}
-				} else if (o instanceof String) {
-					if (((String) o).length() > 0) {
-						return 1;
-					}
+			return this::fnStdOr;
+		case FUNCTION_AUTH_HAS_SIG_ROLES:
+			return this::fnAuthHasSigRoles;
+		case FUNCTION_OP_FIELDS_CHANGED:
+			return this::fnOpFieldsChanged;
+		case FUNCTION_OP_OPERATION_TYPE:
+			return this::fnOpOperationType;
+		case FUNCTION_OP_GET_OBJECT_BY_FIELD:
+			return this::fnOpGetObjectByField;
+		case FUNCTION_M_FIELDS_INT_SUM:
+			return this::fnMFieldsIntSum;
+		case FUNCTION_SET_CONTAINS_KEY:
+			return this::fnSetContainsKey;
+		case FUNCTION_SET_MINUS:
+			return this::fnSetMinus;
+		case FUNCTION_SET_ALL:
+			return this::fnSetAll;
+		case FUNCTION_SET_IN:
+			return this::fnSetIn;
+		default:
+			break;
+		}
+		throw new UnsupportedOperationException(String.format("Unsupported function '%s'", functionName));
+	}
+
+	private Object fnMMult(List<Object> args, EvaluationContext ctx) {
+		Number n1 = (Number) getObjArgument(FUNCTION_M_MULT, args, 0);
+		Number n2 = (Number) getObjArgument(FUNCTION_M_MULT, args, 1);
+		if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
+			return n1.longValue() * n2.longValue();
+		}
+		return n1.doubleValue() * n2.doubleValue();
+	}
+
+	private Object fnMDiv(List<Object> args, EvaluationContext ctx) {
+		Number n1 = (Number) getObjArgument(FUNCTION_M_DIV, args, 0);
+		Number n2 = (Number) getObjArgument(FUNCTION_M_DIV, args, 1);
+		if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
+			if (n2.longValue() == 0) {
+				if (n1.longValue() == 0) {
+					return Double.NaN;
+				} else if (n1.longValue() > 0) {
+					return Double.POSITIVE_INFINITY;
+				} else {
+					return Double.NEGATIVE_INFINITY;
 				}
 			}
-			return 0;
-		case FUNCTION_AUTH_HAS_SIG_ROLES:
-			Object opSigned = getObjArgument(functionName, args, 0, false);
-			Object checkRoles = getObjArgument(functionName, args, 1, false);
-			List<String> signedBy, roles;
-			if (opSigned instanceof JsonObject) {
-				JsonElement elm = ((JsonObject) opSigned).get(OpOperation.F_SIGNED_BY);
-				signedBy = getStringsList(elm);
-			} else {
-				return 0;
+			return n1.longValue() / n2.longValue();
+		}
+		return n1.doubleValue() / n2.doubleValue();
+	}
+
+	private Object fnMPlus(List<Object> args, EvaluationContext ctx) {
+		Number n1 = (Number) getObjArgument(FUNCTION_M_PLUS, args, 0);
+		Number n2 = (Number) getObjArgument(FUNCTION_M_PLUS, args, 1);
+		if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
+			return n1.longValue() + n2.longValue();
+		}
+		return n1.doubleValue() + n2.doubleValue();
+	}
+
+	private Object fnMMinus(List<Object> args, EvaluationContext ctx) {
+		Number n1 = (Number) getObjArgument(FUNCTION_M_MINUS, args, 0);
+		Number n2 = (Number) getObjArgument(FUNCTION_M_MINUS, args, 1);
+		if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
+			return n1.longValue() - n2.longValue();
+		}
+		return n1.doubleValue() - n2.doubleValue();
+	}
+
+	private Object fnStrPart(String functionName, List<Object> args) {
+		String ffs = getStringArgument(functionName, args, 0);
+		if (ffs != null) {
+			int indexOf = ffs.indexOf(':');
+			if (indexOf != -1) {
+				return functionName.equals(FUNCTION_STR_ALL) ? ffs : functionName.equals(FUNCTION_STR_FIRST) ? ffs.substring(0, indexOf) : ffs
+						.substring(indexOf + 1);
 			}
-			if(checkRoles instanceof JsonElement) {
-				roles = getStringsList((JsonElement) checkRoles);
-			} else if(checkRoles instanceof String) {
-				roles = Collections.singletonList(checkRoles.toString());
-			} else {
-				return 0;
+		}
+		return ffs;
+	}
+
+	private Object fnStrConcat(List<Object> args, EvaluationContext ctx) {
+		String res = getStringObject(getObjArgument(FUNCTION_STR_CONCAT, args, 0, false));
+		for(int i = 1 ; i <args.size(); i++) {
+			res += getStringObject(getObjArgument(FUNCTION_STR_CONCAT, args, i, false));
+		}
+		return res;
+	}
+
+	private Object fnStrCombine(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_STR_COMBINE, args, 0, false);
+		String s1 = getStringArgument(FUNCTION_STR_COMBINE, args, 1);
+		String res = "";
+		if (!isJsonArrayObj(obj1)) {
+			return obj1;
+		} else {
+			JsonArray ar1 = (JsonArray) obj1;
+			for(int i = 0; i < ar1.size(); i++) {
+				if(i > 0) {
+					res += s1;
+				}
+				JsonElement e1 = ar1.get(i);
+				res += e1 != null && e1.isJsonPrimitive() ? 
+						((JsonPrimitive)e1).getAsString() : toStringPrimitive(e1); 
 			}
-			for(String rl : roles) {
-				boolean oneSigHasRole = false;
-				for(String sign : signedBy) {
-					if(checkSignaturesHasRole(sign, rl, ctx)) {
-						oneSigHasRole = true;
-						break;
-					}
+		}
+		return res;
+	}
+
+	private Object fnStdEq(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_STD_EQ, args, 0);
+		Object obj2 = getObjArgument(FUNCTION_STD_EQ, args, 1);
+		return objEquals(obj1, obj2);
+	}
+
+	private Object fnStdNeq(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_STD_NEQ, args, 0);
+		Object obj2 = getObjArgument(FUNCTION_STD_NEQ, args, 1);
+		int r = objEquals(obj1, obj2);
+		return r == 0 ? 1 : 0;
+	}
+
+	private Object fnStdLeq(List<Object> args, EvaluationContext ctx) {
+		Number n1 = (Number) getObjArgument(FUNCTION_STD_LEQ, args, 0);
+		Number n2 = (Number) getObjArgument(FUNCTION_STD_LEQ, args, 1);
+		if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
+			return n1.longValue() <= n2.longValue() ? 1 : 0;
+		}
+		return n1.doubleValue() <= n2.doubleValue() ? 1 : 0;
+	}
+
+	private Object fnStdLe(List<Object> args, EvaluationContext ctx) {
+		Number n1 = (Number) getObjArgument(FUNCTION_STD_LE, args, 0);
+		Number n2 = (Number) getObjArgument(FUNCTION_STD_LE, args, 1);
+		if (n1.doubleValue() == Math.ceil(n1.doubleValue()) && n2.doubleValue() == Math.ceil(n2.doubleValue())) {
+			return n1.longValue() < n2.longValue() ? 1 : 0;
+		}
+		return n1.doubleValue() < n2.doubleValue() ? 1 : 0;
+	}
+
+	private Object fnStdSize(List<Object> args, EvaluationContext ctx) {
+		Object ob = getObjArgument(FUNCTION_STD_SIZE, args, 0, false);
+		if (ob instanceof JsonArray) {
+			return ((JsonArray) ob).size();
+		} else if (ob instanceof JsonObject) {
+			return ((JsonObject) ob).size();
+		}
+		return ob == null ? 0 : 1;
+	}
+
+	private Object fnStdAnd(List<Object> args, EvaluationContext ctx) {
+		for (Object o : args) {
+			if (o == null) {
+				return 0;
+			} else if (o instanceof Number) {
+				if (((Number) o).doubleValue() == 0) {
+					return 0;
 				}
-				if(!oneSigHasRole) {
+			} else if (o instanceof String) {
+				if (((String) o).length() == 0) {
 					return 0;
 				}
 			}
+		}
+		return 1;
+	}
 
-			return 1;
-		case FUNCTION_OP_FIELDS_CHANGED:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			if (!(obj1 instanceof JsonObject)) {
-				throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " support only JsonObject");
-			}
-			object = ((JsonObject) obj1);
-			if (object.get(F_EDIT) == null) {
-				throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " must to contains edit list");
-			}
-
-			JsonArray objList = (JsonArray) object.get(F_EDIT);
-			JsonArray arrayChangedFields = new JsonArray();
-			for (JsonElement o : objList) {
-				JsonObject changedMap =  o.getAsJsonObject().get(F_CHANGE).getAsJsonObject();
-
-				for (Map.Entry<String, JsonElement> e : changedMap.entrySet()) {
-					String fieldExpr = e.getKey();
-					Object op = e.getValue();
-					if (op instanceof JsonObject) {
-						for(Map.Entry<String, JsonElement> ee : ((JsonObject) op).entrySet()) {
-							if(ee.getKey().equals(OpBlockChain.OP_CHANGE_APPEND)) {
-								arrayChangedFields.add(fieldExpr);
-							} else if(ee.getKey().equals(OpBlockChain.OP_CHANGE_APPENDMANY)) {
-								arrayChangedFields.add(fieldExpr);
-							} else if(ee.getKey().equals(OpBlockChain.OP_CHANGE_SET)) {
-								arrayChangedFields.add(fieldExpr);
-							} else {
-								throw new UnsupportedOperationException();
-							}
-						}
-					} else {
-						if(OpBlockChain.OP_CHANGE_INCREMENT.equals(op)) {
+	private Object fnStdOr(List<Object> args, EvaluationContext ctx) {
+		for (Object o : args) {
+			if (o == null) {
+				continue;
+			} else if (o instanceof Number) {
+				if (((Number) o).doubleValue() != 0) {
+					return 1;
+				}
+			} else if (o instanceof String) {
+				if (((String) o).length() > 0) {
+					return 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private Object fnAuthHasSigRoles(List<Object> args, EvaluationContext ctx) {
+		Object opSigned = getObjArgument(FUNCTION_AUTH_HAS_SIG_ROLES, args, 0, false);
+		Object checkRoles = getObjArgument(FUNCTION_AUTH_HAS_SIG_ROLES, args, 1, false);
+		List<String> signedBy, roles;
+		if (opSigned instanceof JsonObject) {
+			JsonElement elm = ((JsonObject) opSigned).get(OpOperation.F_SIGNED_BY);
+			signedBy = getStringsList(elm);
+		} else {
+			return 0;
+		}
+		if(checkRoles instanceof JsonElement) {
+			roles = getStringsList((JsonElement) checkRoles);
+		} else if(checkRoles instanceof String) {
+			roles = Collections.singletonList(checkRoles.toString());
+		} else {
+			return 0;
+		}
+		for(String rl : roles) {
+			boolean oneSigHasRole = false;
+			for(String sign : signedBy) {
+				if(checkSignaturesHasRole(sign, rl, ctx)) {
+					oneSigHasRole = true;
+					break;
+				}
+			}
+			if(!oneSigHasRole) {
+				return 0;
+			}
+		}
+
+		return 1;
+	}
+
+	private Object fnOpFieldsChanged(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_OP_FIELDS_CHANGED, args, 0, false);
+		if (!(obj1 instanceof JsonObject)) {
+			throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " support only JsonObject");
+		}
+		JsonObject object = ((JsonObject) obj1);
+		if (object.get(F_EDIT) == null) {
+			throw new UnsupportedOperationException(FUNCTION_OP_FIELDS_CHANGED + " must to contains edit list");
+		}
+
+		JsonArray objList = (JsonArray) object.get(F_EDIT);
+		JsonArray arrayChangedFields = new JsonArray();
+		for (JsonElement o : objList) {
+			JsonObject changedMap =  o.getAsJsonObject().get(F_CHANGE).getAsJsonObject();
+
+			for (Map.Entry<String, JsonElement> e : changedMap.entrySet()) {
+				String fieldExpr = e.getKey();
+				Object op = e.getValue();
+				if (op instanceof JsonObject) {
+					for(Map.Entry<String, JsonElement> ee : ((JsonObject) op).entrySet()) {
+						if(ee.getKey().equals(OpBlockChain.OP_CHANGE_APPEND)) {
 							arrayChangedFields.add(fieldExpr);
-						} else if(OpBlockChain.OP_CHANGE_DELETE.equals(op)) {
+						} else if(ee.getKey().equals(OpBlockChain.OP_CHANGE_APPENDMANY)) {
+							arrayChangedFields.add(fieldExpr);
+						} else if(ee.getKey().equals(OpBlockChain.OP_CHANGE_SET)) {
 							arrayChangedFields.add(fieldExpr);
 						} else {
 							throw new UnsupportedOperationException();
 						}
 					}
+				} else {
+					if(OpBlockChain.OP_CHANGE_INCREMENT.equals(op)) {
+						arrayChangedFields.add(fieldExpr);
+					} else if(OpBlockChain.OP_CHANGE_DELETE.equals(op)) {
+						arrayChangedFields.add(fieldExpr);
+					} else {
+						throw new UnsupportedOperationException();
+					}
 				}
 			}
-			return arrayChangedFields;
-		case FUNCTION_OP_OPERATION_TYPE:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			if (!(obj1 instanceof JsonObject)) {
-				throw new UnsupportedOperationException(FUNCTION_OP_OPERATION_TYPE + " support only JsonObject");
-			}
-			object = ((JsonObject) obj1);
-			if (object.get(F_EDIT) != null) {
-				return F_EDIT;
-			}
-			if (object.get(F_CREATE) != null) {
-				return F_CREATE;
-			}
-			if (object.get(F_DELETE) != null) {
-				return F_DELETE;
-			}
-			throw new UnsupportedOperationException(FUNCTION_OP_OPERATION_TYPE + " op doesn't have any ops type");
+		}
+		return arrayChangedFields;
+	}
 
-		case FUNCTION_OP_GET_OBJECT_BY_FIELD:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			Object obj = obj1;
-			for (int i = 1; i < args.size(); i++) {
-				if (!(obj instanceof JsonObject)) {
-					throw new UnsupportedOperationException(FUNCTION_OP_GET_OBJECT_BY_FIELD + " support only JsonObject");
-				}
-				obj = getField(obj, getStringObject(args.get(i)));
-			}
-			return obj;
-		case FUNCTION_M_FIELDS_INT_SUM:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			obj2 = getObjArgument(functionName, args, 1, false);
-			if (!(obj1 instanceof JsonObject)) {
-				throw new UnsupportedOperationException(FUNCTION_M_FIELDS_INT_SUM + " support only JsonObject");
+	private Object fnOpOperationType(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_OP_OPERATION_TYPE, args, 0, false);
+		if (!(obj1 instanceof JsonObject)) {
+			throw new UnsupportedOperationException(FUNCTION_OP_OPERATION_TYPE + " support only JsonObject");
+		}
+		JsonObject object = ((JsonObject) obj1);
+		if (object.get(F_EDIT) != null) {
+			return F_EDIT;
+		}
+		if (object.get(F_CREATE) != null) {
+			return F_CREATE;
+		}
+		if (object.get(F_DELETE) != null) {
+			return F_DELETE;
+		}
+		throw new UnsupportedOperationException(FUNCTION_OP_OPERATION_TYPE + " op doesn't have any ops type");
+	}
+
+	private Object fnOpGetObjectByField(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_OP_GET_OBJECT_BY_FIELD, args, 0, false);
+		Object obj = obj1;
+		for (int i = 1; i < args.size(); i++) {
+			if (!(obj instanceof JsonObject)) {
+				throw new UnsupportedOperationException(FUNCTION_OP_GET_OBJECT_BY_FIELD + " support only JsonObject");
 			}
-			int sum = 0;
-			object = ((JsonObject) obj1).get(getStringObject(obj2)).getAsJsonObject();
-			for (Map.Entry<String, JsonElement> e : object.entrySet()) {
-				sum += e.getValue().getAsInt();
+			obj = getField(obj, getStringObject(args.get(i)));
+		}
+		return obj;
+	}
+
+	private Object fnMFieldsIntSum(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_M_FIELDS_INT_SUM, args, 0, false);
+		Object obj2 = getObjArgument(FUNCTION_M_FIELDS_INT_SUM, args, 1, false);
+		if (!(obj1 instanceof JsonObject)) {
+			throw new UnsupportedOperationException(FUNCTION_M_FIELDS_INT_SUM + " support only JsonObject");
+		}
+		int sum = 0;
+		JsonObject object = ((JsonObject) obj1).get(getStringObject(obj2)).getAsJsonObject();
+		for (Map.Entry<String, JsonElement> e : object.entrySet()) {
+			sum += e.getValue().getAsInt();
+		}
+		return sum;
+	}
+
+	private Object fnSetContainsKey(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_SET_CONTAINS_KEY, args, 0, false);
+		Object obj2 = getObjArgument(FUNCTION_SET_CONTAINS_KEY, args, 1, false);
+		Set<String> refKey = ((JsonObject) obj1).keySet();
+		if (!refKey.contains(String.valueOf(obj2))) {
+			return 0;
+		}
+		return 1;
+	}
+
+	private Object fnSetMinus(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_SET_MINUS, args, 0, false);
+		Object obj2 = getObjArgument(FUNCTION_SET_MINUS, args, 1, false);
+		Set<String> obj1Set = new TreeSet<String>();
+		if (isJsonMapObj(obj1)) {
+			obj1Set.addAll(((JsonObject) obj1).keySet());
+		} else if (isJsonArrayObj(obj1)) {
+			JsonArray j1 = ((JsonArray) obj1);
+			for (int i = 0; i < j1.size(); i++) {
+				obj1Set.add(toStringPrimitive(j1.get(i)));
+			}
+		} else {
+			obj1Set.add(toStringPrimitive(obj1));
+		}
+
+		if (isJsonMapObj(obj2)) {
+			obj1Set.removeAll(((JsonObject) obj1).keySet());
+		} else if (isJsonArrayObj(obj2)) {
+			JsonArray j2 = ((JsonArray) obj2);
+			for (int i = 0; i < j2.size(); i++) {
+				obj1Set.remove(toStringPrimitive(j2.get(i)));
 			}
-			return sum;
-		case FUNCTION_SET_CONTAINS_KEY:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			obj2 = getObjArgument(functionName, args, 1, false);
-			Set<String> refKey = ((JsonObject) obj1).keySet();
-			if (!refKey.contains(String.valueOf(obj2))) {
-				return 0;
+		} else {
+			obj1Set.remove(toStringPrimitive(obj2));
+		}
+
+		JsonArray ar = new JsonArray(obj1Set.size());
+		for (String s : obj1Set) {
+			if (!s.equals("")) {
+				ar.add(s);
 			}
-			return 1;
-		case FUNCTION_SET_MINUS:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			obj2 = getObjArgument(functionName, args, 1, false);
-			Set<String> obj1Set = new TreeSet<String>();
-			if (isJsonMapObj(obj1)) {
-				obj1Set.addAll(((JsonObject) obj1).keySet());
-			} else if (isJsonArrayObj(obj1)) {
-				JsonArray j1 = ((JsonArray) obj1);
-				for (int i = 0; i < j1.size(); i++) {
-					obj1Set.add(toStringPrimitive(j1.get(i)));
-				}
+		}
+		return ar;
+	}
+
+	private Object fnSetAll(List<Object> args, EvaluationContext ctx) {
+		JsonArray arrayRes = new JsonArray();
+		for (Object o : args) {
+			if (o instanceof JsonElement) {
+				arrayRes.add((JsonElement) o);
+			} else if (o instanceof Number) {
+				arrayRes.add((Number) o);
 			} else {
-				obj1Set.add(toStringPrimitive(obj1));
+				if (o != null) {
+					arrayRes.add((String) o);
+				}
 			}
+		}
+		return arrayRes;
+	}
 
-			if (isJsonMapObj(obj2)) {
-				obj1Set.removeAll(((JsonObject) obj1).keySet());
-			} else if (isJsonArrayObj(obj2)) {
+	private Object fnSetIn(List<Object> args, EvaluationContext ctx) {
+		Object obj1 = getObjArgument(FUNCTION_SET_IN, args, 0, false);
+		Object obj2 = getObjArgument(FUNCTION_SET_IN, args, 1, false);
+		if (!isJsonArrayObj(obj1) && !isJsonMapObj(obj1)) {
+			if (obj2 instanceof JsonArray) {
 				JsonArray j2 = ((JsonArray) obj2);
 				for (int i = 0; i < j2.size(); i++) {
-					obj1Set.remove(toStringPrimitive(j2.get(i)));
-				}
-			} else {
-				obj1Set.remove(toStringPrimitive(obj2));
-			}
-
-			JsonArray ar = new JsonArray(obj1Set.size());
-			for (String s : obj1Set) {
-				if (!s.equals("")) {
-					ar.add(s);
-				}
-			}
-			return ar;
-		case FUNCTION_SET_ALL:
-			JsonArray arrayRes = new JsonArray();
-			for (Object o : args) {
-				if (o instanceof JsonElement) {
-					arrayRes.add((JsonElement) o);
-				} else if (o instanceof Number) {
-					arrayRes.add((Number) o);
-				} else {
-					if (o != null) {
-						arrayRes.add((String) o);
+					if (objEquals(obj1, j2.get(i)) != 0) {
+						return 1;
 					}
 				}
-			}
-			return arrayRes;
-		case FUNCTION_SET_IN:
-			obj1 = getObjArgument(functionName, args, 0, false);
-			obj2 = getObjArgument(functionName, args, 1, false);
-			if (!isJsonArrayObj(obj1) && !isJsonMapObj(obj1)) {
-				if (obj2 instanceof JsonArray) {
-					JsonArray j2 = ((JsonArray) obj2);
-					for (int i = 0; i < j2.size(); i++) {
-						if (objEquals(obj1, j2.get(i)) != 0) {
-							return 1;
-						}
-					}
-				} else if (obj2 instanceof JsonObject) {
-					JsonObject j2 = ((JsonObject) obj2);
-					for (String key : j2.keySet()) {
-						if (objEquals(obj1, key) != 0) {
-							return 1;
-						}
+			} else if (obj2 instanceof JsonObject) {
+				JsonObject j2 = ((JsonObject) obj2);
+				for (String key : j2.keySet()) {
+					if (objEquals(obj1, key) != 0) {
+						return 1;
 					}
 				}
-				if (objEquals(obj1, obj2) != 0) {
-					return 1;
-				}
-				return 0;
-			} else {
-				if (obj2 instanceof JsonArray) {
-					JsonArray j2 = ((JsonArray) obj2);
-					for (int i = 0; i < j2.size(); i++) {
-						if (objEquals(obj1, j2.get(i)) != 0) {
-							return 1;
-						}
+			}
+			if (objEquals(obj1, obj2) != 0) {
+				return 1;
+			}
+			return 0;
+		} else {
+			if (obj2 instanceof JsonArray) {
+				JsonArray j2 = ((JsonArray) obj2);
+				for (int i = 0; i < j2.size(); i++) {
+					if (objEquals(obj1, j2.get(i)) != 0) {
+						return 1;
 					}
 				}
-				return objEquals(obj1, obj2);
 			}
-		default:
-			break;
+			return objEquals(obj1, obj2);
 		}
-		throw new UnsupportedOperationException(String.format("Unsupported function '%s'", functionName));
 	}
 
 
@@ -600,10 +806,10 @@ public class OpExprEvaluator {
 			if (t.getSymbol().getType() == OpenDBExprParser.INT) {
 				return Long.parseLong(t.getText());
 			} else if (t.getSymbol().getType() == OpenDBExprParser.THIS) {
-				return ctx.ctx;
+				return ctx.getRoot();
 			} else if (t.getSymbol().getType() == OpenDBExprParser.DOT) {
 				String field = expr.getChild(1).getText();
-				return getField(ctx.ctx, field);
+				return getField(ctx.getRoot(), field);
 
 			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL1) {
 				return t.getText().substring(1, t.getText().length() - 1).replace("\\\'", "\'");
@@ -651,6 +857,92 @@ public class OpExprEvaluator {
 		throw new UnsupportedOperationException("Unsupported parser operation: %s" + child.getText());
 	}
 
+	private CompiledExpression compile(ExpressionContext expr) {
+		ParseTree child = expr.getChild(0);
+		if (child instanceof TerminalNode) {
+			TerminalNode t = ((TerminalNode) child);
+			if (t.getSymbol().getType() == OpenDBExprParser.INT) {
+				return new ConstantExpression(Long.parseLong(t.getText()));
+			} else if (t.getSymbol().getType() == OpenDBExprParser.THIS) {
+				return new CompiledExpression() {
+
+					@Override
+					Object eval(EvaluationContext ctx) {
+						return ctx.getRoot();
+					}
+				};
+			} else if (t.getSymbol().getType() == OpenDBExprParser.DOT) {
+				String field = expr.getChild(1).getText();
+				return new CompiledExpression() {
+
+					@Override
+					Object eval(EvaluationContext ctx) {
+						return unwrap(ctx.getRootField(field));
+					}
+				};
+			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL1) {
+				return new ConstantExpression(t.getText().substring(1, t.getText().length() - 1).replace("\\\'", "\'"));
+			} else if (t.getSymbol().getType() == OpenDBExprParser.STRING_LITERAL2) {
+				return new ConstantExpression(t.getText().substring(1, t.getText().length() - 1).replace("\\\"", "\""));
+			}
+			throw new UnsupportedOperationException("Terminal node is not supported");
+		}
+		if (child instanceof ExpressionContext
+				&& ((TerminalNode) expr.getChild(1)).getSymbol().getType() == OpenDBExprLexer.DOT) {
+			CompiledExpression fc = compile((ExpressionContext) child);
+			String field = expr.getChild(2).getText();
+			return new CompiledExpression() {
+
+				@Override
+				Object eval(EvaluationContext ctx) {
+					return getField(fc.eval(ctx), field);
+				}
+			};
+		}
+		if (child instanceof MethodCallContext) {
+			MethodCallContext mcc = ((MethodCallContext) child);
+			String functionName = mcc.getChild(0).getText();
+			List<CompiledExpression> argsList = new ArrayList<CompiledExpression>();
+			boolean constant = true;
+			for (int i = 0; i < mcc.getChildCount(); i++) {
+				ParseTree pt = mcc.getChild(i);
+				if (pt instanceof ExpressionContext) {
+					CompiledExpression arg = compile((ExpressionContext) pt);
+					constant &= arg.isConstant();
+					argsList.add(arg);
+				}
+			}
+			CompiledExpression[] args = argsList.toArray(new CompiledExpression[argsList.size()]);
+			if (constant && CONSTANT_FOLDING_FUNCTIONS.contains(functionName)) {
+				try {
+					Object res = callFunction(functionName, evalArgs(args, null), null);
+					if (res instanceof String || res instanceof Number) {
+						return new ConstantExpression(res);
+					}
+				} catch (RuntimeException e) {
+					// error will be thrown during evaluation
+				}
+			}
+			ExprFunction function = resolveFunction(functionName);
+			return new CompiledExpression() {
+
+				@Override
+				Object eval(EvaluationContext ctx) {
+					return function.call(evalArgs(args, ctx), ctx);
+				}
+			};
+		}
+		throw new UnsupportedOperationException("Unsupported parser operation: %s" + child.getText());
+	}
+
+	private static List<Object> evalArgs(CompiledExpression[] args, EvaluationContext ctx) {
+		List<Object> res = new ArrayList<Object>(args.length);
+		for (CompiledExpression a : args) {
+			res.add(a.eval(ctx));
+		}
+		return res;
+	}
+
 	protected boolean isTraceExpressions() {
 		return TRACE_EXPRESSIONS;
 	}
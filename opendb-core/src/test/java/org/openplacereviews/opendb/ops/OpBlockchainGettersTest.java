@@ -9,10 +9,13 @@ import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.generateOperations;
@@ -201,6 +204,78 @@ public class OpBlockchainGettersTest {
 		assertEquals(2, r.result.size());
 	}
 
+	@Test
+	public void testGetObjectsByNames() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+		OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+		child.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+
+		List<CompoundKey> keys = new ArrayList<>(r.keys);
+		keys.add(new CompoundKey("unknown", null));
+		Map<CompoundKey, OpObject> objs = child.getObjectsByNames(OpBlockchainRules.OP_SIGNUP, keys);
+		assertEquals(r.keys.size(), objs.size());
+		for (CompoundKey k : r.keys) {
+			assertEquals(child.getObjectByName(OpBlockchainRules.OP_SIGNUP, k.first, k.second), objs.get(k));
+		}
+	}
+
+	@Test
+	public void testFetchAllObjectsThroughSuperblocks() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+
+		OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+		child.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+		assertEquals(2, r.result.size());
+		assertTrue(CompoundKey.COMPARATOR.compare(r.keys.get(0), r.keys.get(1)) < 0);
+
+		r = new OpBlockChain.ObjectsSearchRequest();
+		r.limit = 1;
+		child.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r);
+		assertEquals(1, r.result.size());
+	}
+
+	@Test
+	public void testFetchAllObjectsByPages() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+		OpBlockChain.ObjectsSearchRequest all = new OpBlockChain.ObjectsSearchRequest();
+		child.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, all);
+
+		List<OpObject> paged = new ArrayList<>();
+		CompoundKey cursor = null;
+		do {
+			OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+			r.limit = 1;
+			r.afterKey = cursor;
+			child.fetchAllObjects(OpBlockchainRules.OP_SIGNUP, r, paged::add);
+			assertTrue(r.result.isEmpty());
+			cursor = r.isLimitReached() ? r.lastKey : null;
+		} while (cursor != null);
+		assertEquals(all.result, paged);
+	}
+
+	@Test
+	public void testSortedObjectsFollowEdits() throws Exception {
+		OpPrivateObjectInstancesById objs = new OpPrivateObjectInstancesById(OpBlockchainRules.OP_SIGNUP, null);
+		objs.add(Arrays.asList("b"), new OpObject());
+		objs.add(Arrays.asList("d"), new OpObject());
+		assertEquals(Arrays.asList("b", "d"), sortedIds(objs, null));
+
+		objs.add(Arrays.asList("a"), new OpObject());
+		objs.add(Arrays.asList("c"), null);
+		objs.internalRemove(Arrays.asList("d"));
+		assertEquals(Arrays.asList("a", "b", "c"), sortedIds(objs, null));
+		assertEquals(Arrays.asList("c"), sortedIds(objs, new CompoundKey(0, Arrays.asList("b"))));
+	}
+
+	private List<String> sortedIds(OpPrivateObjectInstancesById objs, CompoundKey afterKey) throws Exception {
+		OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+		r.afterKey = afterKey;
+		return objs.fetchSortedObjects(r, 0, null).map(e -> e.getKey().first).collect(Collectors.toList());
+	}
+
 	private Object[] opblockchainBasicParameterWithBlock() throws FailedVerificationException {
 		beforeEachTestMethod();
 
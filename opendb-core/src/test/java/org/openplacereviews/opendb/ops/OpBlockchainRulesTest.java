@@ -61,6 +61,32 @@ public class OpBlockchainRulesTest {
 		blc.addOperation(opOperation);
 	}
 
+	@Test
+	public void testAddPreverifiedOperation() throws FailedVerificationException {
+		OpObject opObject = new OpObject();
+		opObject.setId("openplacereviews1");
+
+		Map<String, Object> refs = new TreeMap<>();
+		refs.put("s", Arrays.asList(OpBlockchainRules.OP_SIGNUP, "openplacereviews"));
+
+		OpOperation opOperation = new OpOperation();
+		opOperation.putObjectValue(OpOperation.F_REF, refs);
+		opOperation.setType(OpBlockchainRules.OP_GRANT);
+		opOperation.addCreated(opObject);
+
+		generateHashAndSignForOperation(opOperation, blc, true, serverKeyPair);
+		opOperation.makeImmutable();
+
+		blc.getRules().preverifyOperation(blc, opOperation);
+		// calculated values are not part of operation output
+		assertNull(opOperation.getEvalFields());
+		assertTrue(blc.getRules().validateSignatures(blc, opOperation));
+		// preverified signature is used once and then it is verified again
+		assertTrue(blc.getRules().validateSignatures(blc, opOperation));
+		blc.addOperation(opOperation);
+		blc.getRules().clearPreverifiedOperation(opOperation);
+	}
+
 	/**
 	 * Expected ErrorType.OP_HASH_IS_NOT_CORRECT
 	 */
@@ -214,6 +240,47 @@ public class OpBlockchainRulesTest {
 		assertNotNull(blc.createBlock(serverName, serverKeyPair));
 	}
 
+	@Test
+	public void testCalculateBlockSizeAndMerkleHashes() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+		OpBlockchainRules rules = blc.getRules();
+		assertEquals(formatter.toJson(opBlock).length(), rules.calculateBlockSize(opBlock));
+		assertEquals(formatter.toJson(opBlock).length(), OpBlock.createHeader(opBlock, rules).getIntValue(OpBlock.F_BLOCK_SIZE, 0));
+
+		// mutable copy is calculated without cached values
+		OpBlock copy = OpBlock.copy(opBlock);
+		assertEquals(opBlock.getStringValue(OpBlock.F_MERKLE_TREE_HASH), rules.calculateMerkleTreeHash(copy));
+		assertEquals(opBlock.getStringValue(OpBlock.F_SIG_MERKLE_TREE_HASH), rules.calculateSigMerkleTreeHash(copy));
+		assertEquals(formatter.toJson(copy).length(), rules.calculateBlockSize(copy));
+	}
+
+	@Test
+	public void testCanonicalJsonIsMemoizedForImmutableObjects() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+		String json = formatter.toJson(opBlock);
+		assertSame(json, formatter.toJson(opBlock));
+		OpOperation op = opBlock.getOperations().get(0);
+		assertSame(formatter.opToJson(op), formatter.opToJson(op));
+
+		OpBlock copy = OpBlock.copy(opBlock);
+		assertNull(copy.getCanonicalJson());
+		assertEquals(json, formatter.toJson(copy));
+		assertNull(copy.getCanonicalJson());
+	}
+
+	@Test
+	public void testFullOutputIsMemoizedUntilEvalFieldsChange() throws FailedVerificationException {
+		OpBlock opBlock = blc.createBlock(serverName, serverKeyPair);
+		String json = formatter.fullObjectToJson(opBlock);
+		assertSame(json, formatter.fullObjectToJson(opBlock));
+
+		opBlock.getOperations().get(0).putCacheObject("test_eval", "changed");
+		String changed = formatter.fullObjectToJson(opBlock);
+		assertNotSame(json, changed);
+		assertTrue(changed.contains("test_eval"));
+		assertSame(changed, formatter.fullObjectToJson(opBlock));
+	}
+
 	/**
 	 * Expected ErrorType.BLOCK_PREV_HASH
 	 *
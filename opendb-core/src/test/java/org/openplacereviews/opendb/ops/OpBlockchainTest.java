@@ -4,12 +4,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.*;
 import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
 import static org.openplacereviews.opendb.VariableHelperTest.serverName;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.*;
 
 import org.junit.Before;
@@ -18,6 +22,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.openplacereviews.opendb.ops.OpBlockchainRules.BlockchainValidationException;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 
@@ -417,6 +422,334 @@ public class OpBlockchainTest {
 		assertEquals( 3, countEl);
 	}
 
+	@Test
+	public void testGetObjectByLatestVersionIndex() throws FailedVerificationException {
+		JsonFormatter formatter = new JsonFormatter();
+		generateOperationsByList(formatter, blc, MULTIPLE_DELETE_LIST);
+		addPlaceOperation(blc, Arrays.asList("8FW97P", "overwritten"), null);
+		addPlaceOperation(blc, Arrays.asList("8FW97P", "deleted"), null);
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+		addPlaceOperation(child, Arrays.asList("8FW97P", "overwritten"), null);
+		addPlaceOperation(child, null, Arrays.asList("8FW97P", "deleted"));
+		child.createBlock(serverName, serverKeyPair);
+		child.validateLocked();
+		OpObject kept = blc.getObjectByName("osm.place", "8FW97P", "wdhpik");
+		OpObject overwritten = child.getObjectByName("osm.place", "8FW97P", "overwritten");
+		assertNotNull(kept);
+		assertNotNull(overwritten);
+		assertNotSame(overwritten, blc.getObjectByName("osm.place", "8FW97P", "overwritten"));
+		assertNull(child.getObjectByName("osm.place", "8FW97P", "deleted"));
+
+		OpBlockChain.USE_LATEST_VERSION_INDEX = true;
+		try {
+			assertSame(kept, child.getObjectByName("osm.place", "8FW97P", "wdhpik"));
+			assertSame(overwritten, child.getObjectByName("osm.place", "8FW97P", "overwritten"));
+			assertNull(child.getObjectByName("osm.place", "8FW97P", "deleted"));
+			assertNull(child.getObjectByName("osm.place", "8FW97P", "unknown"));
+
+			OpBlockChain merged = new OpBlockChain(child, blc, blc.getRules());
+			merged.validateLocked();
+			assertSame(kept, merged.getObjectByName("osm.place", "8FW97P", "wdhpik"));
+			assertSame(overwritten, merged.getObjectByName("osm.place", "8FW97P", "overwritten"));
+			assertNull(merged.getObjectByName("osm.place", "8FW97P", "deleted"));
+			assertNull(merged.getObjectByName("osm.place", "8FW97P", "unknown"));
+		} finally {
+			OpBlockChain.USE_LATEST_VERSION_INDEX = false;
+		}
+	}
+
+	private void addPlaceOperation(OpBlockChain chain, List<String> createdId, List<String> deletedId)
+			throws FailedVerificationException {
+		OpOperation op = new OpOperation();
+		op.setType("osm.place");
+		if (createdId != null) {
+			OpObject obj = new OpObject();
+			obj.setId(createdId.get(0), createdId.get(1));
+			obj.putObjectValue("version", 1);
+			op.addCreated(obj);
+		}
+		if (deletedId != null) {
+			op.addDeleted(deletedId);
+		}
+		op.setSignedBy(serverName);
+		op = chain.getRules().generateHashAndSign(op, serverKeyPair);
+		op.makeImmutable();
+		assertTrue(chain.addOperation(op));
+	}
+
+	@Test
+	public void testLatestVersionIndexLevels() {
+		CompoundKey shared = new CompoundKey(0, Arrays.asList("shared"));
+		List<OpBlockChain> levels = new ArrayList<>();
+		List<OpPrivateLatestVersionIndex> indexes = new ArrayList<>();
+		OpBlockChain p = OpBlockChain.NULL;
+		OpPrivateLatestVersionIndex idx = null;
+		for (int i = 0; i < 20; i++) {
+			OpBlockChain c = new OpBlockChain(p, blc.getRules());
+			idx = idx == null ? new OpPrivateLatestVersionIndex(p) : new OpPrivateLatestVersionIndex(p, idx);
+			idx.put(new CompoundKey(0, Arrays.asList("k" + i)), c, false);
+			idx.put(shared, c, i == 19);
+			assertTrue(idx.isValid(p));
+			levels.add(c);
+			indexes.add(idx);
+			p = c;
+		}
+		for (int i = 0; i < levels.size(); i++) {
+			assertSame(levels.get(i), idx.getOwner(new CompoundKey(0, Arrays.asList("k" + i))));
+		}
+		assertSame(OpPrivateLatestVersionIndex.TOMBSTONE, idx.getOwner(shared));
+		assertSame(levels.get(18), indexes.get(18).getOwner(shared));
+		assertNull(idx.getOwner(new CompoundKey(0, Arrays.asList("unknown"))));
+
+		// merge of 2 top levels (chained indexes) and of levels 16-17 (index of level 16 is flattened)
+		for (int top : new int[] { 19, 17 }) {
+			OpBlockChain merged = new OpBlockChain(levels.get(top - 2), blc.getRules());
+			OpPrivateLatestVersionIndex midx = indexes.get(top).createMergedIndex(levels.get(top - 2));
+			midx.put(new CompoundKey(0, Arrays.asList("k" + (top - 1))), merged, false);
+			midx.put(new CompoundKey(0, Arrays.asList("k" + top)), merged, false);
+			midx.put(shared, merged, top == 19);
+			assertTrue(midx.isValid(levels.get(top - 2)));
+			for (int i = 0; i <= top; i++) {
+				OpBlockChain owner = i >= top - 1 ? merged : levels.get(i);
+				assertSame(owner, midx.getOwner(new CompoundKey(0, Arrays.asList("k" + i))));
+			}
+			assertSame(top == 19 ? OpPrivateLatestVersionIndex.TOMBSTONE : merged, midx.getOwner(shared));
+		}
+	}
+
+	@Test
+	public void testCompactRuntimeObjects() throws FailedVerificationException {
+		JsonFormatter formatter = new JsonFormatter();
+		OpBlockChain.COMPACT_RUNTIME_OBJECTS = true;
+		OpBlockChain.COMPRESS_RUNTIME_OBJECTS = true;
+		OpBlockChain compact;
+		try {
+			compact = new OpBlockChain(OpBlockChain.NULL, new OpBlockchainRules(formatter, null));
+			generateOperations(formatter, compact);
+			compact.createBlock(serverName, serverKeyPair);
+			OpBlockChain child = new OpBlockChain(compact, compact.getRules());
+			generateOperationsByList(formatter, child, MULTIPLE_DELETE_LIST);
+			child.createBlock(serverName, serverKeyPair);
+			compact = new OpBlockChain(child, compact, compact.getRules());
+		} finally {
+			OpBlockChain.COMPACT_RUNTIME_OBJECTS = false;
+			OpBlockChain.COMPRESS_RUNTIME_OBJECTS = false;
+		}
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+		generateOperationsByList(formatter, child, MULTIPLE_DELETE_LIST);
+		child.createBlock(serverName, serverKeyPair);
+
+		OpBlockChain.ObjectsSearchRequest expected = new OpBlockChain.ObjectsSearchRequest();
+		child.fetchAllObjects("osm.place", expected);
+		OpBlockChain.ObjectsSearchRequest actual = new OpBlockChain.ObjectsSearchRequest();
+		compact.fetchAllObjects("osm.place", actual);
+		assertEquals(expected.keys, actual.keys);
+		for (int i = 0; i < expected.result.size(); i++) {
+			OpObject e = expected.result.get(i);
+			OpObject a = actual.result.get(i);
+			assertEquals(formatter.objToJson(e), formatter.objToJson(a));
+			assertEquals(e.getParentHash(), a.getParentHash());
+		}
+		assertNull(compact.getObjectByName("osm.place", "8FW97P", "unknown"));
+	}
+
+	@Test
+	public void testCompactObjectsStoreChunksGrow() {
+		JsonFormatter formatter = new JsonFormatter();
+		OpPrivateCompactObjectsStore store = new OpPrivateCompactObjectsStore(formatter, false);
+		OpObject small = new OpObject();
+		small.setId("small");
+		store.put(new CompoundKey("small", null), small);
+		assertEquals(OpPrivateCompactObjectsStore.MIN_CHUNK_SIZE, store.getAllocatedBytes());
+
+		char[] value = new char[OpPrivateCompactObjectsStore.MIN_CHUNK_SIZE];
+		Arrays.fill(value, 'a');
+		OpObject large = new OpObject();
+		large.setId("large");
+		large.putObjectValue("value", new String(value));
+		store.put(new CompoundKey("large", null), large);
+		assertEquals(OpPrivateCompactObjectsStore.MIN_CHUNK_SIZE * 3, store.getAllocatedBytes());
+		assertEquals(formatter.objToJson(large), formatter.objToJson(store.get(new CompoundKey("large", null))));
+		assertEquals(formatter.objToJson(small), formatter.objToJson(store.get(new CompoundKey("small", null))));
+
+		OpObject edited = new OpObject(small);
+		edited.putObjectValue("value", "edited");
+		assertNull(store.put(new CompoundKey("small", null), edited));
+		assertEquals(formatter.objToJson(edited), formatter.objToJson(store.get(new CompoundKey("small", null))));
+		assertNull(store.remove(new CompoundKey("large", null)));
+		assertNull(store.get(new CompoundKey("large", null)));
+	}
+
+	@Test
+	public void testBinaryFormatRoundTrip() throws Exception {
+		JsonFormatter formatter = new JsonFormatter();
+		OpBinaryFormat binaryFormat = new OpBinaryFormat(formatter);
+		OpBlock block = blc.createBlock(serverName, serverKeyPair);
+		OpBlock fullBlock = blc.getFullBlockByRawHash(block.getRawHash());
+		OpBlock fromJson = formatter.parseBlock(formatter.fullObjectToJson(fullBlock));
+		OpBlock fromBinary = binaryFormat.readBlock(new ByteArrayInputStream(binaryFormat.blockToBytes(fullBlock)));
+
+		assertEquals(formatter.toJson(fromJson), formatter.toJson(fromBinary));
+		assertEquals(fromJson.getOperations().size(), fromBinary.getOperations().size());
+		for (int i = 0; i < fromJson.getOperations().size(); i++) {
+			OpOperation op = fromBinary.getOperations().get(i);
+			assertEquals(op.getHash(), blc.getRules().calculateOperationHash(op, false));
+			assertEquals(blc.getRules().calculateOperationHash(fromJson.getOperations().get(i), false),
+					blc.getRules().calculateOperationHash(op, false));
+		}
+		OpBlockChain replica = new OpBlockChain(OpBlockChain.NULL, blc.getRules());
+		assertNotNull(replica.replicateBlock(fromBinary));
+
+		List<OpBlock> headers = new ArrayList<>();
+		int depth = binaryFormat.readBlocks(
+				new ByteArrayInputStream(binaryFormat.blocksToBytes(blc.getBlockHeaders(-1), blc.getDepth())), headers);
+		assertEquals(blc.getDepth(), depth);
+		assertEquals(1, headers.size());
+		assertEquals(formatter.toJson(block), formatter.toJson(headers.get(0)));
+		assertEquals(-1, binaryFormat.readBlock(
+				new ByteArrayInputStream(binaryFormat.blockToBytes(new OpBlock()))).getBlockId());
+	}
+
+	@Test
+	public void testBinaryFormatRejectsMalformedLength() throws Exception {
+		// block with 1 field which key is a string of 1 GB
+		byte[] bytes = new byte[] { 0x4f, 0x44, 0x42, 0x01, 1, 1, 5,
+				(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04 };
+		exceptionRule.expect(IOException.class);
+		new OpBinaryFormat(new JsonFormatter()).readBlock(new ByteArrayInputStream(bytes));
+	}
+
+	@Test
+	public void testFetchSuperblockFullBlocks() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		List<OpBlock> blocks = new ArrayList<>();
+		blc.fetchSuperblockFullBlocks(blocks::add);
+		List<OpBlock> expected = new ArrayList<>(blc.getSuperblockFullBlocks());
+		Collections.reverse(expected);
+		assertEquals(expected, blocks);
+	}
+
+	@Test
+	public void testFetchSuperblockBlocksByOpType() throws FailedVerificationException {
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlock block = blc.getSuperblockFullBlocks().getFirst();
+		String type = block.getOperations().get(0).getType();
+		int cnt = 0;
+		for (OpOperation o : block.getOperations()) {
+			if (type.equals(o.getType())) {
+				cnt++;
+			}
+		}
+		List<OpBlock> filtered = new ArrayList<>();
+		blc.fetchSuperblockFullBlocks(Collections.singleton(type), filtered::add);
+		assertEquals(1, filtered.size());
+		assertEquals(block.getRawHash(), filtered.get(0).getRawHash());
+		assertEquals(cnt, filtered.get(0).getOperations().size());
+		assertEquals(block.getOperations().get(0), filtered.get(0).getOperations().get(0));
+	}
+
+	@Test
+	public void testLazyObjectFields() throws FailedVerificationException {
+		JsonFormatter formatter = blc.getRules().getFormatter();
+		generateOperationsByList(formatter, blc, MULTIPLE_DELETE_LIST);
+		OpObject obj = blc.getObjectByName("osm.place", "8FW97P", "wdhpik");
+		String json = formatter.objToJson(obj);
+		OpObject lazy = formatter.parseObjectLazy(json);
+
+		assertEquals(obj.getId(), lazy.getId());
+		assertNull(lazy.getFieldByExpr("unknown"));
+		assertEquals(obj.getFieldByExpr("source.osm"), lazy.getFieldByExpr("source.osm"));
+		assertEquals(json, formatter.objToJson(lazy));
+		assertEquals(formatter.parseObject(json), lazy);
+		assertEquals(formatter.fullObjectToJson(formatter.parseObject(json)), formatter.fullObjectToJson(lazy));
+
+		lazy.putStringValue("comment", "changed");
+		assertNull(lazy.getRawJson());
+		assertEquals("changed", formatter.parseObject(formatter.objToJson(lazy)).getComment());
+	}
+
+	@Test
+	public void testLazyObjectNestedFieldChange() {
+		JsonFormatter formatter = blc.getRules().getFormatter();
+		OpObject lazy = formatter.parseObjectLazy("{\"id\":[\"1\"],\"source\":{\"osm\":{\"v\":1}}}");
+		lazy.setFieldByExpr("source.osm.v", 2);
+		assertNull(lazy.getRawJson());
+		assertEquals(2, ((Number) formatter.parseObject(formatter.objToJson(lazy)).getFieldByExpr("source.osm.v")).intValue());
+
+		lazy = formatter.parseObjectLazy("{\"id\":[\"1\"],\"source\":{\"osm\":{\"v\":1}}}");
+		lazy.getStringObjMap("source").put("ref", "r");
+		assertEquals("r", formatter.parseObject(formatter.fullObjectToJson(lazy)).getFieldByExpr("source.ref"));
+
+		// immutable object keeps raw json, full output is raw json with eval fields
+		lazy = formatter.parseObjectLazy("{\"id\":[\"1\"],\"source\":{\"osm\":{\"v\":1}}}");
+		lazy.setParentOp("sys.op", "00");
+		lazy.makeImmutable();
+		lazy.getStringObjMap("source");
+		assertNotNull(lazy.getRawJson());
+		assertEquals("sys.op", ((Map<?, ?>) formatter.fromJsonToTreeMap(formatter.fullObjectToJson(lazy)).get(OpObject.F_EVAL))
+				.get(OpObject.F_PARENT_TYPE));
+	}
+
+	@Test
+	public void testLazyObjectFullOutputIsSameAsParsed() {
+		JsonFormatter formatter = blc.getRules().getFormatter();
+		// key order, spacing and numbers as json is returned by db
+		String dbJson = "{\"id\": [\"1\"], \"lat\": 51.50, \"tags\": {\"name\": \"a\", \"amenity\": \"cafe\"}, \"version\": 2.0}";
+		OpObject lazy = formatter.parseObjectLazy(dbJson);
+		lazy.setParentOp("sys.op", "00");
+		OpObject parsed = formatter.parseObject(dbJson);
+		parsed.setParentOp("sys.op", "00");
+		assertEquals(formatter.fullObjectToJson(parsed), formatter.fullObjectToJson(lazy));
+		lazy.makeImmutable();
+		assertEquals(formatter.fullObjectToJson(parsed), formatter.fullObjectToJson(lazy));
+		assertNotNull(lazy.getRawJson());
+	}
+
+	@Test
+	public void testCountAllObjects() throws FailedVerificationException {
+		JsonFormatter formatter = blc.getRules().getFormatter();
+		blc.createBlock(serverName, serverKeyPair);
+		OpBlockChain child = new OpBlockChain(blc, blc.getRules());
+		generateOperationsByList(formatter, child, MULTIPLE_DELETE_LIST);
+		child.createBlock(serverName, serverKeyPair);
+		OpBlockChain merged = new OpBlockChain(child, blc, blc.getRules());
+
+		Set<String> types = new TreeSet<>(blc.getRawSuperblockTypes());
+		types.addAll(child.getRawSuperblockTypes());
+		for (String type : types) {
+			OpBlockChain.ObjectsSearchRequest r = new OpBlockChain.ObjectsSearchRequest();
+			child.fetchAllObjects(type, r);
+			assertEquals(type, r.result.size(), child.countAllObjects(type));
+			assertEquals(type, r.result.size(), merged.countAllObjects(type));
+		}
+	}
+
+	@Test
+	public void testDerivedStateIsSharedBetweenChains() throws FailedVerificationException {
+		OpBlockchainRules rules = blc.getRules();
+		blc.createBlock(serverName, serverKeyPair);
+		Map<String, Set<String>> roles = rules.getRoles(blc);
+		assertFalse(roles.isEmpty());
+
+		OpBlockChain child = new OpBlockChain(blc, rules);
+		assertSame(roles, rules.getRoles(child));
+		// operations with objects of other types don't invalidate roles
+		generateOperationsByList(rules.getFormatter(), child, MULTIPLE_DELETE_LIST);
+		assertSame(roles, rules.getRoles(child));
+		assertSame(roles, rules.getRoles(new OpBlockChain(blc, rules)));
+	}
+
+	@Test
+	public void testDerivedStateVersionKeyIsIdentityOfObject() {
+		Object o = new Object();
+		OpPrivateDerivedStateCache.WeakIdentityKey k = new OpPrivateDerivedStateCache.WeakIdentityKey(o);
+		assertEquals(k, new OpPrivateDerivedStateCache.WeakIdentityKey(o));
+		assertEquals(k.hashCode(), new OpPrivateDerivedStateCache.WeakIdentityKey(o).hashCode());
+		assertFalse(k.equals(new OpPrivateDerivedStateCache.WeakIdentityKey(new Object())));
+	}
+
 	private OpObject generateTestOpObject() {
 		OpObject opObject = new OpObject();
 		opObject.setId("some id");
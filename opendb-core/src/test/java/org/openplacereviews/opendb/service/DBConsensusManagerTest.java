@@ -18,6 +18,7 @@ import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.File;
 import java.sql.Connection;
 import java.util.*;
 
@@ -185,6 +186,38 @@ public class DBConsensusManagerTest {
 
 	}
 
+	@Test
+	public void testRestoreFromSnapshot() throws Exception {
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		generateMore30Blocks(formatter, opBlockChain, dbConsensusManager, BOOTSTRAP_LIST);
+
+		File snapshot = File.createTempFile("runtime-chain", ".json.gz");
+		snapshot.delete();
+		try {
+			settingsManager.OPENDB_SNAPSHOT_FILE.setString(snapshot.getPath());
+			assertTrue(dbConsensusManager.saveSnapshot(opBlockChain));
+			assertTrue(snapshot.exists());
+
+			OpBlockChain restored = dbConsensusManager.init(metadataDb);
+			// state restored from snapshot is not changed, so it is not saved again
+			assertFalse(dbConsensusManager.saveSnapshot(restored));
+			assertEquals(0, restored.getSuperblockSize());
+			assertEquals(opBlockChain.getLastBlockRawHash(), restored.getLastBlockRawHash());
+			assertEquals(opBlockChain.getSuperblockSize(), restored.getParent().getSuperblockSize());
+			for (String type : opBlockChain.getRawSuperblockTypes()) {
+				OpBlockChain.ObjectsSearchRequest expected = new OpBlockChain.ObjectsSearchRequest();
+				opBlockChain.fetchAllObjects(type, expected);
+				OpBlockChain.ObjectsSearchRequest actual = new OpBlockChain.ObjectsSearchRequest();
+				restored.fetchAllObjects(type, actual);
+				assertEquals(type, expected.result.size(), actual.result.size());
+				assertEquals(type, opBlockChain.countAllObjects(type), restored.countAllObjects(type));
+			}
+		} finally {
+			settingsManager.OPENDB_SNAPSHOT_FILE.setString("");
+			snapshot.delete();
+		}
+	}
+
 	@Test
 	public void testSaveMainBlockchain() throws FailedVerificationException {
 		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
@@ -198,14 +231,29 @@ public class DBConsensusManagerTest {
 		});
 
 		assertEquals(0, amount[0]);
+		int places = opBlockChain.countAllObjects("osm.place");
 
-		dbConsensusManager.saveMainBlockchain(opBlockChain);
+		OpBlockChain saved = dbConsensusManager.saveMainBlockchain(opBlockChain);
+		assertEquals(places, saved.countAllObjects("osm.place"));
+		// deltas are stored for every superblock (even without objects) so they are never recalculated
+		assertEquals(jdbcTemplate.queryForObject("SELECT COUNT(DISTINCT superblock) FROM " + BLOCKS_TABLE, Long.class),
+				jdbcTemplate.queryForObject("SELECT COUNT(DISTINCT superblock) FROM " + OBJS_COUNT_TABLE + " WHERE type = ''", Long.class));
 
 		jdbcTemplate.query("SELECT COUNT(*) FROM " + BLOCKS_TABLE + " WHERE superblock is NOT NULL", rs -> {
 			amount[0] = rs.getLong(1);
 		});
 
 		assertEquals(40, amount[0]);
+
+		jdbcTemplate.query("SELECT COUNT(*) FROM " + OPERATIONS_TABLE + " WHERE superblock is NULL or sblockid is NULL", rs -> {
+			amount[0] = rs.getLong(1);
+		});
+		assertEquals(0, amount[0]);
+
+		jdbcTemplate.query("SELECT COUNT(distinct superblock) FROM " + OBJS_COUNT_TABLE, rs -> {
+			amount[0] = rs.getLong(1);
+		});
+		assertTrue(amount[0] > 0);
 	}
 
 	@Test
@@ -9,8 +9,10 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.openplacereviews.opendb.OpenDBServer;
+import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
+import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.psql.PostgreSQLServer;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
@@ -25,8 +27,11 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.*;
 import static org.openplacereviews.opendb.VariableHelperTest.serverKeyPair;
@@ -108,6 +113,128 @@ public class DBHistoryManagerTest {
 
 	}
 
+	@Test
+	public void testAsyncHistoryIsWrittenInBlocksOrder() throws Exception {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		settingsManager.OPENDB_STORE_HISTORY.set(true);
+		settingsManager.OPENDB_HISTORY_ASYNC.set(true);
+		ReflectionTestUtils.setField(historyManager, "txTemplate", createTxTemplate());
+		historyManager.init(opBlockChain);
+
+		List<String> blockHashes = new ArrayList<>();
+		for (String name : BLOCKCHAIN_LIST) {
+			generateOperationsByList(formatter, opBlockChain, new String[] {name});
+			OpBlock opBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+			historyManager.saveHistoryForBlockOperations(opBlock, null);
+			blockHashes.add(opBlock.getRawHash());
+		}
+		assertTrue(historyManager.waitForQueuedHistory(10000));
+		assertEquals(0, historyManager.getHistoryLag());
+		assertEquals(blockHashes, getHistoryBlockHashes());
+		historyManager.stopHistoryWriter();
+	}
+
+	@Test
+	public void testRecoverHistoryWithDeletedObjects() throws Exception {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		settingsManager.OPENDB_STORE_HISTORY.set(true);
+		ReflectionTestUtils.setField(historyManager, "txTemplate", createTxTemplate());
+
+		generateOperationsByList(formatter, opBlockChain, USER_LIST);
+		historyManager.saveHistoryForBlockOperations(opBlockChain.createBlock(serverName, serverKeyPair), null);
+		// history of the last block is lost (object 22222 is created and deleted there)
+		generateOperationsByList(formatter, opBlockChain, Arrays.copyOfRange(BLOCKCHAIN_LIST, 1, BLOCKCHAIN_LIST.length));
+		OpBlock lostBlock = opBlockChain.createBlock(serverName, serverKeyPair);
+
+		settingsManager.OPENDB_HISTORY_ASYNC.set(true);
+		historyManager.init(opBlockChain);
+		assertTrue(historyManager.waitForQueuedHistory(10000));
+		List<String> blockHashes = getHistoryBlockHashes();
+		assertEquals(lostBlock.getRawHash(), blockHashes.get(blockHashes.size() - 1));
+
+		List<String> deleted = jdbcTemplate.queryForList("SELECT obj::text FROM " + OP_OBJ_HISTORY_TABLE +
+				" WHERE p1 = ? AND status = ?", String.class, "22222", HistoryManager.Status.DELETED.getValue());
+		assertEquals(1, deleted.size());
+		OpObject deletedObj = formatter.parseObject(deleted.get(0));
+		assertEquals("23434", deletedObj.getFieldByExpr("def"));
+		historyManager.stopHistoryWriter();
+	}
+
+	@Test
+	public void testWaitForQueuedHistoryTimeout() throws Exception {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		settingsManager.OPENDB_STORE_HISTORY.set(true);
+		settingsManager.OPENDB_HISTORY_ASYNC.set(true);
+		CountDownLatch writeLatch = new CountDownLatch(1);
+		TransactionTemplate txTemplate = Mockito.mock(TransactionTemplate.class);
+		Mockito.when(txTemplate.execute(any())).thenAnswer(invocation -> {
+			writeLatch.await();
+			return null;
+		});
+		ReflectionTestUtils.setField(historyManager, "txTemplate", txTemplate);
+		historyManager.init(opBlockChain);
+
+		generateOperationsByList(formatter, opBlockChain, USER_LIST);
+		historyManager.saveHistoryForBlockOperations(opBlockChain.createBlock(serverName, serverKeyPair), null);
+		assertFalse(historyManager.waitForQueuedHistory(100));
+		assertEquals(1, historyManager.getHistoryLag());
+
+		writeLatch.countDown();
+		assertTrue(historyManager.waitForQueuedHistory(10000));
+		assertEquals(0, historyManager.getHistoryLag());
+		historyManager.stopHistoryWriter();
+	}
+
+	@Test
+	public void testFailedHistoryWriterIsStopped() throws Exception {
+		generateDBConnection();
+		OpBlockChain opBlockChain = dbConsensusManager.init(metadataDb);
+		blocksManager.init(metadataDb, opBlockChain);
+		settingsManager.OPENDB_STORE_HISTORY.set(true);
+		settingsManager.OPENDB_HISTORY_ASYNC.set(true);
+		TransactionTemplate txTemplate = Mockito.mock(TransactionTemplate.class);
+		Mockito.when(txTemplate.execute(any())).thenThrow(new IllegalStateException("history table is not available"));
+		ReflectionTestUtils.setField(historyManager, "txTemplate", txTemplate);
+		ReflectionTestUtils.setField(historyManager, "retryTimeoutMs", 1L);
+		historyManager.init(opBlockChain);
+
+		generateOperationsByList(formatter, opBlockChain, USER_LIST);
+		historyManager.saveHistoryForBlockOperations(opBlockChain.createBlock(serverName, serverKeyPair), null);
+		assertTrue(historyManager.waitForQueuedHistory(10000));
+		assertTrue(historyManager.isHistoryWriterFailed());
+
+		// following blocks are not queued, their history is recovered on restart
+		generateOperationsByList(formatter, opBlockChain, new String[] {"std-roles"});
+		historyManager.saveHistoryForBlockOperations(opBlockChain.createBlock(serverName, serverKeyPair), null);
+		assertEquals(0, historyManager.getHistoryLag());
+		historyManager.stopHistoryWriter();
+	}
+
+	private TransactionTemplate createTxTemplate() {
+		DataSourceTransactionManager txManager = new DataSourceTransactionManager();
+		txManager.setDataSource(jdbcTemplate.getDataSource());
+		TransactionTemplate txTemplate = new TransactionTemplate();
+		txTemplate.setTransactionManager(txManager);
+		return txTemplate;
+	}
+
+	private List<String> getHistoryBlockHashes() {
+		List<String> hashes = new ArrayList<>();
+		jdbcTemplate.query("SELECT blockhash FROM " + OP_OBJ_HISTORY_TABLE + " ORDER BY sorder", rs -> {
+			String hash = SecUtils.hexify(rs.getBytes(1));
+			if (hashes.isEmpty() || !hashes.get(hashes.size() - 1).equals(hash)) {
+				hashes.add(hash);
+			}
+		});
+		return hashes;
+	}
+
 	private void generateDBConnection() throws SQLException {
 		MockitoAnnotations.initMocks(this);
 
@@ -0,0 +1,99 @@
+package org.openplacereviews.opendb.service;
+
+import org.junit.Test;
+import org.openplacereviews.opendb.ops.OpObject;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
+import org.openplacereviews.opendb.util.JsonFormatter;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class DBObjectsCacheTest {
+
+	private static final String TYPE = "opr.place";
+
+	private JsonFormatter formatter = new JsonFormatter();
+
+	@Test
+	public void testLeastRecentlyUsedObjectIsEvicted() {
+		OpObject o1 = createObject("1");
+		long entrySize = DBObjectsCache.ENTRY_OVERHEAD + DBObjectsCache.estimateSize(o1);
+		DBObjectsCache cache = new DBObjectsCache(entrySize * 2);
+		cache.put(TYPE, key("1"), o1);
+		cache.put(TYPE, key("2"), createObject("2"));
+		assertNotNull(cache.get(TYPE, key("1")));
+		cache.put(TYPE, key("3"), createObject("3"));
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(TYPE, key("1")));
+		assertNull(cache.get(TYPE, key("2")));
+		assertNotNull(cache.get(TYPE, key("3")));
+	}
+
+	@Test
+	public void testCacheIsBoundedBySize() {
+		OpObject o = createObject("0");
+		long entrySize = DBObjectsCache.ENTRY_OVERHEAD + DBObjectsCache.estimateSize(o);
+		long maxSize = entrySize * 10;
+		DBObjectsCache cache = new DBObjectsCache(maxSize);
+		for (int i = 0; i < 100; i++) {
+			cache.put(TYPE, key(i + ""), createObject(i + ""));
+			cache.put(TYPE, key("missing" + i), null);
+			assertTrue(cache.getMemorySize() <= maxSize);
+		}
+		assertTrue(cache.size() >= 10);
+		assertSame(DBObjectsCache.MISSING, cache.get(TYPE, key("missing99")));
+		assertNotNull(cache.get(TYPE, key("99")));
+		assertNull(cache.get(TYPE, key("0")));
+
+		cache.put(TYPE, key("99"), createObject("99"));
+		assertTrue(cache.getMemorySize() <= maxSize);
+	}
+
+	@Test
+	public void testClear() {
+		DBObjectsCache cache = new DBObjectsCache(1 << 20);
+		cache.put(TYPE, key("1"), createObject("1"));
+		cache.put(TYPE, key("2"), null);
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemorySize());
+		assertNull(cache.get(TYPE, key("1")));
+		assertNull(cache.get(TYPE, key("2")));
+	}
+
+	@Test
+	public void testDisabledCache() {
+		DBObjectsCache cache = new DBObjectsCache(0);
+		cache.put(TYPE, key("1"), createObject("1"));
+		assertFalse(cache.isEnabled());
+		assertNull(cache.get(TYPE, key("1")));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testSizeOfLazyObjectIncludesParsedFields() {
+		OpObject parsed = createObject("1");
+		String json = formatter.objToJson(parsed);
+		OpObject lazy = formatter.parseObjectLazy(json);
+
+		assertTrue(DBObjectsCache.estimateSize(lazy) > json.length() * 2 + DBObjectsCache.estimateSize(parsed));
+		assertTrue(DBObjectsCache.estimateSize(parsed) > json.length() * 2);
+	}
+
+	private CompoundKey key(String id) {
+		return new CompoundKey(0, Collections.singletonList(id));
+	}
+
+	private OpObject createObject(String id) {
+		OpObject obj = new OpObject();
+		obj.setId(id);
+		obj.putObjectValue("name", "place " + id);
+		obj.putObjectValue("tags", Arrays.asList("amenity", "cafe"));
+		obj.putObjectValue("lat", 51.5);
+		obj.putObjectValue("lon", -0.12);
+		return obj;
+	}
+}
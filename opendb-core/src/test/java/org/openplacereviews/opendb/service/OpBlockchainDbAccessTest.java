@@ -2,7 +2,10 @@ package org.openplacereviews.opendb.service;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.openplacereviews.opendb.ObjectGeneratorTest.generateMetadataDB;
@@ -13,9 +16,12 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.stream.Stream;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -31,13 +37,19 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.openplacereviews.opendb.OpenDBServer;
+import org.openplacereviews.opendb.SecUtils;
 import org.openplacereviews.opendb.ops.OpBlock;
 import org.openplacereviews.opendb.ops.OpBlockChain;
 import org.openplacereviews.opendb.ops.OpBlockChain.ObjectsSearchRequest;
 import org.openplacereviews.opendb.ops.OpBlockchainTest;
+import org.openplacereviews.opendb.ops.OpIndexColumn;
 import org.openplacereviews.opendb.ops.OpObject;
 import org.openplacereviews.opendb.ops.OpOperation;
+import org.openplacereviews.opendb.ops.de.ColumnDef;
+import org.openplacereviews.opendb.ops.de.ColumnDef.IndexType;
+import org.openplacereviews.opendb.ops.de.CompoundKey;
 import org.openplacereviews.opendb.psql.PostgreSQLServer;
+import org.openplacereviews.opendb.util.BloomFilter;
 import org.openplacereviews.opendb.util.JsonFormatter;
 import org.openplacereviews.opendb.util.exception.FailedVerificationException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -236,6 +248,147 @@ public class OpBlockchainDbAccessTest {
 	}
 
 
+	@Test
+	public void testFetchObjectsWithLimitSkipsDeletedInDb() throws FailedVerificationException {
+		settingsManager.OPENDB_SUPERBLOCK_SIZE.set(2);
+		populateDBWithPlaces(6, 3);
+		OpBlockChain blc = databaseBlocksManager.getBlockchain();
+
+		ObjectsSearchRequest all = new ObjectsSearchRequest();
+		blc.fetchAllObjects(OPR_PLACE_TYPE, all);
+		assertEquals(3, all.result.size());
+		for (int limit = 1; limit <= 4; limit++) {
+			ObjectsSearchRequest r = new ObjectsSearchRequest();
+			r.limit = limit;
+			blc.fetchAllObjects(OPR_PLACE_TYPE, r);
+			assertEquals(all.keys.subList(0, Math.min(limit, all.keys.size())), r.keys);
+		}
+	}
+
+	@Test
+	public void testFetchObjectsByPagesFromDb() throws FailedVerificationException {
+		settingsManager.OPENDB_SUPERBLOCK_SIZE.set(2);
+		populateDBWithPlaces(8, 2);
+		OpBlockChain blc = databaseBlocksManager.getBlockchain();
+
+		ObjectsSearchRequest all = new ObjectsSearchRequest();
+		blc.fetchAllObjects(OPR_PLACE_TYPE, all);
+		assertEquals(6, all.result.size());
+		for (int limit = 1; limit <= 4; limit++) {
+			List<CompoundKey> paged = new ArrayList<>();
+			CompoundKey cursor = null;
+			do {
+				ObjectsSearchRequest r = new ObjectsSearchRequest();
+				r.limit = limit;
+				r.afterKey = cursor;
+				blc.fetchAllObjects(OPR_PLACE_TYPE, r, o -> paged.add(new CompoundKey(0, o.getId())));
+				cursor = r.isLimitReached() ? r.lastKey : null;
+			} while (cursor != null);
+			assertEquals(all.keys, paged);
+		}
+	}
+
+	@Test
+	public void testFetchSuperblockFullBlocksFromDb() throws FailedVerificationException {
+		settingsManager.OPENDB_SUPERBLOCK_SIZE.set(2);
+		populateDBWithPlaces(6, 2);
+		OpBlockChain blc = databaseBlocksManager.getBlockchain();
+		while (!blc.isDbAccessed()) {
+			blc = blc.getParent();
+		}
+		List<String> expected = new ArrayList<>();
+		for (OpBlock b : blc.getSuperblockFullBlocks()) {
+			expected.add(0, b.getRawHash());
+		}
+		assertTrue(expected.size() > 1);
+		List<String> fetched = new ArrayList<>();
+		blc.fetchSuperblockFullBlocks(b -> fetched.add(b.getRawHash()));
+		assertEquals(expected, fetched);
+
+		List<OpBlock> places = new ArrayList<>();
+		blc.fetchSuperblockFullBlocks(Collections.singleton(OPR_PLACE_TYPE), places::add);
+		assertEquals(expected.size(), places.size());
+		int i = 0;
+		for (OpBlock b : blc.getSuperblockFullBlocks()) {
+			OpBlock p = places.get(places.size() - 1 - i++);
+			assertEquals(b.getRawHash(), p.getRawHash());
+			List<String> expectedOps = new ArrayList<>();
+			for (OpOperation o : b.getOperations()) {
+				if (OPR_PLACE_TYPE.equals(o.getType())) {
+					expectedOps.add(o.getRawHash());
+				}
+			}
+			List<String> fetchedOps = new ArrayList<>();
+			for (OpOperation o : p.getOperations()) {
+				fetchedOps.add(o.getRawHash());
+			}
+			assertEquals(expectedOps, fetchedOps);
+		}
+
+		OpBlockChain unloaded = dbConsensusManager.unloadSuperblockFromDB(blc);
+		List<String> unloadedBlocks = new ArrayList<>();
+		unloaded.fetchSuperblockFullBlocks(b -> unloadedBlocks.add(b.getRawHash()));
+		assertEquals(expected, unloadedBlocks);
+	}
+
+	@Test
+	public void testDbObjectsCacheIsClearedWhenSuperblockChanges() throws Exception {
+		settingsManager.OPENDB_SUPERBLOCK_SIZE.set(2);
+		populateDBWithPlaces(6, 0);
+		@SuppressWarnings("unchecked")
+		Map<String, DBConsensusManager.SuperblockDbAccess> dbSuperBlocks =
+				(Map<String, DBConsensusManager.SuperblockDbAccess>) ReflectionTestUtils.getField(dbConsensusManager, "dbSuperBlocks");
+		OpBlockChain blc = databaseBlocksManager.getBlockchain();
+		CompoundKey key = null;
+		while (key == null) {
+			blc = blc.getParent();
+			if (blc.isDbAccessed()) {
+				try (Stream<Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(OPR_PLACE_TYPE)) {
+					key = objects.map(Entry::getKey).findFirst().orElse(null);
+				}
+			}
+		}
+		DBConsensusManager.SuperblockDbAccess dba = dbSuperBlocks.get(blc.getSuperBlockHash());
+		OpObject obj = dba.getObjectById(OPR_PLACE_TYPE, key, true);
+		assertNotNull(obj);
+		assertSame(obj, dba.getObjectById(OPR_PLACE_TYPE, key, true));
+
+		dba.markAsStale(true);
+		dba.markAsStale(false);
+		OpObject reloaded = dba.getObjectById(OPR_PLACE_TYPE, key, true);
+		assertNotSame(obj, reloaded);
+		assertEquals(obj.getId(), reloaded.getId());
+	}
+
+	@Test
+	public void testIndexKeysFilterIsStoredOnce() throws Exception {
+		settingsManager.OPENDB_SUPERBLOCK_SIZE.set(2);
+		populateDBWithPlaces(6, 0);
+		@SuppressWarnings("unchecked")
+		Map<String, DBConsensusManager.SuperblockDbAccess> dbSuperBlocks =
+				(Map<String, DBConsensusManager.SuperblockDbAccess>) ReflectionTestUtils.getField(dbConsensusManager, "dbSuperBlocks");
+		OpBlockChain blc = databaseBlocksManager.getBlockchain();
+		while (!blc.isDbAccessed()) {
+			blc = blc.getParent();
+		}
+		DBConsensusManager.SuperblockDbAccess dba = dbSuperBlocks.get(blc.getSuperBlockHash());
+		OpIndexColumn column = new OpIndexColumn(OPR_PLACE_TYPE, "p1", 0,
+				new ColumnDef(DBSchemaManager.OBJS_TABLE, "p1", "text", IndexType.INDEXED));
+		BloomFilter filter = dba.getIndexKeysFilter(OPR_PLACE_TYPE, column);
+		assertSame(filter, dba.getIndexKeysFilter(OPR_PLACE_TYPE, column));
+
+		// filter is loaded from db on next access and it is never inserted twice
+		((Map<?, ?>) ReflectionTestUtils.getField(dba, "indexFilters")).clear();
+		BloomFilter loaded = dba.getIndexKeysFilter(OPR_PLACE_TYPE, column);
+		assertNotSame(filter, loaded);
+		try (Stream<Entry<CompoundKey, OpObject>> objects = blc.getRawSuperblockObjects(OPR_PLACE_TYPE)) {
+			objects.filter(e -> e.getValue() != null && !e.getValue().isDeleted())
+					.forEach(e -> assertTrue(loaded.mightContain(e.getKey().first)));
+		}
+		assertEquals(Integer.valueOf(1), jdbcTemplate.queryForObject("select count(*)::int from " + DBSchemaManager.INDEX_FILTERS_TABLE
+				+ " where superblock = ?", Integer.class, SecUtils.getHashBytes(blc.getSuperBlockHash())));
+	}
+
 	private OpOperation createEditOperation(String key, String key2, int ver) throws FailedVerificationException {
 		OpOperation opOperation = new OpOperation();
 		opOperation.setType(OPR_PLACE_TYPE);
@@ -324,6 +477,26 @@ public class OpBlockchainDbAccessTest {
 		assertNull(second.getObjectValue("version"));
 	}
 
+	// places [OBJ_ID_P1, "pN"] are created in separate blocks and first 'deleted' of them are deleted in the last block
+	private void populateDBWithPlaces(int count, int deleted) throws FailedVerificationException {
+		List<String> bootstrapList = Arrays.asList("opr-0-test-user", BlocksManager.BOOT_STD_OPS_DEFINTIONS,
+				BlocksManager.BOOT_STD_ROLES, "opr-0-test-grant", BlocksManager.BOOT_STD_VALIDATION);
+		databaseBlocksManager.setBootstrapList(bootstrapList);
+		databaseBlocksManager.bootstrap(serverName, serverKeyPair);
+		Mockito.doNothing().when(extResourceService).processOperations(any());
+		databaseBlocksManager.createBlock();
+		addOpAndBlock(createPlaceOperation());
+		for (int i = 0; i < count; i++) {
+			addOpAndBlock(generateCreatePlaceOp(OBJ_ID_P1, "p" + i));
+		}
+		OpOperation del = new OpOperation();
+		del.setType(OPR_PLACE_TYPE);
+		for (int i = 0; i < deleted; i++) {
+			del.addDeleted(Arrays.asList(OBJ_ID_P1, "p" + i));
+		}
+		addOpAndBlock(del);
+	}
+
 	private void addOpAndBlock(OpOperation op) throws FailedVerificationException {
 		op.setSignedBy(databaseBlocksManager.getServerUser());
 		databaseBlocksManager.generateHashAndSign(op, databaseBlocksManager.getServerLoginKeyPair());
@@ -0,0 +1,29 @@
+package org.openplacereviews.opendb.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+	@Test
+	public void testNoFalseNegatives() {
+		BloomFilter filter = BloomFilter.create(1000, 0.01);
+		for (int i = 0; i < 1000; i++) {
+			filter.put("key" + i);
+		}
+		BloomFilter restored = BloomFilter.fromBytes(filter.toBytes());
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(filter.mightContain("key" + i));
+			assertTrue(restored.mightContain("key" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 1000; i < 11000; i++) {
+			if (restored.mightContain("key" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 500);
+	}
+
+}
@@ -73,6 +73,27 @@ public class OpExprEvaluatorTest {
 		assertEquals("3", evaluateExpr("str:second('1:3')"));
 	}
 
+	@Test
+	public void testCompiledEvaluationMatchesTreeEvaluation() {
+		String[] exprs = new String[] { "m:plus(1, m:mult(2, 3))", "str:concat(.b, str:first('1:3'))",
+				"std:eq(.e.a.a, m:plus(1, 2))", "set:in('sys.role', .array)", "std:size(.c)",
+				"str:second(str:concat(.b, ':x'))", "set:minus(.array, 'sys.role')" };
+		Gson gson = new Gson();
+		for (String e : exprs) {
+			OpExprEvaluator eval = OpExprEvaluator.parseExpression(e);
+			JsonElement obj = gson.fromJson(SIMPLE_JSON, JsonElement.class);
+			Object compiled = eval.evaluateObject(new OpExprEvaluator.EvaluationContext(null, obj.getAsJsonObject(), null, null, null));
+			// evaluation of compiled expression is repeatable
+			assertEquals(compiled, eval.evaluateObject(new OpExprEvaluator.EvaluationContext(null, obj.getAsJsonObject(), null, null, null)));
+			OpExprEvaluator.TRACE_EXPRESSIONS = true;
+			try {
+				assertEquals(compiled, eval.evaluateObject(new OpExprEvaluator.EvaluationContext(null, obj.getAsJsonObject(), null, null, null)));
+			} finally {
+				OpExprEvaluator.TRACE_EXPRESSIONS = false;
+			}
+		}
+	}
+
 	@Test
 	public void testFunction_Str_first() {
 		assertEquals("1", evaluateExpr("str:first('1:3')"));